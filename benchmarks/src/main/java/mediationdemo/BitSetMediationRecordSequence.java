@@ -0,0 +1,64 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import java.util.BitSet;
+
+/**
+ * MediationRecordSequence as it was when it wrapped a java.util.BitSet. Kept so
+ * MediationRecordSequenceBenchmark has something to compare against.
+ */
+public class BitSetMediationRecordSequence {
+
+    BitSet theBitSet;
+
+    public BitSetMediationRecordSequence(byte[] rawData) {
+        if (rawData == null) {
+            theBitSet = new BitSet(MediationRecordSequence.MAX_POSSIBLE_SEQNO);
+        } else {
+            theBitSet = BitSet.valueOf(rawData);
+        }
+    }
+
+    public void setSeqno(int seqno) {
+        theBitSet.set(seqno);
+    }
+
+    public boolean getSeqno(int seqno) {
+        return theBitSet.get(seqno);
+    }
+
+    public boolean weHaveFromZeroTo(int seqno) {
+        for (int i = 0; i < seqno; i++) {
+            if (!theBitSet.get(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public byte[] getSequence() {
+        return theBitSet.toByteArray();
+    }
+}
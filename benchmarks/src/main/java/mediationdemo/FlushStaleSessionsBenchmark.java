@@ -0,0 +1,189 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One FlushStaleSessions sweep that finds 'rowLimit' stale sessions in
+ * unaggregated_cdrs_by_session, half of them complete and half missing a CDR,
+ * and closes them with FLUSH_BULK_CLOSE on (one DELETE for all their view
+ * rows) or off (one DELETE each).
+ * <p>
+ * As with HandleMediationCDRBenchmark, SqlDouble plays the database, so the
+ * time is the procedure's Java and not the SQL engine's. At the end of the run
+ * we print how many statements and rounds each sweep took, and the largest
+ * round, which has to stay within MAX_QUEUED_STATEMENTS.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlushStaleSessionsBenchmark {
+
+    private static final long STALENESS_THRESHOLD_MS = 300000;
+
+    @Param({"1000", "10000"})
+    public int rowLimit;
+
+    @Param({"true", "false"})
+    public boolean bulkClose;
+
+    private final SqlDouble sql = new SqlDouble();
+
+    private BenchmarkedFlushStaleSessions procedure;
+    private long sweepCount;
+
+    @Setup
+    public void setup() {
+        Date now = new Date();
+        procedure = new BenchmarkedFlushStaleSessions(sql, now);
+
+        final TimestampType oldestSession = new TimestampType(
+                (now.getTime() - STALENESS_THRESHOLD_MS - rowLimit) * 1000);
+        final VoltTable staleSessions = newStaleSessions(oldestSession, rowLimit);
+        final long flushBulkClose = bulkClose ? 1 : 0;
+
+        sql.answer(AbstractMediationProcedure.getAllParameters, args -> SqlDouble.parameters(
+                "STALENESS_THRESHOLD_MS", STALENESS_THRESHOLD_MS, "FLUSH_BULK_CLOSE", flushBulkClose));
+
+        sql.answer(FlushStaleSessions.getOldestUnfinishedSession, args -> {
+            VoltTable result = new VoltTable(
+                    new VoltTable.ColumnInfo("min_recordStartUTC", VoltType.TIMESTAMP));
+            result.addRow(oldestSession);
+            return result;
+        });
+
+        // No session_expiry entries, so only the oldest-session pass runs...
+        sql.answer(FlushStaleSessions.getOldestExpiryBucket, args -> new VoltTable(
+                new VoltTable.ColumnInfo("expiry_bucket", VoltType.TIMESTAMP)));
+
+        sql.answer(FlushStaleSessions.getEventClockOffset, args -> {
+            VoltTable result = new VoltTable(new VoltTable.ColumnInfo("offset_ms", VoltType.BIGINT));
+            result.addRow((Object) null);
+            return result;
+        });
+
+        // Every sweep finds the same sessions...
+        sql.answer(FlushStaleSessions.getSessionRunningTotals, args -> {
+            staleSessions.resetRowPosition();
+            return staleSessions;
+        });
+    }
+
+    @TearDown
+    public void printCounts() {
+        System.out.printf("%nFLUSH_BULK_CLOSE=%d, %d sessions: %.0f statements and %.0f rounds of SQL per sweep, "
+                        + "at most %d statements in a round%n", bulkClose ? 1 : 0, rowLimit,
+                (double) sql.statements / sweepCount, (double) sql.rounds / sweepCount, sql.largestRound);
+    }
+
+    @Benchmark
+    public VoltTable[] sweep() {
+        sweepCount++;
+        return procedure.run(0, rowLimit, 0, 0);
+    }
+
+    /**
+     * @return 'count' sessions laid out as per getSessionRunningTotals, starting
+     * a millisecond apart from 'oldestSession'. Odd ones are missing a CDR.
+     */
+    private static VoltTable newStaleSessions(TimestampType oldestSession, int count) {
+        VoltTable sessions = new VoltTable(
+                new VoltTable.ColumnInfo("sessionId", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("sessionStartUTC", VoltType.TIMESTAMP),
+                new VoltTable.ColumnInfo("min_recordStartUTC", VoltType.TIMESTAMP),
+                new VoltTable.ColumnInfo("max_recordStartUTC", VoltType.TIMESTAMP),
+                new VoltTable.ColumnInfo("min_seqno", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("max_seqno", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("recordUsage", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("callingNumber", VoltType.STRING),
+                new VoltTable.ColumnInfo("destination", VoltType.STRING),
+                new VoltTable.ColumnInfo("how_many", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("missingCdrCount", VoltType.BIGINT));
+
+        for (int i = 0; i < count; i++) {
+            TimestampType start = new TimestampType(oldestSession.getTime() + i * 1000L);
+            long missingCdrCount = i % 2;
+
+            sessions.addRow(i, start, start, start, 0, 9, 10000, "12345", "www.voltdb.com",
+                    10 - missingCdrCount, missingCdrCount);
+        }
+
+        return sessions;
+    }
+
+    /**
+     * FlushStaleSessions running its SQL against a SqlDouble, at a fixed time.
+     */
+    static class BenchmarkedFlushStaleSessions extends FlushStaleSessions {
+
+        private final SqlDouble sql;
+        private final Date transactionTime;
+
+        BenchmarkedFlushStaleSessions(SqlDouble sql, Date transactionTime) {
+            this.sql = sql;
+            this.transactionTime = transactionTime;
+        }
+
+        @Override
+        public void voltQueueSQL(SQLStmt stmt, Object... args) {
+            sql.queue(stmt, args);
+        }
+
+        @Override
+        public VoltTable[] voltExecuteSQL() {
+            return sql.execute();
+        }
+
+        @Override
+        public VoltTable[] voltExecuteSQL(boolean isFinalSQL) {
+            return sql.execute();
+        }
+
+        @Override
+        public Date getTransactionTime() {
+            return transactionTime;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.voltdb.aggdemo.MediationBenchmarks.FULL_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.SHORT_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.TYPICAL_SESSION;
+
+/**
+ * One CDR through HandleMediationCDR, with a session's running totals kept in
+ * unaggregated_cdrs_by_session (VIEW) or in its cdr_dupcheck row (ROW).
+ * Sessions arrive in order and end with an E record, so each one is
+ * aggregated once, by its last CDR.
+ * <p>
+ * SqlDouble plays the database, keeping the session's cdr_dupcheck row and
+ * view row in memory, so the time is the procedure's Java plus a little for
+ * the double. What the SQL engine would have spent isn't in it, which is why
+ * we print how many statements and rounds of SQL each CDR took at the end of
+ * the run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandleMediationCDRBenchmark {
+
+    private static final String CALLING_NUMBER = "12345";
+    private static final String DESTINATION = "www.voltdb.com";
+    private static final long RECORD_USAGE = 1000;
+
+    // cdr_dupcheck's columns, in order...
+    private static final VoltTable.ColumnInfo[] DUPCHECK_COLUMNS = {
+            new VoltTable.ColumnInfo("sessionId", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("sessionStartUTC", VoltType.TIMESTAMP),
+            new VoltTable.ColumnInfo("callingNumber", VoltType.STRING),
+            new VoltTable.ColumnInfo("used_seqno_array", VoltType.VARBINARY),
+            new VoltTable.ColumnInfo("insert_date", VoltType.TIMESTAMP),
+            new VoltTable.ColumnInfo("agg_state", VoltType.STRING),
+            new VoltTable.ColumnInfo("last_agg_date", VoltType.TIMESTAMP),
+            new VoltTable.ColumnInfo("aggregated_usage", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("unaggregated_usage", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("destination", VoltType.STRING),
+            new VoltTable.ColumnInfo("unagg_count", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("unagg_min_seqno", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("unagg_max_seqno", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("unagg_min_recordStartUTC", VoltType.TIMESTAMP),
+            new VoltTable.ColumnInfo("unagg_max_recordStartUTC", VoltType.TIMESTAMP),
+            new VoltTable.ColumnInfo("expiry_bucket", VoltType.TIMESTAMP) };
+
+    @Param({SHORT_SESSION, TYPICAL_SESSION, FULL_SESSION})
+    public int sessionLength;
+
+    @Param({"VIEW", "ROW"})
+    public String path;
+
+    private final SqlDouble sql = new SqlDouble();
+
+    private BenchmarkedHandleMediationCDR procedure;
+
+    // The session's cdr_dupcheck row, laid out as per DUPCHECK_COLUMNS, or null...
+    private Object[] dupCheck;
+
+    // ...and its row in unaggregated_cdrs_by_session, which is empty when how_many is 0.
+    private SessionRunningTotals viewTotals;
+
+    private long sessionId;
+    private long sessionStartUTC;
+    private int seqno;
+    private long cdrCount;
+
+    @Setup
+    public void setup() {
+        Date now = new Date();
+        procedure = new BenchmarkedHandleMediationCDR(sql, now);
+        sessionStartUTC = now.getTime();
+        seqno = sessionLength;
+
+        final long sessionStateInRow = path.equals("ROW") ? 1 : 0;
+
+        sql.answer(AbstractMediationProcedure.getAllParameters, args -> SqlDouble.parameters(
+                "AGG_USAGE", 1000000000L, "AGG_SEQNOCOUNT", 300L, "SESSION_STATE_IN_ROW", sessionStateInRow));
+
+        sql.answer(HandleMediationCDR.getSession, args -> {
+            VoltTable result = newDupCheckTable();
+
+            if (dupCheck != null) {
+                result.addRow(dupCheck);
+            }
+
+            return result;
+        });
+
+        sql.answer(HandleMediationCDR.createSession, args -> {
+            dupCheck = new Object[DUPCHECK_COLUMNS.length];
+            dupCheck[0] = args[0];
+            dupCheck[1] = new TimestampType((Date) args[1]);
+            dupCheck[2] = args[2];
+            dupCheck[3] = args[3];
+            dupCheck[8] = args[4];
+            dupCheck[15] = args[5];
+            return SqlDouble.modifiedCount(1);
+        });
+
+        sql.answer(HandleMediationCDR.updateSessionSeqnosAndUsage, args -> {
+            dupCheck[3] = args[0];
+            dupCheck[8] = (Long) dupCheck[8] + (Long) args[1];
+            dupCheck[15] = args[2];
+            return SqlDouble.modifiedCount(1);
+        });
+
+        sql.answer(HandleMediationCDR.createUnaggedRecordSession, args -> {
+            viewTotals.add((Integer) args[2], (String) args[3], (String) args[4], ((Date) args[6]).getTime() * 1000,
+                    (Long) args[7]);
+            return SqlDouble.modifiedCount(1);
+        });
+
+        sql.answer(HandleMediationCDR.getSessionRunningTotals, args -> {
+            VoltTable result = newViewTable();
+
+            if (viewTotals.getHowMany() > 0) {
+                result.addRow(viewTotals.sessionId, viewTotals.sessionStartUTC, viewTotals.getMinRecordStartUTC(),
+                        viewTotals.getMaxRecordStartUTC(), viewTotals.minSeqno, viewTotals.maxSeqno,
+                        viewTotals.getRecordUsage(), viewTotals.callingNumber, viewTotals.destination,
+                        viewTotals.getHowMany());
+            }
+
+            return result;
+        });
+
+        sql.answer(AbstractMediationProcedure.deleteSessionRunningTotals, args -> {
+            viewTotals.clear();
+            return SqlDouble.modifiedCount(1);
+        });
+
+        sql.answer(AbstractMediationProcedure.updateAggStatus, args -> {
+            closeSession(args);
+            return SqlDouble.modifiedCount(1);
+        });
+
+        sql.answer(AbstractMediationProcedure.createSessionWithTotals, args -> {
+            dupCheck = new Object[DUPCHECK_COLUMNS.length];
+            dupCheck[0] = args[0];
+            dupCheck[1] = args[1];
+            dupCheck[2] = args[2];
+            dupCheck[3] = args[3];
+            dupCheck[8] = args[4];
+            System.arraycopy(args, 5, dupCheck, 9, 7);
+            return SqlDouble.modifiedCount(1);
+        });
+
+        sql.answer(AbstractMediationProcedure.updateSessionWithTotals, args -> {
+            dupCheck[3] = args[0];
+            dupCheck[8] = args[1];
+            System.arraycopy(args, 2, dupCheck, 9, 7);
+            return SqlDouble.modifiedCount(1);
+        });
+
+        sql.answer(AbstractMediationProcedure.updateAggStatusAndClearTotalsInRow, args -> {
+            closeSession(args);
+            dupCheck[10] = 0L;
+
+            for (int i = 11; i < 15; i++) {
+                dupCheck[i] = null;
+            }
+
+            return SqlDouble.modifiedCount(1);
+        });
+    }
+
+    @TearDown
+    public void printCounts() {
+        System.out.printf("%n%s path, %d CDR sessions: %.2f statements and %.2f rounds of SQL per CDR, "
+                        + "at most %d statements in a round%n", path, sessionLength,
+                (double) sql.statements / cdrCount, (double) sql.rounds / cdrCount, sql.largestRound);
+    }
+
+    @Benchmark
+    public VoltTable[] handleCdr() {
+        if (seqno == sessionLength) {
+            // Start the next session, and forget the last one...
+            sessionId++;
+            sessionStartUTC += sessionLength;
+            seqno = 0;
+            dupCheck = null;
+            viewTotals = new SessionRunningTotals(sessionId, new TimestampType(new Date(sessionStartUTC)));
+        }
+
+        String recordType = seqno == sessionLength - 1 ? "E" : seqno == 0 ? "S" : "I";
+        cdrCount++;
+
+        return procedure.run(sessionId, sessionStartUTC, seqno, CALLING_NUMBER, DESTINATION, recordType,
+                sessionStartUTC + seqno++, RECORD_USAGE);
+    }
+
+    /**
+     * What updateAggStatus and updateAggStatusAndClearTotalsInRow both do.
+     *
+     * @param args - agg_state, usage aggregated, sessionId, sessionStartUTC
+     */
+    private void closeSession(Object[] args) {
+        dupCheck[5] = args[0];
+        dupCheck[7] = dupCheck[7] == null ? args[1] : (Long) dupCheck[7] + (Long) args[1];
+        dupCheck[8] = 0L;
+        dupCheck[15] = null;
+    }
+
+    private static VoltTable newDupCheckTable() {
+        return new VoltTable(DUPCHECK_COLUMNS);
+    }
+
+    private static VoltTable newViewTable() {
+        return new VoltTable(
+                new VoltTable.ColumnInfo("sessionId", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("sessionStartUTC", VoltType.TIMESTAMP),
+                new VoltTable.ColumnInfo("min_recordStartUTC", VoltType.TIMESTAMP),
+                new VoltTable.ColumnInfo("max_recordStartUTC", VoltType.TIMESTAMP),
+                new VoltTable.ColumnInfo("min_seqno", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("max_seqno", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("recordUsage", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("callingNumber", VoltType.STRING),
+                new VoltTable.ColumnInfo("destination", VoltType.STRING),
+                new VoltTable.ColumnInfo("how_many", VoltType.BIGINT));
+    }
+
+    /**
+     * HandleMediationCDR running its SQL against a SqlDouble, at a fixed time.
+     */
+    static class BenchmarkedHandleMediationCDR extends HandleMediationCDR {
+
+        private final SqlDouble sql;
+        private final Date transactionTime;
+
+        BenchmarkedHandleMediationCDR(SqlDouble sql, Date transactionTime) {
+            this.sql = sql;
+            this.transactionTime = transactionTime;
+        }
+
+        @Override
+        public void voltQueueSQL(SQLStmt stmt, Object... args) {
+            sql.queue(stmt, args);
+        }
+
+        @Override
+        public VoltTable[] voltExecuteSQL() {
+            return sql.execute();
+        }
+
+        @Override
+        public VoltTable[] voltExecuteSQL(boolean isFinalSQL) {
+            return sql.execute();
+        }
+
+        @Override
+        public Date getTransactionTime() {
+            return transactionTime;
+        }
+    }
+}
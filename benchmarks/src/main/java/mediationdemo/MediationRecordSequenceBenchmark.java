@@ -0,0 +1,118 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.voltdb.aggdemo.MediationBenchmarks.FULL_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.SHORT_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.TYPICAL_SESSION;
+
+/**
+ * What HandleMediationCDR does with a session's used_seqno_array for every
+ * CDR: load it, check for a dup, set the new seqno, see whether we have
+ * everything up to it and write it back. The stored array holds every seqno
+ * before the new one, so weHaveFromZeroTo() has to look at all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediationRecordSequenceBenchmark {
+
+    @Param({SHORT_SESSION, TYPICAL_SESSION, FULL_SESSION})
+    public int sessionLength;
+
+    private byte[] storedSequence;
+    private int newSeqno;
+
+    @Setup
+    public void setup() {
+        newSeqno = sessionLength - 1;
+
+        MediationRecordSequence msr = new MediationRecordSequence(null);
+        for (int i = 0; i < newSeqno; i++) {
+            msr.setSeqno(i);
+        }
+
+        storedSequence = msr.getSequence();
+    }
+
+    @Benchmark
+    public byte[] handleCdr() {
+        MediationRecordSequence msr = new MediationRecordSequence(storedSequence);
+
+        if (msr.getSeqno(newSeqno)) {
+            return null;
+        }
+
+        msr.setSeqno(newSeqno);
+
+        if (!msr.weHaveFromZeroTo(newSeqno)) {
+            return null;
+        }
+
+        return msr.getSequence();
+    }
+
+    @Benchmark
+    public byte[] handleCdrWithBitSet() {
+        BitSetMediationRecordSequence msr = new BitSetMediationRecordSequence(storedSequence);
+
+        if (msr.getSeqno(newSeqno)) {
+            return null;
+        }
+
+        msr.setSeqno(newSeqno);
+
+        if (!msr.weHaveFromZeroTo(newSeqno)) {
+            return null;
+        }
+
+        return msr.getSequence();
+    }
+
+    @Benchmark
+    public boolean weHaveFromZeroTo() {
+        return new MediationRecordSequence(storedSequence).weHaveFromZeroTo(newSeqno);
+    }
+
+    @Benchmark
+    public boolean weHaveFromZeroToWithBitSet() {
+        return new BitSetMediationRecordSequence(storedSequence).weHaveFromZeroTo(newSeqno);
+    }
+}
@@ -0,0 +1,89 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.voltdb.aggdemo.MediationBenchmarks.FULL_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.SHORT_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.TYPICAL_SESSION;
+
+/**
+ * The getHighestValidSequence and sequenceToString UDFs, which GetBySessionId
+ * runs for every row it returns. A session with a gap in it makes
+ * sequenceToString fall back to drawing every seqno.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediationRecordSequenceObserverBenchmark {
+
+    @Param({SHORT_SESSION, TYPICAL_SESSION, FULL_SESSION})
+    public int sessionLength;
+
+    @Param({"true", "false"})
+    public boolean complete;
+
+    private final MediationRecordSequenceObserver observer = new MediationRecordSequenceObserver();
+
+    private byte[] storedSequence;
+
+    @Setup
+    public void setup() {
+        MediationRecordSequence msr = new MediationRecordSequence(null);
+
+        // An incomplete session is missing seqno 1...
+        for (int i = 0; i < sessionLength; i++) {
+            if (complete || i != 1) {
+                msr.setSeqno(i);
+            }
+        }
+
+        storedSequence = msr.getSequence();
+    }
+
+    @Benchmark
+    public int getHighestValidSequence() {
+        return observer.getHighestValidSequence(storedSequence);
+    }
+
+    @Benchmark
+    public String getSeqnosAsText() {
+        return observer.getSeqnosAsText(storedSequence);
+    }
+}
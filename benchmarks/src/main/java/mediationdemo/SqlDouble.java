@@ -0,0 +1,109 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stands in for VoltDB's SQL engine so a procedure's own Java can be
+ * benchmarked without a cluster. Each statement is answered by whatever
+ * answer() was given for it, or else by the count of one row that DML
+ * returns. Answers run when the round is executed, in the order the
+ * statements were queued, so they see what earlier ones in the round did.
+ * <p>
+ * We also count rounds and statements, and the largest round, which is where
+ * most of a procedure's real cost is and which timing the Java can't show.
+ */
+class SqlDouble {
+
+    interface Answer {
+        VoltTable answer(Object[] args);
+    }
+
+    private final Map<SQLStmt, Answer> answers = new IdentityHashMap<>();
+
+    private final List<SQLStmt> queuedStatements = new ArrayList<>();
+    private final List<Object[]> queuedArgs = new ArrayList<>();
+
+    long rounds;
+    long statements;
+    int largestRound;
+
+    void answer(SQLStmt stmt, Answer answer) {
+        answers.put(stmt, answer);
+    }
+
+    void queue(SQLStmt stmt, Object... args) {
+        queuedStatements.add(stmt);
+        queuedArgs.add(args);
+    }
+
+    VoltTable[] execute() {
+        VoltTable[] results = new VoltTable[queuedStatements.size()];
+
+        for (int i = 0; i < results.length; i++) {
+            Answer answer = answers.get(queuedStatements.get(i));
+            results[i] = answer == null ? modifiedCount(1) : answer.answer(queuedArgs.get(i));
+        }
+
+        // An empty round never reaches the SQL engine...
+        if (results.length > 0) {
+            rounds++;
+            statements += results.length;
+            largestRound = Math.max(largestRound, results.length);
+        }
+
+        queuedStatements.clear();
+        queuedArgs.clear();
+
+        return results;
+    }
+
+    static VoltTable modifiedCount(long count) {
+        VoltTable result = new VoltTable(new VoltTable.ColumnInfo("modified_tuples", VoltType.BIGINT));
+        result.addRow(count);
+        return result;
+    }
+
+    /**
+     * @param parameters - parameter_name, parameter_value pairs
+     * @return mediation_parameters as getAllParameters reads it.
+     */
+    static VoltTable parameters(Object... parameters) {
+        VoltTable result = new VoltTable(new VoltTable.ColumnInfo("parameter_name", VoltType.STRING),
+                new VoltTable.ColumnInfo("parameter_value", VoltType.BIGINT));
+
+        for (int i = 0; i < parameters.length; i += 2) {
+            result.addRow(parameters[i], parameters[i + 1]);
+        }
+
+        return result;
+    }
+}
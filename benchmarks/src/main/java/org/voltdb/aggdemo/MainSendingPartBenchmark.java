@@ -0,0 +1,108 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.aggdemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.aggdemo.connection.NullSinkConnection;
+import org.voltdb.aggdemo.pacing.LoadProfile;
+import picocli.CommandLine;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.voltdb.aggdemo.MediationBenchmarks.FULL_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.SHORT_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.TYPICAL_SESSION;
+
+/**
+ * One pooled CDR's trip through a MediationGeneratorWorker: made by its
+ * SessionTable, then dropped, duplicated, held back or sent by mainSendingPart
+ * to a NullSinkConnection. Missing, duplicate, late and bad date records are
+ * each 1 in 'ratio', as per the generator's positional parameters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MainSendingPartBenchmark {
+
+    private static final int CALLING_NUMBER_COUNT = 100000;
+
+    @Param({SHORT_SESSION, TYPICAL_SESSION, FULL_SESSION})
+    public int sessionLength;
+
+    @Param({"100"})
+    public int ratio;
+
+    private final MediationMessagePool messagePool = new MediationMessagePool(250000);
+
+    private MediationGeneratorWorker worker;
+    private SessionTable sessionTable;
+    private int callingNumber;
+    private long sessionId;
+    private long now;
+
+    @Setup
+    public void setup() {
+        String ratioArg = Integer.toString(ratio);
+
+        DataGeneratorConfig config = new DataGeneratorConfig();
+        new CommandLine(config).setCaseInsensitiveEnumValuesAllowed(true).parseArgs("none",
+                Integer.toString(CALLING_NUMBER_COUNT), "1", "60", ratioArg, ratioArg, ratioArg, ratioArg, "0",
+                "--pooled", "--session-length-distribution", "geometric",
+                "--mean-session-length", Integer.toString(sessionLength));
+
+        now = System.currentTimeMillis();
+        worker = new MediationGeneratorWorker(config, config.createClock(), LoadProfile.FLAT, new GeneratorMetrics(),
+                new NullSinkConnection(), 0, 1, Long.MAX_VALUE);
+        sessionTable = new SessionTable(0, CALLING_NUMBER_COUNT, config.getDestinationMix(),
+                config.getSessionLengthDistribution(), config.getMeanSessionLength());
+    }
+
+    @Benchmark
+    public void mainSendingPart() {
+        callingNumber = (callingNumber + 1) % CALLING_NUMBER_COUNT;
+
+        if (!sessionTable.hasSession(callingNumber)) {
+            sessionTable.startSession(callingNumber, sessionId++, now);
+        }
+
+        MediationMessage cdr = sessionTable.getNextCdr(callingNumber, messagePool.acquire(), now++);
+        worker.mainSendingPart(cdr, now);
+
+        // Late and dup queues keep their own reference...
+        cdr.release();
+    }
+}
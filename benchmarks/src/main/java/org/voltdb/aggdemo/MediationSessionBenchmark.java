@@ -0,0 +1,108 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.aggdemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.voltdb.aggdemo.MediationBenchmarks.FULL_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.SHORT_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.TYPICAL_SESSION;
+
+/**
+ * Making the next CDR of a session, as MediationSession.getNextCdr() does,
+ * both with a new message each time and with a pooled one, and as the
+ * generator's SessionTable does. Sessions are GEOMETRIC, averaging
+ * sessionLength CDRs, so a longer session means fewer session starts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediationSessionBenchmark {
+
+    private static final int CALLING_NUMBER_COUNT = 100000;
+
+    @Param({SHORT_SESSION, TYPICAL_SESSION, FULL_SESSION})
+    public int sessionLength;
+
+    private final MediationMessagePool messagePool = new MediationMessagePool(16);
+
+    private MediationSession session;
+    private SessionTable sessionTable;
+    private int callingNumber;
+    private long sessionId;
+    private long now;
+
+    @Setup
+    public void setup() {
+        now = System.currentTimeMillis();
+        session = new MediationSession("Num4242", "www.voltdb.com", 1234567890123L,
+                SessionLengthDistribution.GEOMETRIC, sessionLength, now);
+        sessionTable = new SessionTable(0, CALLING_NUMBER_COUNT, new DestinationMix(DestinationMix.DEFAULT_MIX),
+                SessionLengthDistribution.GEOMETRIC, sessionLength);
+    }
+
+    @Benchmark
+    public MediationMessage getNextCdr() {
+        return session.getNextCdr();
+    }
+
+    @Benchmark
+    public long getNextCdrPooled() {
+        MediationMessage cdr = session.getNextCdr(messagePool.acquire(), now++);
+        long seqno = cdr.getSeqno();
+        cdr.release();
+
+        return seqno;
+    }
+
+    @Benchmark
+    public long sessionTableGetNextCdr() {
+        callingNumber = (callingNumber + 1) % CALLING_NUMBER_COUNT;
+
+        if (!sessionTable.hasSession(callingNumber)) {
+            sessionTable.startSession(callingNumber, sessionId++, now);
+        }
+
+        MediationMessage cdr = sessionTable.getNextCdr(callingNumber, messagePool.acquire(), now++);
+        long seqno = cdr.getSeqno();
+        cdr.release();
+
+        return seqno;
+    }
+}
@@ -0,0 +1,104 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.aggdemo.connection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.voltdb.aggdemo.MediationMessage;
+import org.voltdb.aggdemo.MediationSession;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.voltdb.aggdemo.MediationBenchmarks.FULL_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.SHORT_SESSION;
+import static org.voltdb.aggdemo.MediationBenchmarks.TYPICAL_SESSION;
+
+/**
+ * Serializing every CDR of one session for Kafka, with MediationMessageSerializer
+ * and with the reflection based toString() it replaced. Times are per session,
+ * not per CDR.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediationMessageSerializerBenchmark {
+
+    @Param({SHORT_SESSION, TYPICAL_SESSION, FULL_SESSION})
+    public int sessionLength;
+
+    private final MediationMessageSerializer serializer = new MediationMessageSerializer();
+
+    private MediationMessage[] session;
+
+    @Setup
+    public void setup() {
+        long sessionStartUTC = System.currentTimeMillis();
+        session = new MediationMessage[sessionLength];
+
+        for (int seqno = 0; seqno < sessionLength; seqno++) {
+            MediationMessage cdr = new MediationMessage(1234567890123L, sessionStartUTC, seqno, null,
+                    "www.voltdb.com");
+            cdr.setRecordStartUTC(sessionStartUTC + seqno);
+            cdr.setRecordUsage(12345);
+
+            if (seqno == 0) {
+                cdr.setCallingNumber(4242);
+                cdr.setEventType(MediationSession.SESSION_START);
+            } else if (seqno == sessionLength - 1) {
+                cdr.setEventType(MediationSession.SESSION_END);
+            } else {
+                cdr.setEventType(MediationSession.SESSION_INTERMEDIATE);
+            }
+
+            session[seqno] = cdr;
+        }
+    }
+
+    @Benchmark
+    public void serializeCsv(Blackhole blackhole) {
+        for (MediationMessage cdr : session) {
+            blackhole.consume(serializer.serialize(KafkaConnectionFactory.TOPIC_NAME, cdr));
+        }
+    }
+
+    @Benchmark
+    public void serializeReflection(Blackhole blackhole) {
+        for (MediationMessage cdr : session) {
+            blackhole.consume(cdr.toString().getBytes());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks calling numbers from a contiguous range, either uniformly, following a
+ * Zipfian distribution, or from a small 'hot set' most of the time. Real
+ * traffic has heavy hitters, and because a calling number keeps using the same
+ * session, and a session always lives in one VoltDB partition, a skewed choice
+ * here means hot partitions there.
+ * <p>
+ * Not thread safe - each generator worker has its own for its own slice, so
+ * the same ranks are hot in every slice.
+ */
+public class CallingNumberChooser {
+
+    public enum Distribution {
+        UNIFORM, ZIPFIAN, HOTSET
+    }
+
+    private final Distribution distribution;
+    private final int firstCallingNumber;
+    private final int callingNumberCount;
+
+    private final ZipfianGenerator zipfianGenerator;
+    private final int hotSetSize;
+    private final double hotSetProbability;
+
+    /**
+     * @param distribution       - How to choose
+     * @param firstCallingNumber - Lowest calling number we can pick
+     * @param callingNumberCount - How many calling numbers we can pick from
+     * @param zipfianTheta       - With ZIPFIAN, how skewed to be
+     * @param hotSetFraction     - With HOTSET, what fraction of calling numbers are hot
+     * @param hotSetProbability  - With HOTSET, how often we pick one of them
+     */
+    public CallingNumberChooser(Distribution distribution, int firstCallingNumber, int callingNumberCount,
+                                double zipfianTheta, double hotSetFraction, double hotSetProbability) {
+        this.distribution = distribution;
+        this.firstCallingNumber = firstCallingNumber;
+        this.callingNumberCount = callingNumberCount;
+        this.zipfianGenerator = distribution == Distribution.ZIPFIAN
+                ? new ZipfianGenerator(callingNumberCount, zipfianTheta) : null;
+        this.hotSetSize = Math.max(1, Math.min(callingNumberCount, (int) (callingNumberCount * hotSetFraction)));
+        this.hotSetProbability = hotSetProbability;
+    }
+
+    /**
+     * @return A calling number, chosen according to our distribution.
+     */
+    public int next() {
+        switch (distribution) {
+            case ZIPFIAN:
+                return firstCallingNumber + zipfianGenerator.nextRank();
+
+            case HOTSET:
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                if (hotSetSize == callingNumberCount || random.nextDouble() < hotSetProbability) {
+                    return firstCallingNumber + random.nextInt(hotSetSize);
+                }
+
+                return firstCallingNumber + hotSetSize + random.nextInt(callingNumberCount - hotSetSize);
+
+            default:
+                return nextUniform();
+        }
+    }
+
+    /**
+     * @return A calling number, chosen uniformly whatever our distribution.
+     */
+    public int nextUniform() {
+        return firstCallingNumber + ThreadLocalRandom.current().nextInt(callingNumberCount);
+    }
+}
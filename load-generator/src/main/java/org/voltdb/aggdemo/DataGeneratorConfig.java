@@ -1,8 +1,11 @@
 package org.voltdb.aggdemo;
 
 import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+import org.voltdb.aggdemo.pacing.LoadProfile;
+import org.voltdb.aggdemo.connection.SinkConnectionFactory;
 import picocli.CommandLine;
 
+import java.time.Instant;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
@@ -11,6 +14,9 @@ import java.util.concurrent.TimeUnit;
                 "lateRatio dateis1970Ratio offset where missingRatio, dupRatio, lateRatio and dateis1970Ratio are '1 in' ratios - i.e. 100 means 1%")
 public class DataGeneratorConfig {
 
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
     @CommandLine.Parameters(index = "0", description = "Comma separated list of servers to connect to")
     private String hostnames;
 
@@ -42,6 +48,161 @@ public class DataGeneratorConfig {
             description = "Use kafka (default). Otherwise connect directly to VoltDB")
     private boolean useKafka;
 
+    @CommandLine.Option(names = "--threads", defaultValue = "1",
+            description = "Number of generator worker threads. Each worker owns its own slice of calling numbers, " +
+                    "sessions and share of the transaction rate")
+    private int threadCount;
+
+    @CommandLine.Option(names = "--pooled", negatable = true, defaultValue = "false", fallbackValue = "true",
+            description = "Recycle MediationMessage objects through a pool instead of creating one per record")
+    private boolean pooled;
+
+    @CommandLine.Option(names = "--late-delay-ms", defaultValue = "30000",
+            description = "How long late records are held back before being sent")
+    private long lateDelayMs;
+
+    @CommandLine.Option(names = "--dup-delay-ms", defaultValue = "30000",
+            description = "How long duplicate records are held back before being sent again")
+    private long dupDelayMs;
+
+    private int replayTransactionsPerSecond;
+
+    @CommandLine.Option(names = "--replay-queue-size", defaultValue = "100000",
+            description = "Size of each worker's late and duplicate queues")
+    private int replayQueueSize;
+
+    @CommandLine.Option(names = "--volt-partitioner", negatable = true, defaultValue = "false", fallbackValue = "true",
+            description = "Send each sessionId to the Kafka partition that matches its VoltDB partition")
+    private boolean useVoltPartitioner;
+
+    @CommandLine.Option(names = "--create-topic", negatable = true, defaultValue = "false", fallbackValue = "true",
+            description = "Create incoming_cdrs, or add partitions to it, so it has one partition per VoltDB partition")
+    private boolean createTopic;
+
+    @CommandLine.Option(names = "--voltdb-hostnames",
+            description = "Comma separated list of VoltDB servers, if they aren't the same as the Kafka servers")
+    private String voltHostnames;
+
+    @CommandLine.Option(names = "--topic-replication-factor", defaultValue = "1",
+            description = "Replication factor to use with --create-topic")
+    private short topicReplicationFactor;
+
+    @CommandLine.Option(names = "--batch-size", defaultValue = "0",
+            description = "When connecting directly to VoltDB, send up to this many CDRs per partition in one call " +
+                    "to HandleMediationCDRBatch. 0 sends each CDR on its own")
+    private int batchSize;
+
+    @CommandLine.Option(names = "--batch-delay-ms", defaultValue = "5",
+            description = "Longest a CDR waits for its batch to fill before being sent anyway")
+    private long batchDelayMs;
+
+    @CommandLine.Option(names = "--max-in-flight", defaultValue = "0",
+            description = "When connecting directly to VoltDB, most calls that can be outstanding at once. " +
+                    "Sending blocks when this is reached. 0 means no limit")
+    private int maxInFlight;
+
+    @CommandLine.Option(names = "--max-retries", defaultValue = "3",
+            description = "With --max-in-flight, how often to retry calls that fail with GRACEFUL_FAILURE " +
+                    "or CONNECTION_LOST")
+    private int maxRetries;
+
+    @CommandLine.Option(names = "--retry-delay-ms", defaultValue = "100",
+            description = "With --max-in-flight, how long to wait before retrying a call")
+    private long retryDelayMs;
+
+    @CommandLine.Option(names = "--capture-dir",
+            description = "Write every record we send to memory mapped segment files in this directory")
+    private String captureDir;
+
+    @CommandLine.Option(names = "--replay-dir",
+            description = "Instead of generating records, send the ones captured in this directory with --capture-dir")
+    private String replayDir;
+
+    @CommandLine.Option(names = "--replay-unpaced", negatable = true, defaultValue = "false", fallbackValue = "true",
+            description = "With --replay-dir, send captured records as fast as we can instead of at tpMs")
+    private boolean replayUnpaced;
+
+    @CommandLine.Option(names = "--sink",
+            description = "Don't connect to anything. Send records to an in process sink instead: " +
+                    "${COMPLETION-CANDIDATES}")
+    private SinkConnectionFactory.SinkType sinkType;
+
+    @CommandLine.Option(names = "--calling-number-distribution", defaultValue = "UNIFORM",
+            description = "How calling numbers are chosen: ${COMPLETION-CANDIDATES}")
+    private CallingNumberChooser.Distribution callingNumberDistribution;
+
+    @CommandLine.Option(names = "--zipfian-theta", defaultValue = "0.99",
+            description = "With --calling-number-distribution zipfian, how skewed it is. 0 is uniform")
+    private double zipfianTheta;
+
+    @CommandLine.Option(names = "--hot-set-fraction", defaultValue = "0.01",
+            description = "With --calling-number-distribution hotset, what fraction of calling numbers are hot")
+    private double hotSetFraction;
+
+    @CommandLine.Option(names = "--hot-set-probability", defaultValue = "0.9",
+            description = "With --calling-number-distribution hotset, how often a hot calling number is chosen")
+    private double hotSetProbability;
+
+    @CommandLine.Option(names = "--session-length-distribution", defaultValue = "FIXED",
+            description = "How many CDRs each session has: ${COMPLETION-CANDIDATES}. FIXED means " +
+                    MediationSession.MAX_POSSIBLE_SEQNO + " + 1")
+    private SessionLengthDistribution sessionLengthDistribution;
+
+    @CommandLine.Option(names = "--mean-session-length", defaultValue = "20",
+            description = "With --session-length-distribution geometric, the average number of CDRs per session")
+    private int meanSessionLength;
+
+    @CommandLine.Option(names = "--destinations", defaultValue = DestinationMix.DEFAULT_MIX,
+            description = "Comma separated destination=weight list of websites sessions talk to")
+    private String destinations;
+
+    @CommandLine.Option(names = "--partition-report", negatable = true, defaultValue = "false", fallbackValue = "true",
+            description = "Connect to VoltDB and report how many records each VoltDB partition is sent")
+    private boolean partitionReport;
+
+    @CommandLine.Option(names = "--clock", defaultValue = "WALL",
+            description = "Where record times come from: ${COMPLETION-CANDIDATES}. SCALED runs --speed-up times faster " +
+                    "than real time, UNPACED advances 1/tpMs ms per record and sends as fast as it can")
+    private GeneratorClock.Mode clockMode;
+
+    @CommandLine.Option(names = "--clock-start",
+            description = "With a SCALED or UNPACED clock, when event time starts, e.g. 2021-06-01T00:00:00Z. " +
+                    "Defaults to now")
+    private String clockStart;
+
+    @CommandLine.Option(names = "--speed-up", defaultValue = "60",
+            description = "With a SCALED clock, how many times faster than real time it runs")
+    private double speedUp;
+
+    @CommandLine.Option(names = "--publish-event-clock", negatable = true, defaultValue = "false",
+            fallbackValue = "true",
+            description = "With a SCALED or UNPACED clock, tell VoltDB our event time so sessions go stale by it")
+    private boolean publishEventClock;
+
+    @CommandLine.Option(names = "--metrics-port", defaultValue = "0",
+            description = "Serve Prometheus metrics on this port at /metrics. 0 means don't")
+    private int metricsPort;
+
+    @CommandLine.Option(names = "--load-profile", defaultValue = "FLAT",
+            description = "How the send rate changes over the run: ${COMPLETION-CANDIDATES}")
+    private LoadProfile.Shape loadProfile;
+
+    @CommandLine.Option(names = "--profile-period", defaultValue = "60",
+            description = "How many seconds a RAMP or STEP takes, or a SPIKE or DIURNAL cycle lasts")
+    private int profilePeriodSeconds;
+
+    @CommandLine.Option(names = "--profile-low", defaultValue = "1.0",
+            description = "Smallest multiple of tpMs the load profile sends at")
+    private double profileLow;
+
+    @CommandLine.Option(names = "--profile-high", defaultValue = "1.5",
+            description = "Biggest multiple of tpMs the load profile sends at")
+    private double profileHigh;
+
+    @CommandLine.Option(names = "--pacer-batch", defaultValue = "64",
+            description = "Most send permits a worker takes from a single clock read")
+    private int pacerBatch;
+
     public String getHostnames() {
         return hostnames;
     }
@@ -86,8 +247,155 @@ public class DataGeneratorConfig {
         return useKafka;
     }
 
+    public int getThreadCount() {
+        return Math.max(1, threadCount);
+    }
+
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    public long getLateDelayMs() {
+        return lateDelayMs;
+    }
+
+    public long getDupDelayMs() {
+        return dupDelayMs;
+    }
+
+    @CommandLine.Option(names = "--replay-tps", defaultValue = "-1",
+            description = "Most late and duplicate records to send per second, taken out of tpMs. -1 means no limit")
+    private void setReplayTransactionsPerSecond(int replayTransactionsPerSecond) {
+        // Zero would let one record out and then hold the rest until the end of the run...
+        if (replayTransactionsPerSecond <= 0 && replayTransactionsPerSecond != -1) {
+            throw new CommandLine.ParameterException(spec.commandLine(),
+                    "--replay-tps must be positive, or -1 for no limit, not " + replayTransactionsPerSecond);
+        }
+
+        this.replayTransactionsPerSecond = replayTransactionsPerSecond;
+    }
+
+    public int getReplayTransactionsPerSecond() {
+        return replayTransactionsPerSecond;
+    }
+
+    public int getReplayQueueSize() {
+        return Math.max(1, replayQueueSize);
+    }
+
+    public boolean isUseVoltPartitioner() {
+        return useVoltPartitioner;
+    }
+
+    public boolean isCreateTopic() {
+        return createTopic;
+    }
+
+    public String getVoltHostnames() {
+        return voltHostnames == null ? hostnames : voltHostnames;
+    }
+
+    public short getTopicReplicationFactor() {
+        return topicReplicationFactor;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchDelayMs() {
+        return batchDelayMs;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getRetryDelayMs() {
+        return retryDelayMs;
+    }
+
+    public String getCaptureDir() {
+        return captureDir;
+    }
+
+    public String getReplayDir() {
+        return replayDir;
+    }
+
+    public boolean isReplayUnpaced() {
+        return replayUnpaced;
+    }
+
+    public SinkConnectionFactory.SinkType getSinkType() {
+        return sinkType;
+    }
+
+    /**
+     * @return Something to choose calling numbers from a slice of our users.
+     */
+    public CallingNumberChooser createCallingNumberChooser(int firstCallingNumber, int callingNumberCount) {
+        return new CallingNumberChooser(callingNumberDistribution, firstCallingNumber, callingNumberCount,
+                zipfianTheta, hotSetFraction, hotSetProbability);
+    }
+
+    public SessionLengthDistribution getSessionLengthDistribution() {
+        return sessionLengthDistribution;
+    }
+
+    public int getMeanSessionLength() {
+        return Math.max(2, meanSessionLength);
+    }
+
+    public DestinationMix getDestinationMix() {
+        return new DestinationMix(destinations);
+    }
+
+    public boolean isPartitionReport() {
+        return partitionReport;
+    }
+
+    /**
+     * @return The clock described by our --clock options. Durations are measured by it.
+     */
+    public GeneratorClock createClock() {
+        long startMillis = clockStart == null ? System.currentTimeMillis() : Instant.parse(clockStart).toEpochMilli();
+        return new GeneratorClock(clockMode, startMillis, speedUp);
+    }
+
+    /**
+     * @return The load profile described by our --profile options.
+     */
+    public LoadProfile createLoadProfile() {
+        return new LoadProfile(loadProfile, profilePeriodSeconds, profileLow, profileHigh);
+    }
+
+    public int getPacerBatch() {
+        return pacerBatch;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public boolean isPublishEventClock() {
+        return publishEventClock && clockMode != GeneratorClock.Mode.WALL;
+    }
+
+    /**
+     * @return true if we're on a real time clock and sending to VoltDB, so should
+     * clear any event clock offset an earlier simulated run left behind.
+     */
+    public boolean isResetEventClock() {
+        return clockMode == GeneratorClock.Mode.WALL && sinkType == null;
+    }
+
     @Override
     public String toString() {
-        return ReflectionToStringBuilder.toString(this);
+        return ReflectionToStringBuilder.toStringExclude(this, "spec");
     }
 }
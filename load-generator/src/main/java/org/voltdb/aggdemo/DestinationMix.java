@@ -0,0 +1,115 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A weighted choice of destination websites, parsed from something like
+ * "www.voltdb.com=81,www.nytimes.com=10,www.cnn.com=9". Weights don't have to
+ * add up to anything in particular. Immutable, so it can be shared by workers.
+ */
+public class DestinationMix {
+
+    /**
+     * What we've always used: 10% nytimes, 9% cnn and the rest voltdb.
+     */
+    public static final String DEFAULT_MIX = "www.nytimes.com=10,www.cnn.com=9,www.voltdb.com=81";
+
+    private final String[] destinations;
+    private final double[] cumulativeWeights;
+
+    public DestinationMix(String mix) {
+        List<String> names = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+
+        for (String entry : mix.split(",")) {
+            String[] nameAndWeight = entry.trim().split("=");
+
+            if (nameAndWeight.length != 2 || nameAndWeight[0].trim().isEmpty()) {
+                throw new IllegalArgumentException("Expected destination=weight, got '" + entry + "'");
+            }
+
+            double weight = Double.parseDouble(nameAndWeight[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Weight for " + nameAndWeight[0] + " is negative");
+            }
+
+            names.add(nameAndWeight[0].trim());
+            weights.add(weight);
+        }
+
+        destinations = names.toArray(new String[0]);
+        cumulativeWeights = new double[weights.size()];
+
+        double total = 0;
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            total += weights.get(i);
+            cumulativeWeights[i] = total;
+        }
+
+        if (total <= 0) {
+            throw new IllegalArgumentException("Destination weights add up to zero: " + mix);
+        }
+    }
+
+    /**
+     * @return A destination, chosen according to our weights.
+     */
+    public String next() {
+        return destinations[nextIndex()];
+    }
+
+    /**
+     * @return The index of a destination, chosen according to our weights. See get().
+     */
+    public int nextIndex() {
+        double target = ThreadLocalRandom.current().nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        int index = Arrays.binarySearch(cumulativeWeights, target);
+
+        // binarySearch returns (-(insertion point) - 1) when there's no exact match...
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            index++;
+        }
+
+        return Math.min(index, destinations.length - 1);
+    }
+
+    public String get(int index) {
+        return destinations[index];
+    }
+
+    public int size() {
+        return destinations.length;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(destinations);
+    }
+}
@@ -0,0 +1,99 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the generator gets the time from. Session start times, record times,
+ * late and duplicate delays and the end of the run all use this clock, so a
+ * simulated clock lets us produce hours of event time in minutes.
+ * <ul>
+ * <li>WALL - the real time. What we've always done.</li>
+ * <li>SCALED - starts at startMillis and runs speedUp times faster than real time.
+ * Records are still sent at tpMs.</li>
+ * <li>UNPACED - a discrete event clock. Each record is 1/tpMs ms of event time
+ * after the last one, and records are sent as fast as we can.</li>
+ * </ul>
+ * Immutable, so it can be shared by workers.
+ */
+public class GeneratorClock {
+
+    public enum Mode {
+        WALL, SCALED, UNPACED
+    }
+
+    private final Mode mode;
+    private final long startMillis;
+    private final double speedUp;
+    private final long wallStartNanos = System.nanoTime();
+
+    /**
+     * @param mode        - What kind of clock
+     * @param startMillis - Time at which we start. Ignored for WALL.
+     * @param speedUp     - How much faster than real time a SCALED clock runs
+     */
+    public GeneratorClock(Mode mode, long startMillis, double speedUp) {
+        this.mode = mode;
+        this.startMillis = mode == Mode.WALL ? System.currentTimeMillis() : startMillis;
+        this.speedUp = speedUp;
+    }
+
+    /**
+     * @param eventNumber     - How many records the caller has generated so far
+     * @param millisPerEvent  - How much event time each of those records takes
+     *                        up, which only an UNPACED clock uses
+     * @return The current time, in millis
+     */
+    public long now(long eventNumber, double millisPerEvent) {
+        switch (mode) {
+            case SCALED:
+                return startMillis + (long) (((System.nanoTime() - wallStartNanos) * speedUp) / TimeUnit.MILLISECONDS.toNanos(1));
+
+            case UNPACED:
+                return startMillis + (long) (eventNumber * millisPerEvent);
+
+            default:
+                return System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return true if records should be sent at tpMs, false if as fast as we can.
+     */
+    public boolean isPaced() {
+        return mode != Mode.UNPACED;
+    }
+
+    public boolean isSimulated() {
+        return mode != Mode.WALL;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+}
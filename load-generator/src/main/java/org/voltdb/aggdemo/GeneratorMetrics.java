@@ -0,0 +1,126 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo;
+
+import org.voltdb.aggdemo.metrics.PrometheusWriter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by every generator worker. They are striped LongAdders, so
+ * workers can update them without contending with each other, and they won't
+ * overflow however long we run.
+ */
+public class GeneratorMetrics {
+
+    final LongAdder recordCount = new LongAdder();
+    final LongAdder normalCDRCount = new LongAdder();
+    final LongAdder missingCount = new LongAdder();
+    final LongAdder dupCount = new LongAdder();
+    final LongAdder lateCount = new LongAdder();
+    final LongAdder dateis1970Count = new LongAdder();
+    final LongAdder replayedCount = new LongAdder();
+    final LongAdder evictedCount = new LongAdder();
+    final LongAdder sentCount = new LongAdder();
+
+    // Send rate over roughly the last second, updated by updateSendRate()...
+    private volatile double sendRate;
+    private long lastRateSentCount;
+    private long lastRateNanos = System.nanoTime();
+
+    /**
+     * Work out our send rate, if at least a second has passed since we last did.
+     * Only called by one thread.
+     */
+    public void updateSendRate() {
+        long now = System.nanoTime();
+        long elapsedNanos = now - lastRateNanos;
+
+        if (elapsedNanos >= 1000000000L) {
+            long sent = sentCount.sum();
+            sendRate = (sent - lastRateSentCount) / (elapsedNanos / 1e9);
+            lastRateSentCount = sent;
+            lastRateNanos = now;
+        }
+    }
+
+    public void writeMetrics(PrometheusWriter writer) {
+        writer.counter("mediation_generator_records_total", "New CDRs generated", getRecordCount());
+        writer.counter("mediation_generator_sent_total", "CDRs handed to the connection, including repeats",
+                sentCount.sum());
+        writer.gauge("mediation_generator_send_rate", "CDRs handed to the connection per second", sendRate);
+
+        String outcomes = "mediation_generator_outcome_total";
+        String outcomeHelp = "What happened to each new CDR";
+        writer.counter(outcomes, outcomeHelp, getNormalCDRCount(), "outcome", "normal");
+        writer.counter(outcomes, outcomeHelp, getMissingCount(), "outcome", "missing");
+        writer.counter(outcomes, outcomeHelp, getDupCount(), "outcome", "dup");
+        writer.counter(outcomes, outcomeHelp, getLateCount(), "outcome", "late");
+        writer.counter(outcomes, outcomeHelp, getDateis1970Count(), "outcome", "dateis1970");
+
+        writer.counter("mediation_generator_replayed_total", "Late and duplicate CDRs sent again",
+                getReplayedCount());
+        writer.counter("mediation_generator_evicted_total", "Late and duplicate CDRs sent early because a queue was full",
+                getEvictedCount());
+    }
+
+    public long getRecordCount() {
+        return recordCount.sum();
+    }
+
+    public long getNormalCDRCount() {
+        return normalCDRCount.sum();
+    }
+
+    public long getMissingCount() {
+        return missingCount.sum();
+    }
+
+    public long getDupCount() {
+        return dupCount.sum();
+    }
+
+    public long getLateCount() {
+        return lateCount.sum();
+    }
+
+    public long getDateis1970Count() {
+        return dateis1970Count.sum();
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.sum();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.sum();
+    }
+
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    public double getSendRate() {
+        return sendRate;
+    }
+}
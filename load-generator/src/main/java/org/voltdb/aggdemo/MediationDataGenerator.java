@@ -23,21 +23,33 @@ package org.voltdb.aggdemo;
  * OTHER DEALINGS IN THE SOFTWARE.
  */
 
-import com.google_voltpatches.common.util.concurrent.RateLimiter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.voltdb.aggdemo.capture.CdrCaptureReplayer;
 import org.voltdb.aggdemo.connection.Connection;
 import org.voltdb.aggdemo.connection.ConnectionFactory;
+import org.voltdb.aggdemo.connection.EventClockPublisher;
+import org.voltdb.aggdemo.metrics.MetricsHttpServer;
+import org.voltdb.aggdemo.metrics.PrometheusWriter;
+import org.voltdb.aggdemo.pacing.LoadProfile;
 import picocli.CommandLine;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 /**
  * This generates mock CDRS that need to be aggregated. It also deliberately
  * introduces the same kind of mistakes we see in the real world, such as
  * duplicate records, missing records and late records.
+ * <p>
+ * The actual work is done by one or more MediationGeneratorWorker threads, each
+ * of which owns its own slice of calling numbers. This class starts them and
+ * merges their stats into a single status report, and optionally serves them to
+ * Prometheus.
  */
 public class MediationDataGenerator {
 
@@ -46,65 +58,167 @@ public class MediationDataGenerator {
     private final DataGeneratorConfig config;
     private final Connection sender;
 
-    int normalCDRCount;
-    int missingCount;
-    int dupCount;
-    int lateCount;
-    int dateis1970Count;
+    private final GeneratorMetrics metrics = new GeneratorMetrics();
+    private final GeneratorClock clock;
+    private final LoadProfile loadProfile;
 
-    HashMap<String, MediationSession> sessionMap = new HashMap<>();
-    ArrayList<MediationMessage> dupMessages = new ArrayList<>();
-    ArrayList<MediationMessage> lateMessages = new ArrayList<>();
+    // Read by our MetricsHttpServer's thread while run() and replay() add to them...
+    List<MediationGeneratorWorker> workers = new CopyOnWriteArrayList<>();
+    List<CdrCaptureReplayer> replayers = new CopyOnWriteArrayList<>();
 
     public MediationDataGenerator(DataGeneratorConfig config) {
         this.config = config;
+        this.clock = config.createClock();
+        this.loadProfile = config.createLoadProfile();
 
         ConnectionFactory connectionFactory = ConnectionFactory.create(config);
         sender = connectionFactory.create(config.getHostnames());
 
         LOGGER.info(config.toString());
-        run();
+
+        MetricsHttpServer metricsServer = null;
+        if (config.getMetricsPort() > 0) {
+            metricsServer = new MetricsHttpServer(config.getMetricsPort(), this::writeMetrics);
+        }
+
+        if (config.getReplayDir() == null) {
+            run();
+        } else {
+            replay();
+        }
+
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
     }
 
-    public void run() {
-        long startTime = System.currentTimeMillis();
-        long endTime = startTime + TimeUnit.SECONDS.toMillis(config.getDurationSeconds());
+    /**
+     * Send records captured by an earlier run, one thread per original worker.
+     */
+    public void replay() {
+        Map<String, List<Path>> segmentFilesByWorker = CdrCaptureReplayer.findSegmentFiles(Paths.get(config.getReplayDir()));
+
+        if (segmentFilesByWorker.isEmpty()) {
+            LOGGER.error("No captured records found in " + config.getReplayDir());
+            return;
+        }
+
+        double permitsPerSecond = config.isReplayUnpaced() ? 0
+                : (double) config.getTransactionsPerSecond() / segmentFilesByWorker.size();
+
+        List<Thread> replayerThreads = new ArrayList<>();
+        for (Map.Entry<String, List<Path>> entry : segmentFilesByWorker.entrySet()) {
+            CdrCaptureReplayer replayer = new CdrCaptureReplayer(entry.getKey(), entry.getValue(), sender, permitsPerSecond,
+                    loadProfile, config.getPacerBatch());
+            replayers.add(replayer);
+
+            Thread replayerThread = new Thread(replayer, "CdrCaptureReplayer-" + entry.getKey());
+            replayerThreads.add(replayerThread);
+            replayerThread.start();
+        }
+
+        LOGGER.info("Started " + replayers.size() + " replay threads");
 
         long lastStatsTime = System.currentTimeMillis();
+        long lastReportedRecordCount = 0;
 
-        long sessionId = 0;
-        long recordCount = 0;
+        while (waitForWorkers(replayerThreads)) {
+            if (shouldPrintStatus(lastStatsTime)) {
+                long recordCount = replayers.stream().mapToLong(CdrCaptureReplayer::getRecordCount).sum();
+                double recordsProcessed = recordCount - lastReportedRecordCount;
+                double tps = 1000 * (recordsProcessed / (System.currentTimeMillis() - lastStatsTime));
+
+                LOGGER.info("Replayed " + recordCount + " TPS=" + (long) tps);
+                sender.printStatus();
+
+                lastStatsTime = System.currentTimeMillis();
+                lastReportedRecordCount = recordCount;
+            }
+        }
+
+        sender.drain();
+        LOGGER.info("replayedCount = " + replayers.stream().mapToLong(CdrCaptureReplayer::getRecordCount).sum());
+        sender.printStatus();
+    }
+
+    public void run() {
+        // Our duration is measured in event time, which may not be real time...
+        long endTime = clock.getStartMillis() + TimeUnit.SECONDS.toMillis(config.getDurationSeconds());
+
+        long lastStatsTime = System.currentTimeMillis();
         long lastReportedRecordCount = 0;
 
-        RateLimiter rateLimiter = RateLimiter.create(config.getTransactionsPerSecond());
-        while (System.currentTimeMillis() < endTime) {
-            rateLimiter.acquire();
+        EventClockPublisher eventClockPublisher = null;
+        long lastEventClockPublishTime = 0;
 
-            recordCount++;
-            String randomCallingNumber = "Num" + config.getRandomCallingNumber();
+        if (config.isPublishEventClock()) {
+            eventClockPublisher = new EventClockPublisher(config.getVoltHostnames());
+        }
 
-            MediationSession ourSession = sessionMap.get(randomCallingNumber);
-            if (ourSession == null) {
-                ourSession = new MediationSession(
-                        randomCallingNumber,
-                        getRandomDestinationId(),
-                        config.getRandomCallingNumber() + sessionId++
-                );
+        if (config.isResetEventClock()) {
+            EventClockPublisher realTimeClock = new EventClockPublisher(config.getVoltHostnames());
+            realTimeClock.close();
+        }
 
-                sessionMap.put(randomCallingNumber, ourSession);
-            }
+        if (clock.isSimulated()) {
+            LOGGER.info("Using a " + clock.getMode() + " clock starting at " + Instant.ofEpochMilli(clock.getStartMillis()));
+        }
+
+        // We can't have more workers than users...
+        int threadCount = Math.min(config.getThreadCount(), config.getUserCount());
+
+        List<Thread> workerThreads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            MediationGeneratorWorker worker = new MediationGeneratorWorker(config, clock, loadProfile, metrics,
+                    sender, i, threadCount, endTime);
+            workers.add(worker);
+
+            Thread workerThread = new Thread(worker, "MediationGeneratorWorker-" + i);
+            workerThreads.add(workerThread);
+            workerThread.start();
+        }
+
+        LOGGER.info("Started " + threadCount + " worker threads");
+
+        if (clock.isPaced() && loadProfile.getShape() != LoadProfile.Shape.FLAT) {
+            LOGGER.info("Using a " + loadProfile + " load profile");
+        }
+
+        while (waitForWorkers(workerThreads)) {
+            metrics.updateSendRate();
 
-            mainSendingPart(ourSession.getNextCdr());
-            if (shouldFlushLateAndDupMessages()) {
-                sendRemainingMessages();
+            if (eventClockPublisher != null && lastEventClockPublishTime + 1000 < System.currentTimeMillis()) {
+                long eventTime = getEventTime();
+
+                if (eventTime > 0) {
+                    eventClockPublisher.publish(eventTime);
+                }
+
+                lastEventClockPublishTime = System.currentTimeMillis();
             }
 
             if (shouldPrintStatus(lastStatsTime)) {
+                long recordCount = metrics.getRecordCount();
                 double recordsProcessed = recordCount - lastReportedRecordCount;
                 double tps = 1000 * (recordsProcessed / (System.currentTimeMillis() - lastStatsTime));
 
-                LOGGER.info("Offset = " + config.getOffset() + " Record " + recordCount + " TPS=" + (long) tps);
-                LOGGER.info("Active Sessions: " + sessionMap.size());
+                LOGGER.info("Offset = " + config.getOffset() + " Record " + recordCount + " TPS=" + (long) tps
+                        + " Target TPS=" + (long) getTargetRate());
+                LOGGER.info("Active Sessions: " + getActiveSessionCount());
+
+                if (clock.isSimulated()) {
+                    LOGGER.info("Event Time: " + Instant.ofEpochMilli(getEventTime()));
+                }
+
+                LOGGER.info("Late/Dup Queue Depth: "
+                        + workers.stream().mapToLong(MediationGeneratorWorker::getReplayQueueDepth).sum());
+
+                if (config.isPooled()) {
+                    LOGGER.info("Pooled Messages: "
+                            + workers.stream().mapToLong(MediationGeneratorWorker::getPooledMessageCount).sum());
+                }
+
+                sender.printStatus();
 
                 lastStatsTime = System.currentTimeMillis();
                 lastReportedRecordCount = recordCount;
@@ -112,101 +226,113 @@ public class MediationDataGenerator {
             }
         }
 
-        sendRemainingMessages();
+        sender.drain();
+
+        if (eventClockPublisher != null) {
+            eventClockPublisher.close();
+        }
+
         printGeneralStatus();
+        sender.printStatus();
     }
 
-    private void mainSendingPart(MediationMessage nextCdr) {
-        // Now decide what to do. We could just send the CDR, but where's the fun in
-        // that?
-        if (config.shouldGenerateMissingRecord()) {
-            // Let's just pretend this CDR never happened...
-            missingCount++;
-        } else if (config.shouldGenerateDuplicatedRecord()) {
-
-            // let's send it. Lots of times...
-            for (int i = 0; i < 2 + ThreadLocalRandom.current().nextInt(10); i++) {
-                sender.sendData(nextCdr);
+    /**
+     * Wait a little while for our workers to finish.
+     *
+     * @return true if any of them are still running.
+     */
+    private static boolean waitForWorkers(List<Thread> workerThreads) {
+        for (Thread workerThread : workerThreads) {
+            if (workerThread.isAlive()) {
+                try {
+                    workerThread.join(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+
+                return true;
             }
-
-            // Also add it to a list of dup messages to send again, later...
-            dupMessages.add(nextCdr);
-            dupCount++;
-
-        } else if (config.shouldGenerateLateRecord()) {
-            // Add it to a list of late messages to send later...
-            lateMessages.add(nextCdr);
-            lateCount++;
-
-        } else if (config.shouldGenerateWrongDateRecord()) {
-            // Set date to Jan 1, 1970, and then send it...
-            nextCdr.setRecordStartUTC(0);
-            sender.sendData(nextCdr);
-            dateis1970Count++;
-        } else {
-            sender.sendData(nextCdr);
-            normalCDRCount++;
         }
+
+        return false;
     }
 
     private static boolean shouldPrintStatus(long laststatstime) {
         return laststatstime + 10000 < System.currentTimeMillis();
     }
 
-    private boolean shouldFlushLateAndDupMessages() {
-        return lateMessages.size() > 100000 || dupMessages.size() > 100000;
+    /**
+     * @return The time according to our slowest worker, or 0 if they haven't started.
+     */
+    private long getEventTime() {
+        return workers.stream().mapToLong(MediationGeneratorWorker::getEventTime).min().orElse(0);
+    }
+
+    private double getTargetRate() {
+        return workers.stream().mapToDouble(MediationGeneratorWorker::getTargetRate).sum();
+    }
+
+    private long getActiveSessionCount() {
+        return workers.stream().mapToLong(MediationGeneratorWorker::getActiveSessionCount).sum();
     }
 
     /**
      * Print general status info
      */
     private void printGeneralStatus() {
-        LOGGER.info("normalCDRCount = " + normalCDRCount);
-        LOGGER.info("missingCount = " + missingCount);
-        LOGGER.info("dupCount = " + dupCount);
-        LOGGER.info("lateCount = " + lateCount);
-        LOGGER.info("dateis1970Count = " + dateis1970Count);
+        LOGGER.info("normalCDRCount = " + metrics.getNormalCDRCount());
+        LOGGER.info("missingCount = " + metrics.getMissingCount());
+        LOGGER.info("dupCount = " + metrics.getDupCount());
+        LOGGER.info("lateCount = " + metrics.getLateCount());
+        LOGGER.info("dateis1970Count = " + metrics.getDateis1970Count());
+        LOGGER.info("replayedCount = " + metrics.getReplayedCount());
+        LOGGER.info("evictedCount = " + metrics.getEvictedCount());
     }
 
     /**
-     * Send any messages in the late or duplicates queues. Note this is not rate
-     * limited, and may cause a latency spike
+     * Build a page of Prometheus metrics. Called by our MetricsHttpServer's thread.
      */
-    private void sendRemainingMessages() {
-        // Send late messages
-        LOGGER.info("sending " + lateMessages.size() + " late messages");
+    private void writeMetrics(PrometheusWriter writer) {
+        metrics.writeMetrics(writer);
 
-        while (!lateMessages.isEmpty()) {
-            MediationMessage lateCDR = lateMessages.remove(0);
-            sender.sendData(lateCDR);
+        if (clock.isPaced()) {
+            writer.gauge("mediation_generator_target_send_rate", "CDRs per second the load profile is asking for",
+                    getTargetRate());
         }
 
-        // Send dup messages
-        LOGGER.info("sending " + dupMessages.size() + " duplicate messages");
-        while (!dupMessages.isEmpty()) {
-            MediationMessage dupCDR = dupMessages.remove(0);
-            sender.sendData(dupCDR);
+        writer.gauge("mediation_generator_active_sessions", "Sessions the generator is running",
+                getActiveSessionCount());
+
+        String queueDepth = "mediation_generator_queue_depth";
+        String queueDepthHelp = "Late and duplicate CDRs waiting to be sent again";
+        writer.gauge(queueDepth, queueDepthHelp,
+                workers.stream().mapToLong(MediationGeneratorWorker::getLateQueueSize).sum(), "queue", "late");
+        writer.gauge(queueDepth, queueDepthHelp,
+                workers.stream().mapToLong(MediationGeneratorWorker::getDupQueueSize).sum(), "queue", "dup");
+
+        if (config.isPooled()) {
+            writer.gauge("mediation_generator_pooled_messages", "Messages created by our pools",
+                    workers.stream().mapToLong(MediationGeneratorWorker::getPooledMessageCount).sum());
         }
-    }
 
-    /**
-     * @return A random website.
-     */
-    private String getRandomDestinationId() {
-        if (ThreadLocalRandom.current().nextInt(10) == 0) {
-            return "www.nytimes.com";
+        if (clock.isSimulated()) {
+            writer.gauge("mediation_generator_event_time_seconds", "Time according to our simulated clock",
+                    getEventTime() / 1000.0);
         }
 
-        if (ThreadLocalRandom.current().nextInt(10) == 0) {
-            return "www.cnn.com";
+        if (!replayers.isEmpty()) {
+            writer.counter("mediation_generator_capture_replayed_total", "Captured CDRs replayed",
+                    replayers.stream().mapToLong(CdrCaptureReplayer::getRecordCount).sum());
         }
 
-        return "www.voltdb.com";
+        sender.writeMetrics(writer);
     }
 
     public static void main(String[] args) {
         DataGeneratorConfig generatorConfig = new DataGeneratorConfig();
         CommandLine commandLine = new CommandLine(generatorConfig);
+        commandLine.setCaseInsensitiveEnumValuesAllowed(true);
 
         CommandLine.ParseResult parseResult = commandLine.parseArgs(args);
         if (parseResult.isUsageHelpRequested()) {
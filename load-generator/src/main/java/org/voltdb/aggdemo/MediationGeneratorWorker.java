@@ -0,0 +1,343 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.voltdb.aggdemo.capture.CdrCaptureFormat;
+import org.voltdb.aggdemo.capture.CdrCaptureWriter;
+import org.voltdb.aggdemo.connection.Connection;
+import org.voltdb.aggdemo.pacing.LoadProfile;
+import org.voltdb.aggdemo.pacing.Pacer;
+
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One shard of the load generator. Each worker owns its own slice of calling
+ * numbers, its own sessions, its own late and duplicate queues and its own
+ * share of the overall transaction rate, so workers never share state. Only
+ * the Connection, which is thread safe, is shared.
+ */
+public class MediationGeneratorWorker implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MediationGeneratorWorker.class);
+
+    // Free messages we keep over and above what the late and dup queues can hold...
+    private static final int POOL_SLACK = 50000;
+
+    private final DataGeneratorConfig config;
+    private final GeneratorClock clock;
+    private final Connection sender;
+    private final int workerId;
+    private final int workerCount;
+    private final CallingNumberChooser callingNumberChooser;
+    private final long endTime;
+    private final Pacer pacer;
+
+    // Counters are shared with the other workers...
+    private final GeneratorMetrics metrics;
+
+    // Gauges are only ever written by the worker thread, but are read by the
+    // status reporter...
+    private volatile int activeSessionCount;
+    private volatile long eventTime;
+
+    private final MediationMessagePool messagePool;
+
+    private final SessionTable sessionTable;
+    private final ReplayScheduler replayScheduler;
+
+    // Everything we send, if we've been asked to keep a copy...
+    private final CdrCaptureWriter captureWriter;
+
+    // When, according to our schedule, the current record should have been sent.
+    // Used for coordinated omission free latency measurement.
+    private long intendedSendNanos;
+
+    // How many records we've made room for, and how much event time each takes up
+    // with an UNPACED clock...
+    private long permitCount;
+    private final double millisPerPermit;
+
+    /**
+     * Create a worker for one slice of our calling numbers.
+     *
+     * @param config      - Generator config
+     * @param clock       - Where we get the time from
+     * @param loadProfile - How our send rate changes over time
+     * @param metrics     - Counters shared by all workers
+     * @param sender      - Shared, thread safe, Connection
+     * @param workerId    - Which slice we are, starting at zero
+     * @param workerCount - How many slices there are
+     * @param endTime     - When to stop, in millis according to 'clock'
+     */
+    public MediationGeneratorWorker(DataGeneratorConfig config, GeneratorClock clock, LoadProfile loadProfile,
+                                    GeneratorMetrics metrics, Connection sender, int workerId, int workerCount, long endTime) {
+        this.config = config;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.sender = sender;
+        this.workerId = workerId;
+        this.workerCount = workerCount;
+        this.endTime = endTime;
+
+        long userCount = config.getUserCount();
+        int sliceStart = (int) (userCount * workerId / workerCount);
+        int sliceEnd = (int) (userCount * (workerId + 1) / workerCount);
+
+        this.callingNumberChooser = config.createCallingNumberChooser(config.getOffset() + sliceStart,
+                sliceEnd - sliceStart);
+        this.sessionTable = new SessionTable(config.getOffset() + sliceStart, sliceEnd - sliceStart,
+                config.getDestinationMix(), config.getSessionLengthDistribution(), config.getMeanSessionLength());
+
+        this.messagePool = config.isPooled() ? new MediationMessagePool((2 * config.getReplayQueueSize()) + POOL_SLACK) : null;
+
+        double replaysPerSecond = config.getReplayTransactionsPerSecond();
+        if (replaysPerSecond > 0) {
+            replaysPerSecond = replaysPerSecond / workerCount;
+        }
+
+        this.replayScheduler = new ReplayScheduler(config.getReplayQueueSize(), config.getLateDelayMs(),
+                config.getDupDelayMs(), replaysPerSecond);
+
+        double permitsPerSecond = (double) config.getTransactionsPerSecond() / workerCount;
+        this.millisPerPermit = TimeUnit.SECONDS.toMillis(1) / permitsPerSecond;
+        this.pacer = new Pacer(permitsPerSecond, loadProfile, config.getPacerBatch());
+
+        this.captureWriter = config.getCaptureDir() == null ? null
+                : new CdrCaptureWriter(Paths.get(config.getCaptureDir()), workerId,
+                CdrCaptureWriter.DEFAULT_SEGMENT_SIZE, clock.getStartMillis());
+    }
+
+    @Override
+    public void run() {
+        try {
+            generate();
+        } finally {
+            if (captureWriter != null) {
+                captureWriter.close();
+                LOGGER.info("Worker " + workerId + " captured " + captureWriter.getRecordCount() + " records");
+            }
+        }
+    }
+
+    private void generate() {
+        // How many sessions we've started, which goes into their ids...
+        long sessionCount = 0;
+
+        while (true) {
+            if (clock.isPaced()) {
+                intendedSendNanos = pacer.acquire();
+            } else {
+                intendedSendNanos = System.nanoTime();
+            }
+
+            // One clock read per record...
+            long now = nextTime();
+            if (now >= endTime) {
+                break;
+            }
+
+            // Late and duplicate records that are due share our rate budget...
+            MediationMessage dueMessage = replayScheduler.nextDue(now);
+            if (dueMessage != null) {
+                sendAndRelease(dueMessage, now);
+                metrics.replayedCount.increment();
+                continue;
+            }
+
+            metrics.recordCount.increment();
+            int randomCallingNumber = callingNumberChooser.next();
+
+            if (!sessionTable.hasSession(randomCallingNumber)) {
+                // Session ids are spread uniformly, however skewed calling numbers are. They're
+                // striped by worker, so two workers never hand out the same one, and with one
+                // worker they're what a single threaded generator would pick...
+                long sessionId = ((callingNumberChooser.nextUniform() + sessionCount++) * workerCount) + workerId;
+                sessionTable.startSession(randomCallingNumber, sessionId, now);
+
+                activeSessionCount = sessionTable.getActiveSessionCount();
+            }
+
+            MediationMessage nextCdr = sessionTable.getNextCdr(randomCallingNumber, newMessage(), now);
+            mainSendingPart(nextCdr, now);
+
+            // We're done with it. If it's been queued as late or dup the queue has its
+            // own reference...
+            nextCdr.release();
+        }
+
+        sendRemainingMessages();
+    }
+
+    void mainSendingPart(MediationMessage nextCdr, long now) {
+        // Now decide what to do. We could just send the CDR, but where's the fun in
+        // that?
+        if (config.shouldGenerateMissingRecord()) {
+            // Let's just pretend this CDR never happened...
+            metrics.missingCount.increment();
+        } else if (config.shouldGenerateDuplicatedRecord()) {
+
+            // let's send it. Lots of times...
+            for (int i = 0; i < 2 + ThreadLocalRandom.current().nextInt(10); i++) {
+                send(nextCdr, CdrCaptureFormat.KIND_DUP, 0);
+            }
+
+            // Also queue it to send again, later...
+            nextCdr.retain();
+            sendEvicted(replayScheduler.parkDup(nextCdr, now), now);
+            metrics.dupCount.increment();
+
+        } else if (config.shouldGenerateLateRecord()) {
+            // Queue it to send later...
+            nextCdr.retain();
+            sendEvicted(replayScheduler.parkLate(nextCdr, now), now);
+            metrics.lateCount.increment();
+
+        } else if (config.shouldGenerateWrongDateRecord()) {
+            // Set date to Jan 1, 1970, and then send it...
+            nextCdr.setRecordStartUTC(0);
+            send(nextCdr, CdrCaptureFormat.KIND_DATE_IS_1970, 0);
+            metrics.dateis1970Count.increment();
+        } else {
+            send(nextCdr, CdrCaptureFormat.KIND_NORMAL, 0);
+            metrics.normalCDRCount.increment();
+        }
+    }
+
+    /**
+     * Send a message that had to leave a full late or dup queue before it was due.
+     */
+    private void sendEvicted(MediationMessage evictedMessage, long now) {
+        if (evictedMessage != null) {
+            sendAndRelease(evictedMessage, now);
+            metrics.evictedCount.increment();
+        }
+    }
+
+    /**
+     * Send a message that has come out of our ReplayScheduler.
+     */
+    private void sendAndRelease(MediationMessage message, long now) {
+        byte kind = replayScheduler.wasLastPolledLate() ? CdrCaptureFormat.KIND_LATE_REPLAY
+                : CdrCaptureFormat.KIND_DUP_REPLAY;
+
+        send(message, kind, now - replayScheduler.getLastPolledParkTime());
+        message.release();
+    }
+
+    /**
+     * Send a message, and capture it if we're doing that.
+     *
+     * @param kind    - one of the CdrCaptureFormat.KIND_ constants
+     * @param delayMs - how long it was held back before being sent
+     */
+    private void send(MediationMessage message, byte kind, long delayMs) {
+        sender.sendData(message, intendedSendNanos);
+        metrics.sentCount.increment();
+
+        if (captureWriter != null) {
+            captureWriter.write(kind, delayMs, message);
+        }
+    }
+
+    /**
+     * Send any messages still in the late or duplicates queues at the end of a
+     * run. These are sent without waiting for them to be due, but still use our
+     * pacer so they don't cause a latency spike.
+     */
+    private void sendRemainingMessages() {
+        LOGGER.info("Worker " + workerId + " sending " + replayScheduler.getLateQueueSize() + " late messages and "
+                + replayScheduler.getDupQueueSize() + " duplicate messages");
+
+        while (!replayScheduler.isEmpty()) {
+            intendedSendNanos = clock.isPaced() ? pacer.acquire() : System.nanoTime();
+            sendAndRelease(replayScheduler.pollAny(), nextTime());
+            metrics.replayedCount.increment();
+        }
+    }
+
+    /**
+     * Use up a permit.
+     *
+     * @return The time, according to our clock.
+     */
+    private long nextTime() {
+        eventTime = clock.now(permitCount++, millisPerPermit);
+        return eventTime;
+    }
+
+    /**
+     * @return An empty message, recycled if we are pooling them.
+     */
+    private MediationMessage newMessage() {
+        if (messagePool == null) {
+            return new MediationMessage(null);
+        }
+
+        return messagePool.acquire();
+    }
+
+    public int getWorkerId() {
+        return workerId;
+    }
+
+    public int getReplayQueueDepth() {
+        return getLateQueueSize() + getDupQueueSize();
+    }
+
+    public int getLateQueueSize() {
+        return replayScheduler.getLateQueueSize();
+    }
+
+    public int getDupQueueSize() {
+        return replayScheduler.getDupQueueSize();
+    }
+
+    /**
+     * @return How fast we're trying to send, in records per second.
+     */
+    public double getTargetRate() {
+        return clock.isPaced() ? pacer.getCurrentPermitsPerSecond() : 0;
+    }
+
+    public int getActiveSessionCount() {
+        return activeSessionCount;
+    }
+
+    /**
+     * @return What our clock said when we last looked at it, or 0 if we haven't started.
+     */
+    public long getEventTime() {
+        return eventTime;
+    }
+
+    /**
+     * @return How many messages our pool has created, or -1 if we aren't pooling.
+     */
+    public long getPooledMessageCount() {
+        return messagePool == null ? -1 : messagePool.getCreatedCount();
+    }
+}
@@ -24,27 +24,96 @@ package org.voltdb.aggdemo;
 
 import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * A class representing a message generated by network devices in
- * our mediation demo
+ * our mediation demo.
+ * <p>
+ * Messages can be recycled via a MediationMessagePool. A pooled message starts
+ * with one reference, owned by whoever acquired it. Anything else that needs to
+ * hang on to it after the current call returns, such as a late or duplicate
+ * queue or an asynchronous Connection, must call retain() and later release().
+ * The message goes back to its pool when the last reference is released.
+ * <p>
+ * A calling number can be set as a number, in which case the "Num..." String
+ * is only built if someone asks for it with getCallingNumber(). Encoders that
+ * can write the number directly use getCallingNumberValue() instead.
  */
 public class MediationMessage {
 
+    public static final String CALLING_NUMBER_PREFIX = "Num";
+
+    /**
+     * Returned by getCallingNumberValue() if we don't have a numeric calling number.
+     */
+    public static final long NO_CALLING_NUMBER_VALUE = Long.MIN_VALUE;
+
+    private static final AtomicIntegerFieldUpdater<MediationMessage> REF_COUNT_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(MediationMessage.class, "refCount");
+
     private long sessionId;
     private long sessionStartUTC;
     private long seqno;
     private String callingNumber;
+    private long callingNumberValue = NO_CALLING_NUMBER_VALUE;
     private String destination;
     private String eventType;
     private long recordStartUTC;
     private long recordUsage;
 
+    private final transient MediationMessagePool pool;
+    private transient volatile int refCount = 1;
+
     public MediationMessage(long sessionId, long sessionStartUTC, long seqno, String callingNumber, String destination) {
+        this(null);
+        reset(sessionId, sessionStartUTC, seqno, callingNumber, destination);
+    }
+
+    /**
+     * Create an empty message that will be returned to 'pool' when released.
+     */
+    MediationMessage(MediationMessagePool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Overwrite this message's contents so it can be reused.
+     */
+    public void reset(long sessionId, long sessionStartUTC, long seqno, String callingNumber, String destination) {
         this.sessionId = sessionId;
         this.sessionStartUTC = sessionStartUTC;
         this.seqno = seqno;
         this.callingNumber = callingNumber;
+        this.callingNumberValue = NO_CALLING_NUMBER_VALUE;
         this.destination = destination;
+        this.eventType = null;
+        this.recordStartUTC = 0;
+        this.recordUsage = 0;
+    }
+
+    /**
+     * Note that someone else needs this message after the current call returns.
+     */
+    public void retain() {
+        REF_COUNT_UPDATER.incrementAndGet(this);
+    }
+
+    /**
+     * Give up a reference. When the last one goes the message is recycled, if it
+     * came from a pool.
+     */
+    public void release() {
+        if (REF_COUNT_UPDATER.decrementAndGet(this) == 0 && pool != null) {
+            pool.recycle(this);
+        }
+    }
+
+    /**
+     * Called by our pool when we are handed out again.
+     */
+    void resetRefCount() {
+        REF_COUNT_UPDATER.set(this, 1);
     }
 
     public long getSessionId() {
@@ -60,9 +129,22 @@ public class MediationMessage {
     }
 
     public String getCallingNumber() {
+        if (callingNumber == null && callingNumberValue != NO_CALLING_NUMBER_VALUE) {
+            // Racing threads may both build this, but they'll build the same thing...
+            callingNumber = CALLING_NUMBER_PREFIX + callingNumberValue;
+        }
+
         return callingNumber;
     }
 
+    /**
+     * @return Our calling number, without CALLING_NUMBER_PREFIX, if it was set as
+     * a number. Otherwise NO_CALLING_NUMBER_VALUE.
+     */
+    public long getCallingNumberValue() {
+        return callingNumberValue;
+    }
+
     public String getDestination() {
         return destination;
     }
@@ -93,6 +175,16 @@ public class MediationMessage {
 
     public void setCallingNumber(String callingNumber) {
         this.callingNumber = callingNumber;
+        this.callingNumberValue = NO_CALLING_NUMBER_VALUE;
+    }
+
+    /**
+     * Set our calling number to CALLING_NUMBER_PREFIX + callingNumberValue,
+     * without building the String until someone needs it.
+     */
+    public void setCallingNumber(long callingNumberValue) {
+        this.callingNumber = null;
+        this.callingNumberValue = callingNumberValue;
     }
 
     @Override
@@ -0,0 +1,81 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of reusable MediationMessage objects. Messages are acquired by a single
+ * generator worker, but may be released from any thread, e.g. a Connection's
+ * callback thread. Once the pool has grown to cover the messages in flight and
+ * in the late and duplicate queues it stops allocating.
+ */
+public class MediationMessagePool {
+
+    private final ArrayBlockingQueue<MediationMessage> freeMessages;
+
+    // Only written by the thread that acquires messages...
+    private volatile long createdCount;
+
+    /**
+     * @param capacity - How many free messages we keep. Messages released when the
+     *                 pool is full are left for the garbage collector.
+     */
+    public MediationMessagePool(int capacity) {
+        freeMessages = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return An empty message with one reference, owned by the caller.
+     */
+    public MediationMessage acquire() {
+        MediationMessage message = freeMessages.poll();
+
+        if (message == null) {
+            message = new MediationMessage(this);
+            createdCount++;
+        } else {
+            message.resetRefCount();
+        }
+
+        return message;
+    }
+
+    /**
+     * Called by MediationMessage when its last reference is released.
+     */
+    void recycle(MediationMessage message) {
+        freeMessages.offer(message);
+    }
+
+    /**
+     * @return How many messages this pool has ever had to create.
+     */
+    public long getCreatedCount() {
+        return createdCount;
+    }
+
+    public int getFreeCount() {
+        return freeMessages.size();
+    }
+}
@@ -0,0 +1,107 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo;
+
+/**
+ * A bounded FIFO of MediationMessages, each with the time at which it is due to
+ * be sent. Because every message in a queue is delayed by the same amount, due
+ * times are ascending and only the head ever needs checking. Not thread safe -
+ * each generator worker has its own.
+ */
+public class MediationMessageRingBuffer {
+
+    private final MediationMessage[] messages;
+    private final long[] dueTimes;
+
+    private int head;
+    private int size;
+
+    public MediationMessageRingBuffer(int capacity) {
+        messages = new MediationMessage[capacity];
+        dueTimes = new long[capacity];
+    }
+
+    /**
+     * Add a message to the end of the queue.
+     *
+     * @return false if the queue is full.
+     */
+    public boolean offer(MediationMessage message, long dueTime) {
+        if (size == messages.length) {
+            return false;
+        }
+
+        int tail = (head + size) % messages.length;
+        messages[tail] = message;
+        dueTimes[tail] = dueTime;
+        size++;
+
+        return true;
+    }
+
+    /**
+     * @return The oldest message, or null if we are empty.
+     */
+    public MediationMessage poll() {
+        if (size == 0) {
+            return null;
+        }
+
+        MediationMessage message = messages[head];
+        messages[head] = null;
+        head = (head + 1) % messages.length;
+        size--;
+
+        return message;
+    }
+
+    /**
+     * @return true if the oldest message is due at or before 'now'
+     */
+    public boolean isHeadDue(long now) {
+        return size > 0 && dueTimes[head] <= now;
+    }
+
+    /**
+     * @return When the oldest message is due, or Long.MAX_VALUE if we are empty
+     */
+    public long getHeadDueTime() {
+        return size == 0 ? Long.MAX_VALUE : dueTimes[head];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == messages.length;
+    }
+
+    public int capacity() {
+        return messages.length;
+    }
+}
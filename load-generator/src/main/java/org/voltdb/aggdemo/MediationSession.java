@@ -41,58 +41,111 @@ public class MediationSession {
     private int seqno;
     private int maxSeqno;
 
+    private final SessionLengthDistribution sessionLengthDistribution;
+    private final int meanSessionLength;
+
     /**
-     * Create a simulated device that will produce different kinds of CDRS...
+     * Create a simulated device that will produce different kinds of CDRS. Every
+     * session runs to MAX_POSSIBLE_SEQNO.
      *
      * @param callingNumber - Our device ID
      * @param destination   - A website the device is speaking to
      * @param sessionid     - A Unique ID
      */
     public MediationSession(String callingNumber, String destination, long sessionid) {
+        this(callingNumber, destination, sessionid, SessionLengthDistribution.FIXED, MAX_POSSIBLE_SEQNO + 1,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Create a simulated device whose sessions vary in length.
+     *
+     * @param callingNumber             - Our device ID
+     * @param destination               - A website the device is speaking to
+     * @param sessionid                 - A Unique ID
+     * @param sessionLengthDistribution - How long each session is
+     * @param meanSessionLength         - Average session length, for distributions that use it
+     * @param now                       - current time in millis
+     */
+    public MediationSession(String callingNumber, String destination, long sessionid,
+                            SessionLengthDistribution sessionLengthDistribution, int meanSessionLength, long now) {
         this.destination = destination;
         this.sessionid = sessionid;
         this.callingNumber = callingNumber;
+        this.sessionLengthDistribution = sessionLengthDistribution;
+        this.meanSessionLength = meanSessionLength;
 
         this.seqno = 0;
-        this.sessionStartUTC = System.currentTimeMillis();
-        this.maxSeqno = ThreadLocalRandom.current().nextInt(MAX_POSSIBLE_SEQNO);
+        this.sessionStartUTC = now;
+        this.maxSeqno = sessionLengthDistribution.nextLastSeqno(meanSessionLength);
     }
 
     /**
      * Calling this method advances the state of this session. A session state
      * begins with SESSION_START, then has an arbitrary number of
-     * SESSION_INTERMEDIATE's and finally a SESSION_END. Each time we are called we
+     * SESSION_INTERMEDIATE's and finally a SESSION_END, whose seqno depends on our
+     * SessionLengthDistribution. Each time we are called we
      * increment seqno. Just to be difficult the returned CDR only has the
      * callingNumber when it's a SESSION_START
      *
      * @return A new, unique, CDR
      */
     public MediationMessage getNextCdr() {
-        MediationMessage newCDR = new MediationMessage(sessionid, sessionStartUTC, seqno, null, destination);
-        newCDR.setRecordStartUTC(System.currentTimeMillis());
-
-        switch (seqno) {
-            case 0:
-                // Note that this is the *only* time we identify the phone
-                newCDR.setCallingNumber(callingNumber);
-                newCDR.setEventType(SESSION_START);
-                newCDR.setRecordUsage(ThreadLocalRandom.current().nextInt(100000));
-                seqno++;
-                break;
-
-            case MAX_POSSIBLE_SEQNO:
-                newCDR.setEventType(SESSION_END);
-                newCDR.setRecordUsage(ThreadLocalRandom.current().nextInt(100));
-                sessionStartUTC = System.currentTimeMillis();
-                seqno = 0;
-                break;
-
-            default:
-                newCDR.setEventType(SESSION_INTERMEDIATE);
-                newCDR.setRecordUsage(ThreadLocalRandom.current().nextInt(100000));
-                seqno++;
+        return getNextCdr(new MediationMessage(null), System.currentTimeMillis());
+    }
+
+    /**
+     * Same as getNextCdr(), but fills in a message we've been given, such as one
+     * from a MediationMessagePool, and uses a time the caller already knows
+     * instead of reading the clock again.
+     *
+     * @param newCDR - message to overwrite
+     * @param now    - current time in millis
+     * @return newCDR
+     */
+    public MediationMessage getNextCdr(MediationMessage newCDR, long now) {
+        newCDR.reset(sessionid, sessionStartUTC, seqno, null, destination);
+        newCDR.setRecordStartUTC(now);
+
+        if (seqno == 0) {
+            // Note that this is the *only* time we identify the phone
+            newCDR.setCallingNumber(callingNumber);
+        }
+
+        if (fillCdr(newCDR, seqno, maxSeqno)) {
+            sessionStartUTC = now;
+            seqno = 0;
+            maxSeqno = sessionLengthDistribution.nextLastSeqno(meanSessionLength);
+        } else {
+            seqno++;
         }
 
         return newCDR;
     }
+
+    /**
+     * Set the event type and usage of the CDR with 'seqno' in a session whose
+     * SESSION_END is 'lastSeqno'. Shared with SessionTable.
+     *
+     * @return true if this CDR ends the session.
+     */
+    static boolean fillCdr(MediationMessage newCDR, int seqno, int lastSeqno) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        if (seqno == 0) {
+            newCDR.setEventType(SESSION_START);
+            newCDR.setRecordUsage(random.nextInt(100000));
+            return false;
+        }
+
+        if (seqno >= lastSeqno) {
+            newCDR.setEventType(SESSION_END);
+            newCDR.setRecordUsage(random.nextInt(100));
+            return true;
+        }
+
+        newCDR.setEventType(SESSION_INTERMEDIATE);
+        newCDR.setRecordUsage(random.nextInt(100000));
+        return false;
+    }
 }
@@ -0,0 +1,192 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo;
+
+/**
+ * Decides when late and duplicate records get sent again. Records are parked
+ * for a fixed delay and then trickled back into the normal stream, using the
+ * same rate budget as new records and optionally capped at a maximum replay
+ * rate. This gives a steady late arrival profile instead of a burst every time
+ * a queue fills up. Not thread safe - each generator worker has its own.
+ */
+public class ReplayScheduler {
+
+    private final MediationMessageRingBuffer lateMessages;
+    private final MediationMessageRingBuffer dupMessages;
+    private final long lateDelayMs;
+    private final long dupDelayMs;
+
+    // Token bucket for our replay rate. A negative rate means 'no cap'.
+    private final double replaysPerMs;
+    private final double maxTokens;
+    private double tokens;
+    private long lastRefillTime;
+
+    // What the last record we handed out was, for anyone capturing our output...
+    private boolean lastPolledWasLate;
+    private long lastPolledParkTime;
+
+    /**
+     * @param queueSize        - Size of each of the late and dup queues
+     * @param lateDelayMs      - How long late records are held back
+     * @param dupDelayMs       - How long duplicate records are held back before being sent again
+     * @param replaysPerSecond - Most late and dup records we send per second, or -1 for no limit
+     */
+    public ReplayScheduler(int queueSize, long lateDelayMs, long dupDelayMs, double replaysPerSecond) {
+        this.lateMessages = new MediationMessageRingBuffer(queueSize);
+        this.dupMessages = new MediationMessageRingBuffer(queueSize);
+        this.lateDelayMs = lateDelayMs;
+        this.dupDelayMs = dupDelayMs;
+        this.replaysPerMs = replaysPerSecond / 1000;
+
+        // Allow up to 10ms of burst, but always at least one record...
+        this.maxTokens = Math.max(1, replaysPerMs * 10);
+    }
+
+    /**
+     * Park a late record. The caller's reference passes to us.
+     *
+     * @return null, or a record that had to be let out early because the queue was
+     * full. The caller must send and release it.
+     */
+    public MediationMessage parkLate(MediationMessage message, long now) {
+        return park(lateMessages, message, now + lateDelayMs);
+    }
+
+    /**
+     * Park a duplicate record. The caller's reference passes to us.
+     *
+     * @return null, or a record that had to be let out early because the queue was
+     * full. The caller must send and release it.
+     */
+    public MediationMessage parkDup(MediationMessage message, long now) {
+        return park(dupMessages, message, now + dupDelayMs);
+    }
+
+    private MediationMessage park(MediationMessageRingBuffer queue, MediationMessage message, long dueTime) {
+        MediationMessage evicted = null;
+
+        if (queue.isFull()) {
+            evicted = pollFrom(queue);
+        }
+
+        queue.offer(message, dueTime);
+        return evicted;
+    }
+
+    private MediationMessage pollFrom(MediationMessageRingBuffer queue) {
+        lastPolledWasLate = queue == lateMessages;
+        lastPolledParkTime = queue.getHeadDueTime() - (lastPolledWasLate ? lateDelayMs : dupDelayMs);
+
+        return queue.poll();
+    }
+
+    /**
+     * Called once per rate limiter permit.
+     *
+     * @return A record that is due and within our replay budget, or null if the
+     * permit should be used for a new record. The caller must send and release it.
+     */
+    public MediationMessage nextDue(long now) {
+        boolean lateIsDue = lateMessages.isHeadDue(now);
+        boolean dupIsDue = dupMessages.isHeadDue(now);
+
+        if (!lateIsDue && !dupIsDue) {
+            return null;
+        }
+
+        if (!tryTakeToken(now)) {
+            return null;
+        }
+
+        // Whichever has been waiting longest goes first...
+        if (lateIsDue && (!dupIsDue || lateMessages.getHeadDueTime() <= dupMessages.getHeadDueTime())) {
+            return pollFrom(lateMessages);
+        }
+
+        return pollFrom(dupMessages);
+    }
+
+    /**
+     * Used at the end of a run.
+     *
+     * @return The next record, whether or not it's due, or null if we are empty.
+     */
+    public MediationMessage pollAny() {
+        if (lateMessages.getHeadDueTime() <= dupMessages.getHeadDueTime()) {
+            return pollFrom(lateMessages);
+        }
+
+        return pollFrom(dupMessages);
+    }
+
+    private boolean tryTakeToken(long now) {
+        if (replaysPerMs < 0) {
+            return true;
+        }
+
+        if (lastRefillTime == 0) {
+            lastRefillTime = now;
+            tokens = maxTokens;
+        }
+
+        if (now > lastRefillTime) {
+            tokens = Math.min(maxTokens, tokens + ((now - lastRefillTime) * replaysPerMs));
+            lastRefillTime = now;
+        }
+
+        if (tokens >= 1) {
+            tokens--;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if the last record we handed out, from any method, was a late
+     * one, false if it was a duplicate.
+     */
+    public boolean wasLastPolledLate() {
+        return lastPolledWasLate;
+    }
+
+    /**
+     * @return When the last record we handed out was parked, in millis.
+     */
+    public long getLastPolledParkTime() {
+        return lastPolledParkTime;
+    }
+
+    public int getLateQueueSize() {
+        return lateMessages.size();
+    }
+
+    public int getDupQueueSize() {
+        return dupMessages.size();
+    }
+
+    public boolean isEmpty() {
+        return lateMessages.isEmpty() && dupMessages.isEmpty();
+    }
+}
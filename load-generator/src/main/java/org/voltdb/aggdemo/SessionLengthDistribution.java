@@ -0,0 +1,74 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How many CDRs a session produces before it ends. Lengths are always between
+ * 2, a start and an end, and MediationSession.MAX_POSSIBLE_SEQNO + 1.
+ */
+public enum SessionLengthDistribution {
+
+    /**
+     * Every session runs to MAX_POSSIBLE_SEQNO. This is what we always used to do.
+     */
+    FIXED {
+        @Override
+        int nextLastSeqno(int meanLength) {
+            return MediationSession.MAX_POSSIBLE_SEQNO;
+        }
+    },
+
+    /**
+     * Any length is equally likely.
+     */
+    UNIFORM {
+        @Override
+        int nextLastSeqno(int meanLength) {
+            return 1 + ThreadLocalRandom.current().nextInt(MediationSession.MAX_POSSIBLE_SEQNO);
+        }
+    },
+
+    /**
+     * Mostly short sessions with a long tail, averaging meanLength CDRs. Sessions
+     * that would be longer than MAX_POSSIBLE_SEQNO allows are cut short.
+     */
+    GEOMETRIC {
+        @Override
+        int nextLastSeqno(int meanLength) {
+            // Each CDR after the first has a 1 in (meanLength - 1) chance of being the last...
+            double endProbability = 1.0 / Math.max(1, meanLength - 1);
+            double u = 1 - ThreadLocalRandom.current().nextDouble();
+            long extraCdrs = endProbability >= 1 ? 0 : (long) (Math.log(u) / Math.log(1 - endProbability));
+
+            return (int) Math.min(MediationSession.MAX_POSSIBLE_SEQNO, 1 + extraCdrs);
+        }
+    };
+
+    /**
+     * @param meanLength - Average session length, for distributions that use it
+     * @return The seqno of the SESSION_END record of the next session
+     */
+    abstract int nextLastSeqno(int meanLength);
+}
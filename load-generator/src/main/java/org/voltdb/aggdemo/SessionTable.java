@@ -0,0 +1,136 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo;
+
+/**
+ * The state of every session for a contiguous range of calling numbers, held in
+ * flat primitive arrays indexed by calling number. There is no per session
+ * object and no String key, so looking up a session is an array index, and the
+ * table costs the same 21 bytes per calling number however many sessions are
+ * active. That keeps generator memory flat up to tens of millions of users.
+ * <p>
+ * Each calling number has at most one session at a time, which behaves exactly
+ * like a MediationSession. Not thread safe - each generator worker has its own
+ * for its own slice.
+ */
+public class SessionTable {
+
+    private final int firstCallingNumber;
+    private final DestinationMix destinationMix;
+    private final SessionLengthDistribution sessionLengthDistribution;
+    private final int meanSessionLength;
+
+    private final long[] sessionIds;
+    private final long[] sessionStartUTCs;
+    private final short[] seqnos;
+    // SESSION_END seqno of the current session, or 0 if there isn't one...
+    private final short[] lastSeqnos;
+    private final byte[] destinationIndexes;
+
+    private int activeSessionCount;
+
+    /**
+     * @param firstCallingNumber        - Lowest calling number we hold
+     * @param callingNumberCount        - How many calling numbers we hold
+     * @param destinationMix            - Where new sessions go. At most 256 destinations.
+     * @param sessionLengthDistribution - How long each session is
+     * @param meanSessionLength         - Average session length, for distributions that use it
+     */
+    public SessionTable(int firstCallingNumber, int callingNumberCount, DestinationMix destinationMix,
+                        SessionLengthDistribution sessionLengthDistribution, int meanSessionLength) {
+        if (destinationMix.size() > 256) {
+            throw new IllegalArgumentException("Can't have more than 256 destinations, got " + destinationMix.size());
+        }
+
+        this.firstCallingNumber = firstCallingNumber;
+        this.destinationMix = destinationMix;
+        this.sessionLengthDistribution = sessionLengthDistribution;
+        this.meanSessionLength = meanSessionLength;
+
+        sessionIds = new long[callingNumberCount];
+        sessionStartUTCs = new long[callingNumberCount];
+        seqnos = new short[callingNumberCount];
+        lastSeqnos = new short[callingNumberCount];
+        destinationIndexes = new byte[callingNumberCount];
+    }
+
+    public boolean hasSession(int callingNumber) {
+        return lastSeqnos[callingNumber - firstCallingNumber] != 0;
+    }
+
+    /**
+     * Give a calling number its session, talking to a destination from our mix.
+     * Once started, sessions are never removed - when one ends the next starts
+     * with the same sessionId, as MediationSession does.
+     */
+    public void startSession(int callingNumber, long sessionId, long now) {
+        int index = callingNumber - firstCallingNumber;
+
+        if (lastSeqnos[index] == 0) {
+            activeSessionCount++;
+        }
+
+        sessionIds[index] = sessionId;
+        sessionStartUTCs[index] = now;
+        seqnos[index] = 0;
+        lastSeqnos[index] = (short) sessionLengthDistribution.nextLastSeqno(meanSessionLength);
+        destinationIndexes[index] = (byte) destinationMix.nextIndex();
+    }
+
+    /**
+     * Advance a calling number's session. See MediationSession.getNextCdr(). The
+     * calling number is set as a number, so its String is only built if needed.
+     *
+     * @param callingNumber - Must have a session
+     * @param newCDR        - message to overwrite
+     * @param now           - current time in millis
+     * @return newCDR
+     */
+    public MediationMessage getNextCdr(int callingNumber, MediationMessage newCDR, long now) {
+        int index = callingNumber - firstCallingNumber;
+        int seqno = seqnos[index];
+
+        newCDR.reset(sessionIds[index], sessionStartUTCs[index], seqno, null,
+                destinationMix.get(destinationIndexes[index] & 0xFF));
+        newCDR.setRecordStartUTC(now);
+
+        if (seqno == 0) {
+            // Note that this is the *only* time we identify the phone
+            newCDR.setCallingNumber(callingNumber);
+        }
+
+        if (MediationSession.fillCdr(newCDR, seqno, lastSeqnos[index])) {
+            sessionStartUTCs[index] = now;
+            seqnos[index] = 0;
+            lastSeqnos[index] = (short) sessionLengthDistribution.nextLastSeqno(meanSessionLength);
+        } else {
+            seqnos[index] = (short) (seqno + 1);
+        }
+
+        return newCDR;
+    }
+
+    public int getActiveSessionCount() {
+        return activeSessionCount;
+    }
+}
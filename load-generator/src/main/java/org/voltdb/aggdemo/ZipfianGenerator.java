@@ -0,0 +1,88 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks ranks from 0 to itemCount - 1 so that rank 0 is the most popular, rank
+ * 1 the next most popular, and so on, following a Zipfian distribution. This is
+ * the constant time method from Gray et al, "Quickly Generating Billion-Record
+ * Synthetic Databases", as used by YCSB. Setting up costs one pass over
+ * itemCount; after that each pick is a handful of floating point operations.
+ */
+public class ZipfianGenerator {
+
+    private final int itemCount;
+    private final double theta;
+    private final double alpha;
+    private final double zetaN;
+    private final double eta;
+
+    /**
+     * @param itemCount - How many ranks there are
+     * @param theta     - Skew. 0 is uniform, 0.99 is YCSB's default. Must not be 1.
+     */
+    public ZipfianGenerator(int itemCount, double theta) {
+        if (theta < 0 || theta == 1) {
+            throw new IllegalArgumentException("theta must be >= 0 and not 1, got " + theta);
+        }
+
+        this.itemCount = itemCount;
+        this.theta = theta;
+        this.alpha = 1 / (1 - theta);
+        this.zetaN = zeta(itemCount, theta);
+
+        double zeta2 = zeta(2, theta);
+        this.eta = (1 - Math.pow(2.0 / itemCount, 1 - theta)) / (1 - (zeta2 / zetaN));
+    }
+
+    /**
+     * @return a rank between 0 and itemCount - 1
+     */
+    public int nextRank() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        double uz = u * zetaN;
+
+        if (uz < 1) {
+            return 0;
+        }
+
+        if (uz < 1 + Math.pow(0.5, theta)) {
+            return Math.min(1, itemCount - 1);
+        }
+
+        int rank = (int) (itemCount * Math.pow((eta * u) - eta + 1, alpha));
+        return Math.min(rank, itemCount - 1);
+    }
+
+    private static double zeta(int n, double theta) {
+        double sum = 0;
+
+        for (int i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+
+        return sum;
+    }
+}
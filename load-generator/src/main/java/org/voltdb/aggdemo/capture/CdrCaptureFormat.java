@@ -0,0 +1,79 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.capture;
+
+/**
+ * Layout of the segment files written by CdrCaptureWriter and read by
+ * CdrCaptureReader. All numbers are big endian.
+ * <p>
+ * Each segment starts with a header:
+ * <pre>
+ * int   MAGIC
+ * short VERSION
+ * int   worker id
+ * int   segment number
+ * long  capture start time, millis
+ * </pre>
+ * followed by records:
+ * <pre>
+ * byte  kind, one of the KIND_ constants. KIND_END_OF_SEGMENT means stop.
+ * int   how long the record was held back before being sent, millis
+ * long  sessionId
+ * long  sessionStartUTC
+ * short seqno
+ * long  recordStartUTC
+ * long  recordUsage
+ * str   callingNumber
+ * str   destination
+ * str   eventType
+ * </pre>
+ * where a str is a short length, -1 for null, followed by that many UTF-8 bytes.
+ */
+public final class CdrCaptureFormat {
+
+    public static final int MAGIC = 0x43445243; // "CDRC"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 4 + 2 + 4 + 4 + 8;
+
+    public static final int FIXED_RECORD_SIZE = 1 + 4 + 8 + 8 + 2 + 8 + 8;
+    public static final int MAX_STRING_SIZE = Short.MAX_VALUE;
+
+    public static final byte KIND_END_OF_SEGMENT = 0;
+    public static final byte KIND_NORMAL = 1;
+    public static final byte KIND_DUP = 2;
+    public static final byte KIND_DUP_REPLAY = 3;
+    public static final byte KIND_LATE_REPLAY = 4;
+    public static final byte KIND_DATE_IS_1970 = 5;
+
+    public static final String FILE_SUFFIX = ".cdrseg";
+
+    private CdrCaptureFormat() {
+    }
+
+    /**
+     * @return The name of a segment file, which sorts in the order segments were written.
+     */
+    public static String getSegmentFileName(int workerId, int segmentNumber) {
+        return String.format("worker-%03d-%06d%s", workerId, segmentNumber, FILE_SUFFIX);
+    }
+}
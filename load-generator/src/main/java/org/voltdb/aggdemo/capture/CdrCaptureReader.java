@@ -0,0 +1,212 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.capture;
+
+import org.voltdb.aggdemo.MediationMessage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Reads records from a list of segment files, in order, straight out of memory
+ * mapped buffers into a MediationMessage the caller supplies. Strings that keep
+ * coming up, such as destinations and event types, are only turned into String
+ * objects once. Not thread safe.
+ */
+public class CdrCaptureReader implements AutoCloseable {
+
+    // How many distinct Strings we remember...
+    private static final int STRING_CACHE_SIZE = 64;
+
+    private final List<Path> segmentFiles;
+    private int nextSegmentFile;
+
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long captureStartMillis;
+
+    private final byte[][] cachedBytes = new byte[STRING_CACHE_SIZE][];
+    private final String[] cachedStrings = new String[STRING_CACHE_SIZE];
+    private int cachedStringCount;
+
+    private byte lastKind;
+    private int lastDelayMs;
+
+    public CdrCaptureReader(List<Path> segmentFiles) {
+        this.segmentFiles = segmentFiles;
+    }
+
+    /**
+     * Read the next record into 'message'.
+     *
+     * @return false if there are no more records.
+     */
+    public boolean next(MediationMessage message) {
+        while (true) {
+            if (segment == null && !openNextSegment()) {
+                return false;
+            }
+
+            byte kind = segment.get();
+
+            if (kind != CdrCaptureFormat.KIND_END_OF_SEGMENT) {
+                lastKind = kind;
+                lastDelayMs = segment.getInt();
+
+                long sessionId = segment.getLong();
+                long sessionStartUTC = segment.getLong();
+                short seqno = segment.getShort();
+                long recordStartUTC = segment.getLong();
+                long recordUsage = segment.getLong();
+                String callingNumber = getString(false);
+                String destination = getString(true);
+                String eventType = getString(true);
+
+                message.reset(sessionId, sessionStartUTC, seqno, callingNumber, destination);
+                message.setRecordStartUTC(recordStartUTC);
+                message.setRecordUsage(recordUsage);
+                message.setEventType(eventType);
+
+                return true;
+            }
+
+            closeSegment();
+        }
+    }
+
+    /**
+     * @return What kind of record the last call to next() read.
+     */
+    public byte getLastKind() {
+        return lastKind;
+    }
+
+    /**
+     * @return How long the last record read was held back before it was originally sent.
+     */
+    public int getLastDelayMs() {
+        return lastDelayMs;
+    }
+
+    /**
+     * @return When the capture we are reading started, in millis.
+     */
+    public long getCaptureStartMillis() {
+        return captureStartMillis;
+    }
+
+    @Override
+    public void close() {
+        closeSegment();
+    }
+
+    private boolean openNextSegment() {
+        if (nextSegmentFile >= segmentFiles.size()) {
+            return false;
+        }
+
+        Path segmentPath = segmentFiles.get(nextSegmentFile++);
+
+        try {
+            channel = FileChannel.open(segmentPath, StandardOpenOption.READ);
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (segment.getInt() != CdrCaptureFormat.MAGIC || segment.getShort() != CdrCaptureFormat.VERSION) {
+            throw new IllegalStateException(segmentPath + " is not a CDR capture segment");
+        }
+
+        segment.getInt(); // worker id
+        segment.getInt(); // segment number
+        captureStartMillis = segment.getLong();
+
+        return true;
+    }
+
+    private void closeSegment() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        channel = null;
+        segment = null;
+    }
+
+    /**
+     * Read a String, reusing one we made earlier if we've seen the same bytes.
+     */
+    private String getString(boolean cacheIt) {
+        int length = segment.getShort();
+
+        if (length < 0) {
+            return null;
+        }
+
+        int start = segment.position();
+
+        for (int i = 0; i < cachedStringCount; i++) {
+            if (matches(cachedBytes[i], start, length)) {
+                segment.position(start + length);
+                return cachedStrings[i];
+            }
+        }
+
+        byte[] bytes = new byte[length];
+        segment.get(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+
+        if (cacheIt && cachedStringCount < STRING_CACHE_SIZE) {
+            cachedBytes[cachedStringCount] = bytes;
+            cachedStrings[cachedStringCount] = value;
+            cachedStringCount++;
+        }
+
+        return value;
+    }
+
+    private boolean matches(byte[] candidate, int start, int length) {
+        if (candidate.length != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (segment.get(start + i) != candidate[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,157 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.capture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.voltdb.aggdemo.MediationMessage;
+import org.voltdb.aggdemo.MediationMessagePool;
+import org.voltdb.aggdemo.connection.Connection;
+import org.voltdb.aggdemo.pacing.LoadProfile;
+import org.voltdb.aggdemo.pacing.Pacer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Sends the records one generator worker captured, in the order it sent them.
+ * Timestamps are moved forward by however long ago the capture started, so
+ * the server sees the same sessions, duplicates, late records and gaps as the
+ * original run, just happening now. Records with a 1970 start date are left
+ * alone.
+ */
+public class CdrCaptureReplayer implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CdrCaptureReplayer.class);
+
+    // Enough for whatever an async Connection might be holding on to...
+    private static final int POOL_CAPACITY = 50000;
+
+    private final String name;
+    private final List<Path> segmentFiles;
+    private final Connection sender;
+    private final double permitsPerSecond;
+    private final LoadProfile loadProfile;
+    private final int pacerBatch;
+
+    private final MediationMessagePool messagePool = new MediationMessagePool(POOL_CAPACITY);
+
+    private volatile long recordCount;
+
+    /**
+     * @param name             - Used for logging
+     * @param segmentFiles     - One worker's segment files, in order
+     * @param sender           - Shared, thread safe, Connection
+     * @param permitsPerSecond - How fast to send, or 0 for as fast as we can
+     * @param loadProfile      - How our send rate changes over time
+     * @param pacerBatch       - Most send permits we take from a single clock read
+     */
+    public CdrCaptureReplayer(String name, List<Path> segmentFiles, Connection sender, double permitsPerSecond,
+                              LoadProfile loadProfile, int pacerBatch) {
+        this.name = name;
+        this.segmentFiles = segmentFiles;
+        this.sender = sender;
+        this.permitsPerSecond = permitsPerSecond;
+        this.loadProfile = loadProfile;
+        this.pacerBatch = pacerBatch;
+    }
+
+    @Override
+    public void run() {
+        Pacer pacer = permitsPerSecond > 0 ? new Pacer(permitsPerSecond, loadProfile, pacerBatch) : null;
+        long shiftMillis = -1;
+
+        try (CdrCaptureReader reader = new CdrCaptureReader(segmentFiles)) {
+            while (true) {
+                MediationMessage message = messagePool.acquire();
+
+                if (!reader.next(message)) {
+                    message.release();
+                    break;
+                }
+
+                if (shiftMillis < 0) {
+                    shiftMillis = System.currentTimeMillis() - reader.getCaptureStartMillis();
+                }
+
+                shiftTimestamps(message, shiftMillis);
+
+                long intendedSendNanos = pacer == null ? System.nanoTime() : pacer.acquire();
+
+                sender.sendData(message, intendedSendNanos);
+                message.release();
+                recordCount++;
+            }
+        }
+
+        LOGGER.info(name + " replayed " + recordCount + " records");
+    }
+
+    private static void shiftTimestamps(MediationMessage message, long shiftMillis) {
+        String eventType = message.getEventType();
+        long recordStartUTC = message.getRecordStartUTC();
+        long recordUsage = message.getRecordUsage();
+
+        message.reset(message.getSessionId(), message.getSessionStartUTC() + shiftMillis, message.getSeqno(),
+                message.getCallingNumber(), message.getDestination());
+        message.setEventType(eventType);
+        message.setRecordUsage(recordUsage);
+
+        // Deliberately wrong dates stay wrong...
+        message.setRecordStartUTC(recordStartUTC == 0 ? 0 : recordStartUTC + shiftMillis);
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Find the segment files in a capture directory.
+     *
+     * @return Each worker's segment files, in the order they were written, keyed by
+     * their common prefix.
+     */
+    public static Map<String, List<Path>> findSegmentFiles(Path directory) {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(CdrCaptureFormat.FILE_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.groupingBy(CdrCaptureReplayer::getWorkerPrefix, TreeMap::new,
+                            Collectors.toCollection(ArrayList::new)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String getWorkerPrefix(Path segmentFile) {
+        String fileName = segmentFile.getFileName().toString();
+        return fileName.substring(0, fileName.lastIndexOf('-'));
+    }
+}
@@ -0,0 +1,187 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.capture;
+
+import org.voltdb.aggdemo.MediationMessage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the records a generator worker sends, in the order it sends them, to
+ * a series of memory mapped segment files. See CdrCaptureFormat for the
+ * layout. Not thread safe - each worker has its own writer and its own files.
+ */
+public class CdrCaptureWriter implements AutoCloseable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final Path directory;
+    private final int workerId;
+    private final int segmentSize;
+    private final long captureStartMillis;
+
+    private int segmentNumber;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long recordCount;
+
+    public CdrCaptureWriter(Path directory, int workerId, int segmentSize, long captureStartMillis) {
+        this.directory = directory;
+        this.workerId = workerId;
+        this.segmentSize = segmentSize;
+        this.captureStartMillis = captureStartMillis;
+
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        openSegment();
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param kind    - one of the CdrCaptureFormat.KIND_ constants
+     * @param delayMs - how long it was held back before being sent
+     */
+    public void write(byte kind, long delayMs, MediationMessage message) {
+        int size = CdrCaptureFormat.FIXED_RECORD_SIZE + stringSize(message.getCallingNumber())
+                + stringSize(message.getDestination()) + stringSize(message.getEventType());
+
+        // Always leave room for an end of segment marker...
+        if (segment.remaining() < size + 1) {
+            closeSegment();
+            segmentNumber++;
+            openSegment();
+        }
+
+        segment.put(kind);
+        segment.putInt((int) Math.min(Integer.MAX_VALUE, delayMs));
+        segment.putLong(message.getSessionId());
+        segment.putLong(message.getSessionStartUTC());
+        segment.putShort((short) message.getSeqno());
+        segment.putLong(message.getRecordStartUTC());
+        segment.putLong(message.getRecordUsage());
+        putString(message.getCallingNumber());
+        putString(message.getDestination());
+        putString(message.getEventType());
+
+        recordCount++;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public void close() {
+        closeSegment();
+    }
+
+    private void openSegment() {
+        Path segmentPath = directory.resolve(CdrCaptureFormat.getSegmentFileName(workerId, segmentNumber));
+
+        try {
+            channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        segment.putInt(CdrCaptureFormat.MAGIC);
+        segment.putShort(CdrCaptureFormat.VERSION);
+        segment.putInt(workerId);
+        segment.putInt(segmentNumber);
+        segment.putLong(captureStartMillis);
+    }
+
+    /**
+     * Mark the end of the segment, flush it and trim the file to what we used.
+     */
+    private void closeSegment() {
+        if (channel == null) {
+            return;
+        }
+
+        segment.put(CdrCaptureFormat.KIND_END_OF_SEGMENT);
+        int usedBytes = segment.position();
+        segment.force();
+
+        try {
+            channel.truncate(usedBytes);
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        channel = null;
+        segment = null;
+    }
+
+    private static int stringSize(String value) {
+        if (value == null) {
+            return 2;
+        }
+
+        return 2 + (isAscii(value) ? value.length() : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private void putString(String value) {
+        if (value == null) {
+            segment.putShort((short) -1);
+            return;
+        }
+
+        if (isAscii(value)) {
+            segment.putShort((short) value.length());
+
+            for (int i = 0; i < value.length(); i++) {
+                segment.put((byte) value.charAt(i));
+            }
+        } else {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            segment.putShort((short) utf8.length);
+            segment.put(utf8);
+        }
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,50 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.voltdb.client.ClientResponse;
+
+/**
+ * Callback for a call that carried several records. Records the latency of
+ * each one, measured from when we intended to send it, and then complains if
+ * something went badly wrong.
+ */
+public class BatchLatencyRecordingCallback extends ComplainOnErrorCallback {
+
+    private final CallLatencyStats stats;
+    private final long[] intendedSendNanos;
+
+    public BatchLatencyRecordingCallback(CallLatencyStats stats, long[] intendedSendNanos) {
+        this.stats = stats;
+        this.intendedSendNanos = intendedSendNanos;
+    }
+
+    @Override
+    public void clientCallback(ClientResponse arg0) {
+        for (long intendedSendNano : intendedSendNanos) {
+            stats.recordCall(arg0.getStatus(), intendedSendNano);
+        }
+
+        super.clientCallback(arg0);
+    }
+}
@@ -0,0 +1,119 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.slf4j.Logger;
+import org.voltdb.aggdemo.metrics.PrometheusWriter;
+import org.voltdb.client.ClientResponse;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Procedure call latencies, with a separate LatencyHistogram for each
+ * ClientResponse status. Latency is measured from when the generator
+ * <i>intended</i> to send a record, not when it actually did, so time spent
+ * waiting behind a slow server is counted instead of hidden (i.e. we avoid
+ * 'coordinated omission').
+ */
+public class CallLatencyStats {
+
+    private static final double MICROS_PER_MILLI = 1000;
+
+    private final Map<Byte, LatencyHistogram> histogramsByStatus = new ConcurrentHashMap<>();
+
+    /**
+     * Record a completed call.
+     *
+     * @param status            - ClientResponse status
+     * @param intendedSendNanos - System.nanoTime() at which we meant to send it
+     */
+    public void recordCall(byte status, long intendedSendNanos) {
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedSendNanos);
+        histogramsByStatus.computeIfAbsent(status, k -> new LatencyHistogram()).recordValue(latencyMicros);
+    }
+
+    /**
+     * Log p50/p99/p99.9/max in milliseconds for each status we've seen.
+     */
+    public void printStatus(Logger logger, String procedureName) {
+        Map<String, LatencyHistogram> sortedHistograms = new TreeMap<>();
+        histogramsByStatus.forEach((status, histogram) -> sortedHistograms.put(getStatusName(status), histogram));
+
+        sortedHistograms.forEach((statusName, histogram) ->
+                logger.info(procedureName + " " + statusName + " latency ms: " + histogram.toPercentileString(MICROS_PER_MILLI)));
+    }
+
+    /**
+     * Add call counts and p50/p99/p99.9/max latencies, in milliseconds, for each
+     * status we've seen.
+     */
+    public void writeMetrics(PrometheusWriter writer, String procedureName) {
+        histogramsByStatus.forEach((status, histogram) -> {
+            String statusName = getStatusName(status);
+
+            writer.counter("mediation_generator_calls_total", "Procedure calls completed, by status",
+                    histogram.getTotalCount(), "procedure", procedureName, "status", statusName);
+
+            String latencyName = "mediation_generator_call_latency_ms";
+            String latencyHelp = "Procedure call latency from intended send time, by status";
+            writer.gauge(latencyName, latencyHelp, histogram.getValueAtPercentile(50) / MICROS_PER_MILLI,
+                    "procedure", procedureName, "status", statusName, "quantile", "0.5");
+            writer.gauge(latencyName, latencyHelp, histogram.getValueAtPercentile(99) / MICROS_PER_MILLI,
+                    "procedure", procedureName, "status", statusName, "quantile", "0.99");
+            writer.gauge(latencyName, latencyHelp, histogram.getValueAtPercentile(99.9) / MICROS_PER_MILLI,
+                    "procedure", procedureName, "status", statusName, "quantile", "0.999");
+            writer.gauge(latencyName, latencyHelp, histogram.getMaxValue() / MICROS_PER_MILLI,
+                    "procedure", procedureName, "status", statusName, "quantile", "1");
+        });
+    }
+
+    public static String getStatusName(byte status) {
+        switch (status) {
+            case ClientResponse.SUCCESS:
+                return "SUCCESS";
+            case ClientResponse.USER_ABORT:
+                return "USER_ABORT";
+            case ClientResponse.GRACEFUL_FAILURE:
+                return "GRACEFUL_FAILURE";
+            case ClientResponse.UNEXPECTED_FAILURE:
+                return "UNEXPECTED_FAILURE";
+            case ClientResponse.CONNECTION_LOST:
+                return "CONNECTION_LOST";
+            case ClientResponse.SERVER_UNAVAILABLE:
+                return "SERVER_UNAVAILABLE";
+            case ClientResponse.CONNECTION_TIMEOUT:
+                return "CONNECTION_TIMEOUT";
+            case ClientResponse.RESPONSE_UNKNOWN:
+                return "RESPONSE_UNKNOWN";
+            case ClientResponse.TXN_RESTART:
+                return "TXN_RESTART";
+            case ClientResponse.OPERATIONAL_FAILURE:
+                return "OPERATIONAL_FAILURE";
+            default:
+                return "STATUS_" + status;
+        }
+    }
+}
@@ -27,18 +27,27 @@ import org.apache.kafka.clients.producer.RecordMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Simple callback that complains if something went badly
- * wrong.
+ * wrong, and counts how often it did.
  */
 public class ComplainOnErrorKafkaCallback implements Callback {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ComplainOnErrorKafkaCallback.class);
 
+    private final LongAdder errorCount = new LongAdder();
+
     @Override
     public void onCompletion(RecordMetadata metadata, Exception exception) {
         if (exception != null) {
+            errorCount.increment();
             LOGGER.error("ComplainOnErrorKafkaCallback: {}", exception.getMessage());
         }
     }
+
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
 }
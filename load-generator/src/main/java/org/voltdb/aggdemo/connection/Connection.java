@@ -1,10 +1,39 @@
 package org.voltdb.aggdemo.connection;
 
-import org.voltdb.aggdemo.MediationDataGenerator;
 import org.voltdb.aggdemo.MediationMessage;
+import org.voltdb.aggdemo.metrics.PrometheusWriter;
 
 @FunctionalInterface
 public interface Connection {
 
     void sendData(MediationMessage mediationMessage);
+
+    /**
+     * Send a record that the generator meant to send at intendedSendNanos, as
+     * measured by System.nanoTime(). Connections that track latency measure it
+     * from then, instead of from when sendData was actually called.
+     */
+    default void sendData(MediationMessage mediationMessage, long intendedSendNanos) {
+        sendData(mediationMessage);
+    }
+
+    /**
+     * Log whatever stats this connection keeps. Called with each status report
+     * and at the end of the run.
+     */
+    default void printStatus() {
+    }
+
+    /**
+     * Wait for everything we've sent to be acknowledged.
+     */
+    default void drain() {
+    }
+
+    /**
+     * Add whatever counters this connection keeps, such as errors, to a page of
+     * Prometheus metrics. Called for every scrape, from the metrics server's thread.
+     */
+    default void writeMetrics(PrometheusWriter writer) {
+    }
 }
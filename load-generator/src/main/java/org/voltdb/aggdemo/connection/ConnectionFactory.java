@@ -11,10 +11,20 @@ public abstract class ConnectionFactory {
     public abstract Connection create(String commaDelimitedHostnames);
 
     public static ConnectionFactory create(DataGeneratorConfig config) {
-        if (config.isUseKafka()) {
-            return new KafkaConnectionFactory();
+        ConnectionFactory factory;
+
+        if (config.getSinkType() != null) {
+            factory = new SinkConnectionFactory(config.getSinkType());
+        } else if (config.isUseKafka()) {
+            factory = new KafkaConnectionFactory(config);
+        } else {
+            factory = new VoltDBConnectionFactory(config);
+        }
+
+        if (config.isPartitionReport()) {
+            return new PartitionLoadReportingConnectionFactory(factory, config.getVoltHostnames());
         }
 
-        return new VoltDBConnectionFactory();
+        return factory;
     }
 }
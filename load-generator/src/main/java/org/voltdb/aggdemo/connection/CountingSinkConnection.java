@@ -0,0 +1,79 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.voltdb.aggdemo.MediationMessage;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reads every field of every record and keeps a checksum of them. The checksum
+ * is a sum of per record hashes, so it doesn't depend on the order in which
+ * threads send records. It leaves out sessionStartUTC and recordStartUTC,
+ * which a replay shifts to the time it runs, so a capture and its replay have
+ * the same checksum. Bytes are the size of the fields we read, with Strings
+ * counted as one byte per char.
+ */
+public class CountingSinkConnection extends SinkConnection {
+
+    // Size of sessionId, sessionStartUTC, seqno, recordStartUTC and recordUsage...
+    private static final int FIXED_FIELD_BYTES = 5 * Long.BYTES;
+
+    private final LongAdder checksum = new LongAdder();
+
+    public CountingSinkConnection() {
+        super("counting");
+    }
+
+    @Override
+    public void sendData(MediationMessage m) {
+        long hash = m.getSessionId();
+        hash = (hash * 31) + m.getSeqno();
+        hash = (hash * 31) + m.getRecordUsage();
+        hash = (hash * 31) + hashOf(m.getCallingNumber());
+        hash = (hash * 31) + hashOf(m.getDestination());
+        hash = (hash * 31) + hashOf(m.getEventType());
+
+        checksum.add(hash);
+        recordCount.increment();
+        byteCount.add(FIXED_FIELD_BYTES + lengthOf(m.getCallingNumber()) + lengthOf(m.getDestination())
+                + lengthOf(m.getEventType()));
+    }
+
+    private static int hashOf(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    private static int lengthOf(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    public long getChecksum() {
+        return checksum.sum();
+    }
+
+    @Override
+    protected String getExtraStatus() {
+        return String.format(" checksum=%016x", getChecksum());
+    }
+}
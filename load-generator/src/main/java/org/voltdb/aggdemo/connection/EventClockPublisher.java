@@ -0,0 +1,109 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tells VoltDB how far a simulated generator clock is ahead of, or behind, real
+ * time, by writing the offset to event_clock. FlushStaleSessions adds this to
+ * its own clock, so sessions go stale in event time rather than real time.
+ * <p>
+ * event_clock is partitioned, and we write one row for each partition, using a
+ * key from @GetPartitionKeys, so publishing is a single partition call to each
+ * partition rather than a multi-partition transaction. We delete the rows when
+ * we're closed, and a run on a real time clock deletes any left behind by one
+ * that wasn't, so VoltDB goes back to real time.
+ */
+public class EventClockPublisher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventClockPublisher.class);
+
+    private final Client client;
+    private final List<Long> partitionKeys = new ArrayList<>();
+
+    public EventClockPublisher(String commaDelimitedVoltHostnames) {
+        this.client = VoltDBConnectionFactory.connectToVoltDB(commaDelimitedVoltHostnames);
+
+        try {
+            VoltTable keys = client.callProcedure("@GetPartitionKeys", "BIGINT").getResults()[0];
+
+            while (keys.advanceRow()) {
+                partitionKeys.add(keys.getLong("PARTITION_KEY"));
+            }
+        } catch (Exception e) {
+            LOGGER.error("Unable to find VoltDB's partition keys: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Publish the time according to our simulated clock.
+     */
+    public void publish(long eventTimeMillis) {
+        long offsetMs = eventTimeMillis - System.currentTimeMillis();
+
+        try {
+            for (long partitionKey : partitionKeys) {
+                client.callProcedure(new ComplainOnErrorCallback(), "EVENT_CLOCK.upsert", partitionKey, offsetMs);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Unable to publish event clock offset: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Go back to real time.
+     */
+    public void reset() {
+        try {
+            client.drain();
+            client.callProcedure("@AdHoc", "DELETE FROM event_clock;");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.error("Unable to reset event clock offset: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Go back to real time and disconnect.
+     */
+    public void close() {
+        reset();
+
+        try {
+            client.drain();
+            client.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.error("Unable to close event clock connection: " + e.getMessage());
+        }
+    }
+}
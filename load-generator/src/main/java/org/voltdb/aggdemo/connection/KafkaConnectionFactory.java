@@ -1,19 +1,36 @@
 package org.voltdb.aggdemo.connection;
 
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.NewPartitions;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.admin.TopicDescription;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.serialization.LongSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.voltdb.aggdemo.DataGeneratorConfig;
 import org.voltdb.aggdemo.MediationMessage;
+import org.voltdb.aggdemo.metrics.PrometheusWriter;
+import org.voltdb.client.Client;
 
+import java.util.Collections;
 import java.util.Properties;
 
 public class KafkaConnectionFactory extends ConnectionFactory {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(KafkaConnectionFactory.class);
 
+    static final String TOPIC_NAME = "incoming_cdrs";
+
+    private final DataGeneratorConfig config;
+
+    public KafkaConnectionFactory(DataGeneratorConfig config) {
+        this.config = config;
+    }
+
     @Override
     public Connection create(String commaDelimitedHostnames) {
         String[] hostnameArray = commaDelimitedHostnames.split(",");
@@ -35,18 +52,92 @@ public class KafkaConnectionFactory extends ConnectionFactory {
         props.put("buffer.memory", 33554432);
         props.put("key.serializer", LongSerializer.class.getName());
         props.put("value.serializer", MediationMessageSerializer.class.getName());
-        // props.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, VoltDBKafkaPartitioner.class.getName());
+
+        if (config.isCreateTopic()) {
+            createTopicToMatchVoltDB(kafkaBrokers.toString());
+        }
+
+        if (config.isUseVoltPartitioner()) {
+            props.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, VoltDBPartitionAlignedPartitioner.class.getName());
+            props.put(VoltDBPartitionAlignedPartitioner.VOLTDB_SERVERS_CONFIG, config.getVoltHostnames());
+        }
 
         Producer<Long, MediationMessage> producer = new KafkaProducer<>(props);
 
         LOGGER.info("Connected to VoltDB via Kafka");
-        return (MediationMessage nextCdr) -> {
-            ComplainOnErrorKafkaCallback errorCallback = new ComplainOnErrorKafkaCallback();
-            ProducerRecord<Long, MediationMessage> newRecord = new ProducerRecord<>(
-                    "incoming_cdrs", nextCdr.getSessionId(), nextCdr
-            );
 
-            producer.send(newRecord, errorCallback);
+        // The callback's only state is a thread safe error count, so there's no need
+        // for one per record...
+        ComplainOnErrorKafkaCallback errorCallback = new ComplainOnErrorKafkaCallback();
+
+        // Note that send() serializes the message before it returns, so a pooled
+        // message can be recycled as soon as we are done...
+        return new Connection() {
+            @Override
+            public void sendData(MediationMessage nextCdr) {
+                ProducerRecord<Long, MediationMessage> newRecord = new ProducerRecord<>(
+                        TOPIC_NAME, nextCdr.getSessionId(), nextCdr
+                );
+
+                producer.send(newRecord, errorCallback);
+            }
+
+            @Override
+            public void drain() {
+                producer.flush();
+            }
+
+            @Override
+            public void writeMetrics(PrometheusWriter writer) {
+                writer.counter("mediation_generator_connection_errors_total",
+                        "Sends that failed before reaching the server", errorCallback.getErrorCount(),
+                        "connection", "kafka");
+            }
         };
     }
+
+    /**
+     * Make sure our topic has one partition for each VoltDB partition, creating
+     * it or adding partitions as needed. Kafka can't take partitions away, so if
+     * there are too many we just complain.
+     */
+    private void createTopicToMatchVoltDB(String kafkaBrokers) {
+        Properties adminProps = new Properties();
+        adminProps.put("bootstrap.servers", kafkaBrokers);
+
+        Client voltClient = VoltDBConnectionFactory.connectToVoltDB(config.getVoltHostnames());
+
+        try (AdminClient adminClient = AdminClient.create(adminProps)) {
+            int voltPartitionCount = VoltDBPartitionAlignedPartitioner.getVoltPartitionCount(voltClient);
+
+            if (!adminClient.listTopics().names().get().contains(TOPIC_NAME)) {
+                LOGGER.info("Creating topic " + TOPIC_NAME + " with " + voltPartitionCount + " partitions");
+                NewTopic newTopic = new NewTopic(TOPIC_NAME, voltPartitionCount, config.getTopicReplicationFactor());
+                adminClient.createTopics(Collections.singleton(newTopic)).all().get();
+                return;
+            }
+
+            TopicDescription topicDescription = adminClient.describeTopics(Collections.singleton(TOPIC_NAME))
+                    .all().get().get(TOPIC_NAME);
+            int kafkaPartitionCount = topicDescription.partitions().size();
+
+            if (kafkaPartitionCount < voltPartitionCount) {
+                LOGGER.info("Increasing partitions for topic " + TOPIC_NAME + " from " + kafkaPartitionCount + " to "
+                        + voltPartitionCount);
+                adminClient.createPartitions(Collections.singletonMap(TOPIC_NAME,
+                        NewPartitions.increaseTo(voltPartitionCount))).all().get();
+            } else if (kafkaPartitionCount > voltPartitionCount) {
+                LOGGER.warn("Topic " + TOPIC_NAME + " has " + kafkaPartitionCount
+                        + " partitions but VoltDB only has " + voltPartitionCount);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to create topic " + TOPIC_NAME, e);
+        } finally {
+            try {
+                voltClient.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
@@ -0,0 +1,124 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, HDR style, histogram of non-negative values. Values below 128
+ * are counted exactly. Above that each power of two is split into 64 buckets,
+ * so any value we report is within about 1.5% of the real one. Recording is
+ * lock free and can be done from any number of threads.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = indexFor(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are counted as zero.
+     */
+    public void recordValue(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(indexFor(value));
+        totalCount.incrementAndGet();
+
+        long currentMax = maxValue.get();
+        while (value > currentMax && !maxValue.compareAndSet(currentMax, value)) {
+            currentMax = maxValue.get();
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    public long getMaxValue() {
+        return maxValue.get();
+    }
+
+    /**
+     * @param percentile - e.g. 99.9
+     * @return the highest value in the bucket that contains 'percentile', or 0 if
+     * we've seen nothing.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil((percentile / 100) * total));
+        long runningCount = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            runningCount += counts.get(i);
+
+            if (runningCount >= target) {
+                return Math.min(highestValueFor(i), maxValue.get());
+            }
+        }
+
+        return maxValue.get();
+    }
+
+    /**
+     * @return p50/p99/p99.9/max as a String, with values divided by 'scale'
+     */
+    public String toPercentileString(double scale) {
+        return String.format("count=%d p50=%.3f p99=%.3f p99.9=%.3f max=%.3f", getTotalCount(),
+                getValueAtPercentile(50) / scale, getValueAtPercentile(99) / scale,
+                getValueAtPercentile(99.9) / scale, getMaxValue() / scale);
+    }
+
+    private static int indexFor(long value) {
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        // Shift 'value' so its top SUB_BUCKET_BITS + 1 bits are left...
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift * SUB_BUCKET_COUNT) + (int) (value >>> shift);
+    }
+
+    private static long highestValueFor(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = (index / SUB_BUCKET_COUNT) - 1;
+        long topBits = index - ((long) shift * SUB_BUCKET_COUNT);
+
+        return ((topBits + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,239 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.voltdb.aggdemo.MediationMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a MediationMessage as a line of CSV whose columns are the parameters of
+ * HandleMediationCDR, in order:
+ * <p>
+ * sessionId, sessionStartUTC, seqno, callingNumber, destination, recordType,
+ * recordStartUTC, recordUsage
+ * <p>
+ * This is what the format="csv" Kafka importer in deployment.xml expects. The
+ * record is built in a byte buffer that is reused between calls, and numbers are
+ * written digit by digit, so encode() itself doesn't create any garbage. Kafka
+ * still costs one allocation per record, though: its Serializer has to return a
+ * byte[] of its own, so MediationMessageSerializer hands it toByteArray(), which
+ * is a copy. Nulls are written as \N. Instances are not thread safe.
+ */
+public class MediationMessageCsvEncoder {
+
+    public static final int FIELD_COUNT = 8;
+
+    private static final byte SEPARATOR = ',';
+    private static final byte QUOTE = '"';
+    private static final byte[] NULL_VALUE = {'\\', 'N'};
+
+    private byte[] buffer;
+    private int length;
+
+    public MediationMessageCsvEncoder() {
+        this(256);
+    }
+
+    public MediationMessageCsvEncoder(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Encode a message into our buffer.
+     *
+     * @return How many bytes of getBuffer() are now in use.
+     */
+    public int encode(MediationMessage message) {
+        length = 0;
+
+        putLong(message.getSessionId());
+        putByte(SEPARATOR);
+        putLong(message.getSessionStartUTC());
+        putByte(SEPARATOR);
+        putLong(message.getSeqno());
+        putByte(SEPARATOR);
+        putCallingNumber(message);
+        putByte(SEPARATOR);
+        putString(message.getDestination());
+        putByte(SEPARATOR);
+        putString(message.getEventType());
+        putByte(SEPARATOR);
+        putLong(message.getRecordStartUTC());
+        putByte(SEPARATOR);
+        putLong(message.getRecordUsage());
+
+        return length;
+    }
+
+    /**
+     * @return Our internal buffer. Only the first getLength() bytes are valid, and
+     * only until the next call to encode().
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return A copy of the last encoded record, for APIs that insist on owning their
+     * byte[], which Kafka does. This is a new allocation every time.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void putByte(byte b) {
+        ensureCapacity(1);
+        buffer[length++] = b;
+    }
+
+    /**
+     * Write a long in decimal without going via Long.toString().
+     */
+    private void putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            // Can't be negated...
+            putAscii("-9223372036854775808");
+            return;
+        }
+
+        ensureCapacity(20);
+
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+
+        int digitCount = digitCount(value);
+        int pos = length + digitCount;
+
+        do {
+            buffer[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+
+        length += digitCount;
+    }
+
+    /**
+     * Write a numeric calling number without building its String.
+     */
+    private void putCallingNumber(MediationMessage message) {
+        long callingNumberValue = message.getCallingNumberValue();
+
+        if (callingNumberValue == MediationMessage.NO_CALLING_NUMBER_VALUE) {
+            putString(message.getCallingNumber());
+            return;
+        }
+
+        putAscii(MediationMessage.CALLING_NUMBER_PREFIX);
+        putLong(callingNumberValue);
+    }
+
+    private static int digitCount(long value) {
+        int count = 1;
+        long limit = 10;
+
+        while (count < 19 && value >= limit) {
+            count++;
+            limit *= 10;
+        }
+
+        return count;
+    }
+
+    /**
+     * Write a String, quoting it if it contains anything that would confuse a CSV
+     * parser.
+     */
+    private void putString(String value) {
+        if (value == null) {
+            ensureCapacity(NULL_VALUE.length);
+            System.arraycopy(NULL_VALUE, 0, buffer, length, NULL_VALUE.length);
+            length += NULL_VALUE.length;
+            return;
+        }
+
+        if (!isPlainAscii(value)) {
+            putQuoted(value);
+            return;
+        }
+
+        putAscii(value);
+    }
+
+    private void putAscii(String value) {
+        ensureCapacity(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            buffer[length++] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * Slow path for Strings that need quoting or aren't ASCII. Our generator
+     * never produces these.
+     */
+    private void putQuoted(String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity((utf8.length * 2) + 2);
+
+        buffer[length++] = QUOTE;
+        for (byte b : utf8) {
+            if (b == QUOTE) {
+                buffer[length++] = QUOTE;
+            }
+
+            buffer[length++] = b;
+        }
+        buffer[length++] = QUOTE;
+    }
+
+    private static boolean isPlainAscii(String value) {
+        if (value.length() == 2 && value.charAt(0) == NULL_VALUE[0] && value.charAt(1) == NULL_VALUE[1]) {
+            // A literal \N has to be quoted or it will come back as null...
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c >= 0x80 || c == SEPARATOR || c == QUOTE || c == '\n' || c == '\r') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void ensureCapacity(int extraBytes) {
+        if (length + extraBytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extraBytes));
+        }
+    }
+}
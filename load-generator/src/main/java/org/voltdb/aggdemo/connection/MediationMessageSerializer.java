@@ -26,12 +26,23 @@ import org.apache.kafka.common.serialization.Serializer;
 import org.voltdb.aggdemo.MediationMessage;
 
 /**
- * Used by Kafka to serialize MediationMessage objects.
+ * Used by Kafka to serialize MediationMessage objects. Messages are written as
+ * the CSV the incoming_cdrs importer hands to HandleMediationCDR. Kafka insists on
+ * a byte[] per record, so that copy is the only allocation per message. Each
+ * sending thread gets its own encoder.
  */
 public class MediationMessageSerializer implements Serializer<MediationMessage> {
 
+    private final ThreadLocal<MediationMessageCsvEncoder> encoder = ThreadLocal.withInitial(MediationMessageCsvEncoder::new);
+
     @Override
     public byte[] serialize(String topic, MediationMessage data) {
-        return data.toString().getBytes();
+        if (data == null) {
+            return null;
+        }
+
+        MediationMessageCsvEncoder ourEncoder = encoder.get();
+        ourEncoder.encode(data);
+        return ourEncoder.toByteArray();
     }
 }
@@ -0,0 +1,113 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.voltdb.VoltType;
+import org.voltdb.aggdemo.MediationMessage;
+import org.voltdb.aggdemo.metrics.PrometheusWriter;
+import org.voltdb.client.Client;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps another Connection and counts how many records each VoltDB partition
+ * will end up handling, using the VoltDB client's own hashinator on sessionId.
+ * This tells us how a skewed workload turns into hot partitions, whether we're
+ * sending to Kafka, to VoltDB or to a sink.
+ */
+public class PartitionLoadReportingConnection implements Connection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionLoadReportingConnection.class);
+
+    private static final byte PARTITION_KEY_TYPE = VoltType.BIGINT.getValue();
+
+    private final Connection delegate;
+    private final Client client;
+    private final Map<Long, LongAdder> recordsByPartition = new ConcurrentHashMap<>();
+
+    public PartitionLoadReportingConnection(Connection delegate, Client client) {
+        this.delegate = delegate;
+        this.client = client;
+    }
+
+    @Override
+    public void sendData(MediationMessage mediationMessage) {
+        sendData(mediationMessage, System.nanoTime());
+    }
+
+    @Override
+    public void sendData(MediationMessage mediationMessage, long intendedSendNanos) {
+        // -1 means the client doesn't know the topology yet...
+        long partition = client.getPartitionForParameter(PARTITION_KEY_TYPE, mediationMessage.getSessionId());
+        recordsByPartition.computeIfAbsent(partition, k -> new LongAdder()).increment();
+
+        delegate.sendData(mediationMessage, intendedSendNanos);
+    }
+
+    /**
+     * Log each partition's share of records, and how much busier the busiest
+     * partition is than the average.
+     */
+    @Override
+    public void printStatus() {
+        delegate.printStatus();
+
+        Map<Long, Long> sortedCounts = new TreeMap<>();
+        recordsByPartition.forEach((partition, count) -> sortedCounts.put(partition, count.sum()));
+
+        long total = sortedCounts.values().stream().mapToLong(Long::longValue).sum();
+        if (total == 0) {
+            return;
+        }
+
+        long max = 0;
+        StringBuilder shares = new StringBuilder();
+        for (Map.Entry<Long, Long> entry : sortedCounts.entrySet()) {
+            max = Math.max(max, entry.getValue());
+            shares.append(String.format(" %d=%d(%.1f%%)", entry.getKey(), entry.getValue(),
+                    (100.0 * entry.getValue()) / total));
+        }
+
+        double mean = (double) total / sortedCounts.size();
+        LOGGER.info(String.format("Records per VoltDB partition: max/mean=%.2f%s", max / mean, shares));
+    }
+
+    @Override
+    public void writeMetrics(PrometheusWriter writer) {
+        delegate.writeMetrics(writer);
+
+        recordsByPartition.forEach((partition, count) -> writer.counter("mediation_generator_partition_records_total",
+                "Records sent, by the VoltDB partition that will handle them", count.sum(),
+                "partition", String.valueOf(partition)));
+    }
+
+    @Override
+    public void drain() {
+        delegate.drain();
+    }
+}
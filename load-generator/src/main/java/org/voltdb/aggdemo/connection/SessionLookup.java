@@ -0,0 +1,85 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ProcCallException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks up many sessions at once. GetBySessionIds only sees the partition it
+ * runs on, so we group the keys by the partition that owns them, using the
+ * client's own hashinator, and call it once for each group.
+ */
+public class SessionLookup {
+
+    private static final byte PARTITION_KEY_TYPE = VoltType.BIGINT.getValue();
+
+    private final Client client;
+
+    public SessionLookup(Client client) {
+        this.client = client;
+    }
+
+    /**
+     * @return What GetBySessionIds returned for each partition we asked: the
+     * sessions' cdr_dupcheck rows, and their running totals.
+     */
+    public List<VoltTable[]> getBySessionIds(long[] sessionIds, long[] sessionStartUTCs)
+            throws IOException, ProcCallException {
+        if (sessionStartUTCs.length != sessionIds.length) {
+            throw new IllegalArgumentException("sessionIds and sessionStartUTCs must be the same length");
+        }
+
+        Map<Long, List<Integer>> keysByPartition = new LinkedHashMap<>();
+
+        for (int i = 0; i < sessionIds.length; i++) {
+            long partition = client.getPartitionForParameter(PARTITION_KEY_TYPE, sessionIds[i]);
+            keysByPartition.computeIfAbsent(partition, k -> new ArrayList<>()).add(i);
+        }
+
+        List<VoltTable[]> results = new ArrayList<>();
+
+        for (List<Integer> keys : keysByPartition.values()) {
+            long[] partitionSessionIds = new long[keys.size()];
+            long[] partitionSessionStartUTCs = new long[keys.size()];
+
+            for (int i = 0; i < keys.size(); i++) {
+                partitionSessionIds[i] = sessionIds[keys.get(i)];
+                partitionSessionStartUTCs[i] = sessionStartUTCs[keys.get(i)];
+            }
+
+            results.add(client.callProcedure("GetBySessionIds", partitionSessionIds[0], partitionSessionIds,
+                    partitionSessionStartUTCs).getResults());
+        }
+
+        return results;
+    }
+}
@@ -0,0 +1,98 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.voltdb.aggdemo.metrics.PrometheusWriter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Connection that doesn't send anything anywhere. Used to find out how fast
+ * the generator itself can go, without a Kafka broker or VoltDB cluster. Sub
+ * classes decide how much work to do per record, and how many bytes it was.
+ */
+public abstract class SinkConnection implements Connection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SinkConnection.class);
+
+    protected final LongAdder recordCount = new LongAdder();
+    protected final LongAdder byteCount = new LongAdder();
+
+    private final String sinkName;
+    private final long startNanos = System.nanoTime();
+
+    private long lastStatusNanos = startNanos;
+    private long lastStatusRecordCount;
+    private long lastStatusByteCount;
+
+    protected SinkConnection(String sinkName) {
+        this.sinkName = sinkName;
+    }
+
+    /**
+     * Log records/s and bytes/s since we were last asked, and since we started.
+     */
+    @Override
+    public synchronized void printStatus() {
+        long now = System.nanoTime();
+        long records = recordCount.sum();
+        long bytes = byteCount.sum();
+
+        double intervalSeconds = Math.max(1, now - lastStatusNanos) / 1e9;
+        double totalSeconds = Math.max(1, now - startNanos) / 1e9;
+
+        LOGGER.info(String.format("%s sink: records=%d bytes=%d records/s=%.0f bytes/s=%.0f "
+                        + "(overall records/s=%.0f bytes/s=%.0f)%s", sinkName, records, bytes,
+                (records - lastStatusRecordCount) / intervalSeconds, (bytes - lastStatusByteCount) / intervalSeconds,
+                records / totalSeconds, bytes / totalSeconds, getExtraStatus()));
+
+        lastStatusNanos = now;
+        lastStatusRecordCount = records;
+        lastStatusByteCount = bytes;
+    }
+
+    @Override
+    public void writeMetrics(PrometheusWriter writer) {
+        writer.counter("mediation_generator_sink_records_total", "Records the sink has received", recordCount.sum(),
+                "sink", sinkName);
+        writer.counter("mediation_generator_sink_bytes_total", "Bytes the sink has received", byteCount.sum(),
+                "sink", sinkName);
+    }
+
+    /**
+     * @return Anything else a sub class wants to add to our status line.
+     */
+    protected String getExtraStatus() {
+        return "";
+    }
+
+    public long getRecordCount() {
+        return recordCount.sum();
+    }
+
+    public long getByteCount() {
+        return byteCount.sum();
+    }
+}
@@ -0,0 +1,247 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.voltdb.aggdemo.MediationMessage;
+import org.voltdb.aggdemo.metrics.PrometheusWriter;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Calls HandleMediationCDR with a fixed limit on how many calls can be in flight
+ * at once. When the window is full sendData blocks, so back pressure reaches the
+ * generator's rate loop instead of piling up in the client. Calls that fail with
+ * GRACEFUL_FAILURE or CONNECTION_LOST, or can't be queued, are retried up to
+ * maxRetries times by a separate thread. Anything else is counted as dropped, so
+ * a run's summary shows how many CDRs never arrived for reasons other than
+ * missingRatio.
+ * <p>
+ * Messages are retained until their last attempt completes, so pooled messages
+ * are safe to use with this connection.
+ */
+public class VoltDBBackpressureConnection extends VoltDBConnection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VoltDBBackpressureConnection.class);
+
+    private final Semaphore inFlightWindow;
+    private final int maxInFlight;
+    private final int maxRetries;
+    private final long retryDelayMs;
+    private final LinkedBlockingQueue<RetryingCallback> retryQueue = new LinkedBlockingQueue<>();
+
+    // Retries that have been queued but not yet resent or dropped. Unlike
+    // retryQueue this includes the one retryLoop is waiting to send...
+    private final AtomicInteger pendingRetries = new AtomicInteger();
+
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder retriedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+
+    public VoltDBBackpressureConnection(Client client, int maxInFlight, int maxRetries, long retryDelayMs) {
+        super(client);
+        this.inFlightWindow = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.maxRetries = maxRetries;
+        this.retryDelayMs = retryDelayMs;
+
+        Thread retryThread = new Thread(this::retryLoop, "VoltDBBackpressureConnection-retrier");
+        retryThread.setDaemon(true);
+        retryThread.start();
+    }
+
+    @Override
+    public void sendData(MediationMessage nextCdr, long intendedSendNanos) {
+        // We need the message until our callback has decided it won't be retried...
+        nextCdr.retain();
+        call(new RetryingCallback(nextCdr, intendedSendNanos));
+    }
+
+    /**
+     * Wait for space in our window and make the call.
+     */
+    private void call(RetryingCallback callback) {
+        try {
+            inFlightWindow.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            callback.drop();
+            return;
+        }
+
+        MediationMessage cdr = callback.cdr;
+        boolean queued;
+
+        try {
+            queued = client.callProcedure(callback, PROCEDURE_NAME, cdr.getSessionId(),
+                    cdr.getSessionStartUTC(), cdr.getSeqno(), cdr.getCallingNumber(),
+                    cdr.getDestination(), cdr.getEventType(), cdr.getRecordStartUTC(),
+                    cdr.getRecordUsage());
+        } catch (Exception e) {
+            callErrorCount.increment();
+            LOGGER.error(e.getMessage());
+            queued = false;
+        }
+
+        if (queued) {
+            sentCount.increment();
+        } else {
+            // The callback will never run...
+            inFlightWindow.release();
+            callback.retryOrDrop();
+        }
+    }
+
+    /**
+     * Resend calls that failed in a way that might work next time.
+     */
+    private void retryLoop() {
+        while (true) {
+            RetryingCallback callback;
+
+            try {
+                callback = retryQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                long waitMs = callback.retryAfterMs - System.currentTimeMillis();
+                if (waitMs > 0) {
+                    Thread.sleep(waitMs);
+                }
+
+                retriedCount.increment();
+                call(callback);
+            } catch (InterruptedException e) {
+                callback.drop();
+                return;
+            } finally {
+                pendingRetries.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void printStatus() {
+        super.printStatus();
+        LOGGER.info("In flight=" + (maxInFlight - inFlightWindow.availablePermits()) + " sent=" + sentCount.sum()
+                + " retried=" + retriedCount.sum() + " awaitingRetry=" + pendingRetries.get()
+                + " dropped=" + droppedCount.sum());
+    }
+
+    @Override
+    public void writeMetrics(PrometheusWriter writer) {
+        super.writeMetrics(writer);
+        writer.gauge("mediation_generator_in_flight", "Calls waiting for a response",
+                maxInFlight - inFlightWindow.availablePermits());
+        writer.gauge("mediation_generator_awaiting_retry", "Failed calls waiting to be retried", pendingRetries.get());
+        writer.counter("mediation_generator_retried_total", "Calls retried", retriedCount.sum());
+        writer.counter("mediation_generator_dropped_total", "CDRs given up on after failing or running out of retries",
+                droppedCount.sum());
+    }
+
+    /**
+     * Wait until nothing is in flight or waiting to be retried.
+     */
+    @Override
+    public void drain() {
+        try {
+            while (pendingRetries.get() > 0 || inFlightWindow.availablePermits() < maxInFlight) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        super.drain();
+    }
+
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    public long getRetriedCount() {
+        return retriedCount.sum();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * One CDR's trip through the window, including any retries.
+     */
+    private class RetryingCallback implements ProcedureCallback {
+
+        final MediationMessage cdr;
+        final long intendedSendNanos;
+        int attempts;
+        long retryAfterMs;
+
+        RetryingCallback(MediationMessage cdr, long intendedSendNanos) {
+            this.cdr = cdr;
+            this.intendedSendNanos = intendedSendNanos;
+        }
+
+        @Override
+        public void clientCallback(ClientResponse response) {
+            inFlightWindow.release();
+
+            byte status = response.getStatus();
+            latencyStats.recordCall(status, intendedSendNanos);
+
+            if (status == ClientResponse.SUCCESS) {
+                cdr.release();
+            } else if (status == ClientResponse.GRACEFUL_FAILURE || status == ClientResponse.CONNECTION_LOST) {
+                retryOrDrop();
+            } else {
+                LOGGER.error("Error Code {}", response.getStatusString());
+                drop();
+            }
+        }
+
+        void retryOrDrop() {
+            if (attempts++ < maxRetries) {
+                retryAfterMs = System.currentTimeMillis() + retryDelayMs;
+                pendingRetries.incrementAndGet();
+                retryQueue.add(this);
+            } else {
+                drop();
+            }
+        }
+
+        void drop() {
+            droppedCount.increment();
+            cdr.release();
+        }
+    }
+}
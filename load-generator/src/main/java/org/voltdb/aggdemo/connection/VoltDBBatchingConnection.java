@@ -0,0 +1,369 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.voltdb.VoltType;
+import org.voltdb.aggdemo.MediationMessage;
+import org.voltdb.aggdemo.metrics.PrometheusWriter;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Groups records by the VoltDB partition they belong to and sends each group
+ * to HandleMediationCDRBatch as a single call. A partition's batch is sent when
+ * it is full or when its oldest record has waited maxBatchDelayMs, whichever
+ * comes first. Records we can't place, because the client doesn't know the
+ * topology yet, are sent on their own to HandleMediationCDR.
+ * <p>
+ * If the topology changes after a batch is filled, a CDR in it may belong to
+ * another partition. Its insert then fails and the whole batch rolls back, so
+ * when a batch fails without committing we resend each of its CDRs on its own.
+ * Resends have a thread of their own, so a backlog of them, or back pressure
+ * while sending them, doesn't hold up the flusher. When the connection is lost
+ * we don't know whether a batch committed, so we don't resend it, but we do
+ * count its CDRs as dropped.
+ */
+public class VoltDBBatchingConnection extends VoltDBConnection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VoltDBBatchingConnection.class);
+
+    static final String BATCH_PROCEDURE_NAME = "HandleMediationCDRBatch";
+
+    private static final byte PARTITION_KEY_TYPE = VoltType.BIGINT.getValue();
+
+    private final int batchSize;
+    private final long maxBatchDelayNanos;
+    private final Map<Long, PartitionBatch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final ExecutorService resender;
+
+    // Failed batches whose CDRs haven't all been resent yet...
+    private final AtomicInteger pendingResends = new AtomicInteger();
+    private final LongAdder resentCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+
+    public VoltDBBatchingConnection(Client client, int batchSize, long maxBatchDelayMs) {
+        super(client);
+        this.batchSize = batchSize;
+        this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMs);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread flushThread = new Thread(r, "VoltDBBatchingConnection-flusher");
+            flushThread.setDaemon(true);
+            return flushThread;
+        });
+
+        // We can't make calls from the client's callback thread, where we find out a batch failed...
+        resender = Executors.newSingleThreadExecutor(r -> {
+            Thread resendThread = new Thread(r, "VoltDBBatchingConnection-resender");
+            resendThread.setDaemon(true);
+            return resendThread;
+        });
+
+        long flushCheckIntervalMs = Math.max(1, maxBatchDelayMs / 2);
+        flusher.scheduleWithFixedDelay(() -> flushBatches(false), flushCheckIntervalMs, flushCheckIntervalMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void sendData(MediationMessage nextCdr, long intendedSendNanos) {
+        long partition = client.getPartitionForParameter(PARTITION_KEY_TYPE, nextCdr.getSessionId());
+
+        if (partition < 0) {
+            super.sendData(nextCdr, intendedSendNanos);
+            return;
+        }
+
+        PartitionBatch batch = batches.computeIfAbsent(partition, p -> new PartitionBatch(batchSize));
+        BatchCall fullBatch = null;
+
+        synchronized (batch) {
+            batch.add(nextCdr, intendedSendNanos);
+
+            if (batch.size == batchSize) {
+                fullBatch = batch.take();
+            }
+        }
+
+        // We call outside the lock, so back pressure only stalls this thread...
+        if (fullBatch != null) {
+            send(fullBatch);
+        }
+    }
+
+    /**
+     * Send batches that are old enough, or all of them if 'everything' is true.
+     */
+    private void flushBatches(boolean everything) {
+        long now = System.nanoTime();
+
+        for (PartitionBatch batch : batches.values()) {
+            BatchCall dueBatch = null;
+
+            synchronized (batch) {
+                if (batch.size > 0 && (everything || now - batch.firstAddedNanos >= maxBatchDelayNanos)) {
+                    dueBatch = batch.take();
+                }
+            }
+
+            if (dueBatch != null) {
+                send(dueBatch);
+            }
+        }
+    }
+
+    /**
+     * Send a batch, routed on its first CDR's sessionId.
+     */
+    private void send(BatchCall call) {
+        try {
+            client.callProcedure(new ResendingBatchCallback(call), BATCH_PROCEDURE_NAME, call.sessionIds[0],
+                    call.sessionIds, call.sessionStartUTCs, call.seqnos, call.callingNumbers, call.destinations,
+                    call.recordTypes, call.recordStartUTCs, call.recordUsages);
+        } catch (Exception e) {
+            callErrorCount.increment();
+            LOGGER.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Send each CDR in a batch that failed to HandleMediationCDR on its own, so
+     * the client routes each one to the partition it now belongs to.
+     */
+    private void resendEach(BatchCall call) {
+        try {
+            for (int i = 0; i < call.sessionIds.length; i++) {
+                try {
+                    client.callProcedure(new DropCountingCallback(call.intendedSendNanos[i]), PROCEDURE_NAME, call.sessionIds[i], call.sessionStartUTCs[i], call.seqnos[i],
+                            call.callingNumbers[i], call.destinations[i], call.recordTypes[i],
+                            call.recordStartUTCs[i], call.recordUsages[i]);
+                    resentCount.increment();
+                } catch (Exception e) {
+                    callErrorCount.increment();
+                    LOGGER.error(e.getMessage());
+                }
+            }
+        } finally {
+            pendingResends.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void printStatus() {
+        latencyStats.printStatus(LOGGER, BATCH_PROCEDURE_NAME + " (per CDR)");
+        LOGGER.info("CDRs resent on their own after their batch failed=" + resentCount.sum()
+                + " CDRs dropped when the connection was lost=" + droppedCount.sum());
+    }
+
+    @Override
+    public void writeMetrics(PrometheusWriter writer) {
+        super.writeMetrics(writer);
+        writer.counter("mediation_generator_batch_resent_total",
+                "CDRs resent on their own after their batch failed", resentCount.sum());
+        writer.counter("mediation_generator_batch_dropped_total",
+                "CDRs that may not have reached the server because the connection was lost", droppedCount.sum());
+    }
+
+    @Override
+    protected String getProcedureName() {
+        return BATCH_PROCEDURE_NAME;
+    }
+
+    @Override
+    public void drain() {
+        flushBatches(true);
+        super.drain();
+
+        // Failed batches may have left CDRs to resend, which need draining too...
+        try {
+            while (pendingResends.get() > 0) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        super.drain();
+    }
+
+    /**
+     * Records each CDR's latency, unless the batch failed without committing,
+     * in which case we resend its CDRs and let their own calls record it.
+     */
+    private class ResendingBatchCallback extends BatchLatencyRecordingCallback {
+
+        private final BatchCall call;
+
+        ResendingBatchCallback(BatchCall call) {
+            super(latencyStats, call.intendedSendNanos);
+            this.call = call;
+        }
+
+        @Override
+        public void clientCallback(ClientResponse arg0) {
+            byte status = arg0.getStatus();
+
+            if (status == ClientResponse.GRACEFUL_FAILURE || status == ClientResponse.UNEXPECTED_FAILURE
+                    || status == ClientResponse.USER_ABORT) {
+                LOGGER.warn("{} of {} CDRs failed ({}), resending them one at a time", BATCH_PROCEDURE_NAME,
+                        call.sessionIds.length, arg0.getStatusString());
+
+                pendingResends.incrementAndGet();
+                resender.execute(() -> resendEach(call));
+                return;
+            }
+
+            if (status == ClientResponse.CONNECTION_LOST) {
+                droppedCount.add(call.sessionIds.length);
+            }
+
+            super.clientCallback(arg0);
+        }
+    }
+
+    /**
+     * Records a resent CDR's latency, and counts it as dropped if the connection
+     * is lost.
+     */
+    private class DropCountingCallback extends LatencyRecordingCallback {
+
+        DropCountingCallback(long intendedSendNanos) {
+            super(latencyStats, intendedSendNanos);
+        }
+
+        @Override
+        public void clientCallback(ClientResponse arg0) {
+            if (arg0.getStatus() == ClientResponse.CONNECTION_LOST) {
+                droppedCount.increment();
+            }
+
+            super.clientCallback(arg0);
+        }
+    }
+
+    /**
+     * One batch's CDRs, trimmed to exactly the length the procedure expects.
+     */
+    private static class BatchCall {
+
+        final long[] sessionIds;
+        final long[] sessionStartUTCs;
+        final int[] seqnos;
+        final String[] callingNumbers;
+        final String[] destinations;
+        final String[] recordTypes;
+        final long[] recordStartUTCs;
+        final long[] recordUsages;
+        final long[] intendedSendNanos;
+
+        BatchCall(PartitionBatch batch) {
+            int size = batch.size;
+            sessionIds = Arrays.copyOf(batch.sessionIds, size);
+            sessionStartUTCs = Arrays.copyOf(batch.sessionStartUTCs, size);
+            seqnos = Arrays.copyOf(batch.seqnos, size);
+            callingNumbers = Arrays.copyOf(batch.callingNumbers, size);
+            destinations = Arrays.copyOf(batch.destinations, size);
+            recordTypes = Arrays.copyOf(batch.recordTypes, size);
+            recordStartUTCs = Arrays.copyOf(batch.recordStartUTCs, size);
+            recordUsages = Arrays.copyOf(batch.recordUsages, size);
+            intendedSendNanos = Arrays.copyOf(batch.intendedSendNanos, size);
+        }
+    }
+
+    /**
+     * CDRs waiting to go to one partition, stored as the parallel arrays
+     * HandleMediationCDRBatch takes.
+     */
+    private static class PartitionBatch {
+
+        final long[] sessionIds;
+        final long[] sessionStartUTCs;
+        final int[] seqnos;
+        final String[] callingNumbers;
+        final String[] destinations;
+        final String[] recordTypes;
+        final long[] recordStartUTCs;
+        final long[] recordUsages;
+        final long[] intendedSendNanos;
+
+        int size;
+        long firstAddedNanos;
+
+        PartitionBatch(int batchSize) {
+            sessionIds = new long[batchSize];
+            sessionStartUTCs = new long[batchSize];
+            seqnos = new int[batchSize];
+            callingNumbers = new String[batchSize];
+            destinations = new String[batchSize];
+            recordTypes = new String[batchSize];
+            recordStartUTCs = new long[batchSize];
+            recordUsages = new long[batchSize];
+            intendedSendNanos = new long[batchSize];
+        }
+
+        void add(MediationMessage cdr, long intendedSendNano) {
+            if (size == 0) {
+                firstAddedNanos = System.nanoTime();
+            }
+
+            sessionIds[size] = cdr.getSessionId();
+            sessionStartUTCs[size] = cdr.getSessionStartUTC();
+            seqnos[size] = (int) cdr.getSeqno();
+            callingNumbers[size] = cdr.getCallingNumber();
+            destinations[size] = cdr.getDestination();
+            recordTypes[size] = cdr.getEventType();
+            recordStartUTCs[size] = cdr.getRecordStartUTC();
+            recordUsages[size] = cdr.getRecordUsage();
+            intendedSendNanos[size] = intendedSendNano;
+            size++;
+        }
+
+        /**
+         * @return What we hold, ready to send, leaving us empty.
+         */
+        BatchCall take() {
+            BatchCall call = new BatchCall(this);
+            clear();
+            return call;
+        }
+
+        void clear() {
+            Arrays.fill(callingNumbers, 0, size, null);
+            Arrays.fill(destinations, 0, size, null);
+            Arrays.fill(recordTypes, 0, size, null);
+            size = 0;
+        }
+    }
+}
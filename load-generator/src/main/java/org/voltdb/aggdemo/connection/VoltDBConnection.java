@@ -0,0 +1,104 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.voltdb.aggdemo.MediationMessage;
+import org.voltdb.aggdemo.metrics.PrometheusWriter;
+import org.voltdb.client.Client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends each record straight to VoltDB as a call to HandleMediationCDR, and
+ * keeps latency histograms for the calls.
+ */
+public class VoltDBConnection implements Connection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VoltDBConnection.class);
+
+    static final String PROCEDURE_NAME = "HandleMediationCDR";
+
+    protected final Client client;
+    protected final CallLatencyStats latencyStats = new CallLatencyStats();
+
+    // Calls the client wouldn't even queue...
+    protected final LongAdder callErrorCount = new LongAdder();
+
+    public VoltDBConnection(Client client) {
+        this.client = client;
+    }
+
+    @Override
+    public void sendData(MediationMessage nextCdr) {
+        sendData(nextCdr, System.nanoTime());
+    }
+
+    /**
+     * Note that callProcedure serializes its parameters before it returns, so a
+     * pooled message can be recycled as soon as we are done.
+     */
+    @Override
+    public void sendData(MediationMessage nextCdr, long intendedSendNanos) {
+        try {
+            LatencyRecordingCallback callback = new LatencyRecordingCallback(latencyStats, intendedSendNanos);
+
+            client.callProcedure(callback, PROCEDURE_NAME, nextCdr.getSessionId(),
+                    nextCdr.getSessionStartUTC(), nextCdr.getSeqno(), nextCdr.getCallingNumber(),
+                    nextCdr.getDestination(), nextCdr.getEventType(), nextCdr.getRecordStartUTC(),
+                    nextCdr.getRecordUsage());
+        } catch (Exception e) {
+            callErrorCount.increment();
+            LOGGER.error(e.getMessage());
+        }
+    }
+
+    @Override
+    public void printStatus() {
+        latencyStats.printStatus(LOGGER, PROCEDURE_NAME);
+    }
+
+    @Override
+    public void writeMetrics(PrometheusWriter writer) {
+        latencyStats.writeMetrics(writer, getProcedureName());
+        writer.counter("mediation_generator_connection_errors_total", "Sends that failed before reaching the server",
+                callErrorCount.sum(), "connection", "voltdb");
+    }
+
+    /**
+     * @return The procedure our latencyStats are for.
+     */
+    protected String getProcedureName() {
+        return PROCEDURE_NAME;
+    }
+
+    @Override
+    public void drain() {
+        try {
+            client.drain();
+        } catch (Exception e) {
+            LOGGER.error(e.getMessage());
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.voltdb.aggdemo.connection;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.voltdb.aggdemo.DataGeneratorConfig;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientConfig;
 import org.voltdb.client.ClientFactory;
@@ -10,8 +11,35 @@ public class VoltDBConnectionFactory extends ConnectionFactory {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(VoltDBConnectionFactory.class);
 
+    private final DataGeneratorConfig config;
+
+    public VoltDBConnectionFactory(DataGeneratorConfig config) {
+        this.config = config;
+    }
+
     @Override
     public Connection create(String commaDelimitedHostnames) {
+        Client client = connectToVoltDB(commaDelimitedHostnames);
+
+        if (config.getBatchSize() > 1) {
+            LOGGER.info("Sending CDRs in batches of up to " + config.getBatchSize() + " per partition");
+            return new VoltDBBatchingConnection(client, config.getBatchSize(), config.getBatchDelayMs());
+        }
+
+        if (config.getMaxInFlight() > 0) {
+            LOGGER.info("Allowing up to " + config.getMaxInFlight() + " calls in flight, with up to "
+                    + config.getMaxRetries() + " retries");
+            return new VoltDBBackpressureConnection(client, config.getMaxInFlight(), config.getMaxRetries(),
+                    config.getRetryDelayMs());
+        }
+
+        return new VoltDBConnection(client);
+    }
+
+    /**
+     * Create a topology aware VoltDB client connected to every host in our list.
+     */
+    static Client connectToVoltDB(String commaDelimitedHostnames) {
         Client client;
         ClientConfig config;
 
@@ -40,17 +68,6 @@ public class VoltDBConnectionFactory extends ConnectionFactory {
             throw new RuntimeException("VoltDB connection failed", e);
         }
 
-        return nextCdr -> {
-            try {
-                ComplainOnErrorCallback errorCallback = new ComplainOnErrorCallback();
-
-                client.callProcedure(errorCallback, "HandleMediationCDR", nextCdr.getSessionId(),
-                        nextCdr.getSessionStartUTC(), nextCdr.getSeqno(), nextCdr.getCallingNumber(),
-                        nextCdr.getDestination(), nextCdr.getEventType(), nextCdr.getRecordStartUTC(),
-                        nextCdr.getRecordUsage());
-            } catch (Exception e) {
-                LOGGER.error(e.getMessage());
-            }
-        };
+        return client;
     }
 }
@@ -0,0 +1,112 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+
+import java.util.Map;
+
+/**
+ * Kafka partitioner that sends each sessionId to the Kafka partition with the
+ * same number as the VoltDB partition that owns that sessionId in cdr_dupcheck.
+ * It uses the VoltDB client's own hashinator, so it follows the cluster's
+ * topology. When the topic has as many partitions as VoltDB does, each Kafka
+ * partition feeds exactly one VoltDB site.
+ * <p>
+ * The VoltDB servers to ask are passed in the producer property
+ * VOLTDB_SERVERS_CONFIG.
+ */
+public class VoltDBPartitionAlignedPartitioner implements Partitioner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VoltDBPartitionAlignedPartitioner.class);
+
+    public static final String VOLTDB_SERVERS_CONFIG = "voltdb.servers";
+
+    private static final byte PARTITION_KEY_TYPE = VoltType.BIGINT.getValue();
+
+    private Client client;
+    private volatile boolean haveWarnedAboutMisalignment;
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        Object voltServers = configs.get(VOLTDB_SERVERS_CONFIG);
+
+        if (voltServers == null) {
+            throw new IllegalArgumentException(VOLTDB_SERVERS_CONFIG + " must be set to use "
+                    + VoltDBPartitionAlignedPartitioner.class.getSimpleName());
+        }
+
+        client = VoltDBConnectionFactory.connectToVoltDB(voltServers.toString());
+    }
+
+    @Override
+    public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes,
+                         Cluster cluster) {
+        int kafkaPartitionCount = cluster.partitionCountForTopic(topic);
+
+        if (key == null) {
+            return 0;
+        }
+
+        long voltPartition = client.getPartitionForParameter(PARTITION_KEY_TYPE, key);
+
+        if (voltPartition < 0) {
+            // We don't know the topology yet. Fall back to what Kafka would do...
+            return Utils.toPositive(Utils.murmur2(keyBytes)) % kafkaPartitionCount;
+        }
+
+        if (voltPartition >= kafkaPartitionCount && !haveWarnedAboutMisalignment) {
+            LOGGER.warn("Topic " + topic + " has " + kafkaPartitionCount
+                    + " partitions, which is fewer than VoltDB has. Use --create-topic to fix this.");
+            haveWarnedAboutMisalignment = true;
+        }
+
+        return (int) (voltPartition % kafkaPartitionCount);
+    }
+
+    @Override
+    public void close() {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return How many partitions VoltDB has, according to @GetPartitionKeys
+     */
+    public static int getVoltPartitionCount(Client client) throws Exception {
+        VoltTable partitionKeys = client.callProcedure("@GetPartitionKeys", "INTEGER").getResults()[0];
+        return partitionKeys.getRowCount();
+    }
+}
@@ -0,0 +1,92 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * An embedded HTTP server that serves our metrics on /metrics in Prometheus
+ * format, using the HTTP server built into the JDK. Each scrape builds a new
+ * page by calling 'metricsSource'.
+ */
+public class MetricsHttpServer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+    public static final String PATH = "/metrics";
+
+    private final HttpServer server;
+
+    public MetricsHttpServer(int port, Consumer<PrometheusWriter> metricsSource) {
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to listen for metrics scrapes on port " + port, e);
+        }
+
+        server.createContext(PATH, exchange -> handle(exchange, metricsSource));
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "MetricsHttpServer");
+            thread.setDaemon(true);
+            return thread;
+        }));
+
+        server.start();
+        LOGGER.info("Serving metrics on http://localhost:" + port + PATH);
+    }
+
+    private static void handle(HttpExchange exchange, Consumer<PrometheusWriter> metricsSource) throws IOException {
+        try {
+            PrometheusWriter writer = new PrometheusWriter();
+            metricsSource.accept(writer);
+
+            byte[] page = writer.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", PrometheusWriter.CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, page.length);
+
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(page);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to build metrics: " + e.getMessage());
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
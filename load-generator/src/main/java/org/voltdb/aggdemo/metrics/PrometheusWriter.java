@@ -0,0 +1,95 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.metrics;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Builds a page of metrics in the Prometheus text exposition format. HELP and
+ * TYPE lines are written the first time a metric is seen, so more than one
+ * component can add samples to the same metric. Not thread safe - use one per
+ * scrape.
+ */
+public class PrometheusWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder page = new StringBuilder(4096);
+    private final Set<String> describedMetrics = new HashSet<>();
+
+    /**
+     * Add a sample of a counter.
+     *
+     * @param labels - label name, label value, label name, label value...
+     */
+    public PrometheusWriter counter(String name, String help, double value, String... labels) {
+        return sample(name, "counter", help, value, labels);
+    }
+
+    /**
+     * Add a sample of a gauge.
+     *
+     * @param labels - label name, label value, label name, label value...
+     */
+    public PrometheusWriter gauge(String name, String help, double value, String... labels) {
+        return sample(name, "gauge", help, value, labels);
+    }
+
+    private PrometheusWriter sample(String name, String type, String help, double value, String[] labels) {
+        if (describedMetrics.add(name)) {
+            page.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            page.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        page.append(name);
+
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            page.append(i == 0 ? '{' : ',').append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+
+        if (labels.length > 1) {
+            page.append('}');
+        }
+
+        page.append(' ');
+
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            page.append((long) value);
+        } else {
+            page.append(value);
+        }
+
+        page.append('\n');
+        return this;
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String toString() {
+        return page.toString();
+    }
+}
@@ -0,0 +1,120 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.aggdemo.pacing;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How our send rate changes over the course of a run. The rate is tpMs times a
+ * multiplier that moves between 'low' and 'high':
+ * <ul>
+ * <li>FLAT - always 1. What we've always done.</li>
+ * <li>RAMP - climbs steadily from low to high over one period, then stays at high.</li>
+ * <li>STEP - low for one period, then high for the rest of the run.</li>
+ * <li>SPIKE - low, except for the last tenth of each period, which is high.</li>
+ * <li>DIURNAL - a day in miniature. Moves smoothly from low up to high and back
+ * again once per period.</li>
+ * </ul>
+ * STEP with a high of 1.5 is how we check that the server can catch up at 1.5
+ * times the normal rate. Immutable, so it can be shared by workers.
+ */
+public class LoadProfile {
+
+    public enum Shape {
+        FLAT, RAMP, STEP, SPIKE, DIURNAL
+    }
+
+    // How much of each SPIKE period is spent at 'high'...
+    private static final double SPIKE_FRACTION = 0.1;
+
+    public static final LoadProfile FLAT = new LoadProfile(Shape.FLAT, 1, 1, 1);
+
+    private final Shape shape;
+    private final long periodNanos;
+    private final double low;
+    private final double high;
+
+    /**
+     * @param shape         - What kind of profile
+     * @param periodSeconds - How long a ramp, step or cycle takes
+     * @param low           - Smallest multiplier of tpMs
+     * @param high          - Biggest multiplier of tpMs
+     */
+    public LoadProfile(Shape shape, int periodSeconds, double low, double high) {
+        if (periodSeconds <= 0) {
+            throw new IllegalArgumentException("Profile period must be positive, not " + periodSeconds);
+        }
+
+        if (low <= 0 || high <= 0) {
+            throw new IllegalArgumentException("Profile multipliers must be positive, not " + low + " and " + high);
+        }
+
+        this.shape = shape;
+        this.periodNanos = TimeUnit.SECONDS.toNanos(periodSeconds);
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * @param elapsedNanos - How long we've been running
+     * @return What to multiply tpMs by
+     */
+    public double getMultiplier(long elapsedNanos) {
+        double periodFraction = (double) (elapsedNanos % periodNanos) / periodNanos;
+
+        switch (shape) {
+            case RAMP:
+                if (elapsedNanos >= periodNanos) {
+                    return high;
+                }
+
+                return low + ((high - low) * periodFraction);
+
+            case STEP:
+                return elapsedNanos < periodNanos ? low : high;
+
+            case SPIKE:
+                return periodFraction >= 1 - SPIKE_FRACTION ? high : low;
+
+            case DIURNAL:
+                return low + ((high - low) * (1 - Math.cos(2 * Math.PI * periodFraction)) / 2);
+
+            default:
+                return 1;
+        }
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    @Override
+    public String toString() {
+        if (shape == Shape.FLAT) {
+            return shape.toString();
+        }
+
+        return shape + " period=" + TimeUnit.NANOSECONDS.toSeconds(periodNanos) + "s low=" + low + " high=" + high;
+    }
+}
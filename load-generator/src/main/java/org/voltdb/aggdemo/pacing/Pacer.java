@@ -0,0 +1,141 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.voltdb.aggdemo.pacing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands out send permits on a fixed schedule. It replaces a RateLimiter, which
+ * locks and reads the clock for every permit and sleeps in millisecond steps,
+ * so above about a million permits a second it costs more than the work it's
+ * pacing and the rate we get drifts away from the one we asked for.
+ * <p>
+ * Instead, each permit has an absolute due time, which is the previous permit's
+ * due time plus the gap the LoadProfile asks for. We never measure from when we
+ * happened to wake up, so oversleeping doesn't add up over a run. When we read
+ * the clock we hand out every permit that has fallen due, up to maxBatch,
+ * without looking at it again. When the next permit isn't due yet, we park
+ * until SPIN_NANOS before it is due, and spin the rest of the way.
+ * <p>
+ * Not thread safe. Each worker has its own.
+ */
+public class Pacer {
+
+    // parkNanos can't be trusted to wake us up more accurately than this...
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final double permitsPerSecond;
+    private final LoadProfile profile;
+    private final int maxBatch;
+    private final long startNanos;
+
+    // When, relative to startNanos, the next permit is due. A double so fractions
+    // of a nanosecond per permit aren't lost at high rates...
+    private double nextDueNanos;
+
+    private double nanosPerPermit;
+
+    // Permits we know are due but haven't handed out yet...
+    private int duePermits;
+
+    private volatile double currentPermitsPerSecond;
+
+    /**
+     * @param permitsPerSecond - Our rate when the profile's multiplier is 1
+     * @param profile          - How the rate changes over time
+     * @param maxBatch         - Most permits we'll hand out from a single clock read
+     */
+    public Pacer(double permitsPerSecond, LoadProfile profile, int maxBatch) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.profile = profile;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.startNanos = System.nanoTime();
+
+        setRate(0);
+    }
+
+    /**
+     * Wait until our next permit is due.
+     *
+     * @return When, in System.nanoTime() terms, it was due. This, and not when we
+     * got it, is what latency should be measured from.
+     */
+    public long acquire() {
+        if (duePermits == 0) {
+            long elapsedNanos = System.nanoTime() - startNanos;
+
+            if (elapsedNanos < nextDueNanos) {
+                elapsedNanos = waitFor((long) Math.ceil(nextDueNanos));
+            }
+
+            // Rates are only changed here, so a change takes effect at most
+            // maxBatch permits late...
+            setRate(elapsedNanos);
+
+            duePermits = (int) Math.min(maxBatch, 1 + (long) ((elapsedNanos - nextDueNanos) / nanosPerPermit));
+        }
+
+        duePermits--;
+
+        long dueNanos = startNanos + (long) nextDueNanos;
+        nextDueNanos += nanosPerPermit;
+
+        return dueNanos;
+    }
+
+    /**
+     * Park, and then spin, until we get to 'dueNanos'.
+     *
+     * @return How long we've been running when we get there.
+     */
+    private long waitFor(long dueNanos) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        while (elapsedNanos < dueNanos) {
+            long remainingNanos = dueNanos - elapsedNanos;
+
+            if (remainingNanos > SPIN_NANOS) {
+                LockSupport.parkNanos(remainingNanos - SPIN_NANOS);
+            }
+
+            elapsedNanos = System.nanoTime() - startNanos;
+        }
+
+        return elapsedNanos;
+    }
+
+    private void setRate(long elapsedNanos) {
+        currentPermitsPerSecond = permitsPerSecond * profile.getMultiplier(elapsedNanos);
+        nanosPerPermit = TimeUnit.SECONDS.toNanos(1) / currentPermitsPerSecond;
+    }
+
+    /**
+     * @return How many permits a second we're currently handing out. Safe to call from
+     * other threads.
+     */
+    public double getCurrentPermitsPerSecond() {
+        return currentPermitsPerSecond;
+    }
+}
@@ -0,0 +1,181 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.voltdb.aggdemo.connection;
+
+import org.junit.Test;
+import org.voltdb.aggdemo.MediationMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Encode messages with MediationMessageCsvEncoder and parse them back the way
+ * the format="csv" importer does, in HandleMediationCDR's parameter order.
+ */
+public class MediationMessageCsvEncoderTest {
+
+    private final MediationMessageCsvEncoder encoder = new MediationMessageCsvEncoder();
+
+    @Test
+    public void plainMessageRoundTrips() {
+        assertRoundTrips(message(42, 1634428800000L, 0, "Num1234", "DEST0", "S", 1634428800123L, 100));
+    }
+
+    @Test
+    public void nullCallingNumberIsWrittenAsNull() {
+        MediationMessage message = message(42, 1634428800000L, 3, null, "DEST0", "I", 1634428801000L, 5);
+
+        String[] fields = encodeAndParse(message);
+
+        assertNull(fields[3]);
+        assertRoundTrips(message);
+    }
+
+    @Test
+    public void numericCallingNumberRoundTrips() {
+        MediationMessage message = message(7, 1634428800000L, 1, null, "DEST1", "I", 1634428800500L, 10);
+        message.setCallingNumber(5551234L);
+
+        assertEquals(MediationMessage.CALLING_NUMBER_PREFIX + 5551234L, encodeAndParse(message)[3]);
+        assertRoundTrips(message);
+    }
+
+    @Test
+    public void dateIs1970RoundTrips() {
+        MediationMessage message = message(8, 1634428800000L, 2, "Num1", "DEST2", "I", 0, 10);
+
+        assertEquals("0", encodeAndParse(message)[6]);
+        assertRoundTrips(message);
+    }
+
+    @Test
+    public void extremeNumbersRoundTrip() {
+        assertRoundTrips(message(Long.MAX_VALUE, Long.MIN_VALUE, 255, "Num9", "DEST3", "E", -1, 0));
+    }
+
+    @Test
+    public void awkwardStringsAreQuoted() {
+        assertRoundTrips(message(9, 1634428800000L, 4, "\\N", "a,b \"c\" \u00e9", "I", 1634428800000L, 1));
+    }
+
+    @Test
+    public void bufferGrowsAndIsReused() {
+        MediationMessageCsvEncoder smallEncoder = new MediationMessageCsvEncoder(4);
+        MediationMessage longMessage = message(1, 2, 3, "Num4", "A_LONG_DESTINATION_NAME", "E", 5, 6);
+        MediationMessage shortMessage = message(1, 2, 3, "Num4", "D", "E", 5, 6);
+
+        smallEncoder.encode(longMessage);
+        int length = smallEncoder.encode(shortMessage);
+
+        assertEquals(length, smallEncoder.toByteArray().length);
+        assertFields(shortMessage, parse(new String(smallEncoder.getBuffer(), 0, length, StandardCharsets.UTF_8)));
+    }
+
+    private static MediationMessage message(long sessionId, long sessionStartUTC, long seqno, String callingNumber,
+                                            String destination, String recordType, long recordStartUTC,
+                                            long recordUsage) {
+        MediationMessage message = new MediationMessage(sessionId, sessionStartUTC, seqno, callingNumber,
+                destination);
+        message.setEventType(recordType);
+        message.setRecordStartUTC(recordStartUTC);
+        message.setRecordUsage(recordUsage);
+
+        return message;
+    }
+
+    private void assertRoundTrips(MediationMessage message) {
+        assertFields(message, encodeAndParse(message));
+    }
+
+    private String[] encodeAndParse(MediationMessage message) {
+        int length = encoder.encode(message);
+
+        assertEquals(length, encoder.getLength());
+        return parse(new String(encoder.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Check 'fields' are HandleMediationCDR's parameters for 'message'.
+     */
+    private static void assertFields(MediationMessage message, String[] fields) {
+        assertEquals(MediationMessageCsvEncoder.FIELD_COUNT, fields.length);
+        assertEquals(message.getSessionId(), Long.parseLong(fields[0]));
+        assertEquals(message.getSessionStartUTC(), Long.parseLong(fields[1]));
+        assertEquals(message.getSeqno(), Long.parseLong(fields[2]));
+        assertEquals(message.getCallingNumber(), fields[3]);
+        assertEquals(message.getDestination(), fields[4]);
+        assertEquals(message.getEventType(), fields[5]);
+        assertEquals(message.getRecordStartUTC(), Long.parseLong(fields[6]));
+        assertEquals(message.getRecordUsage(), Long.parseLong(fields[7]));
+    }
+
+    /**
+     * Split a line of CSV, where "" inside quotes is a quote and an unquoted \N
+     * is null.
+     */
+    private static String[] parse(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                fields.add(toField(field, wasQuoted));
+                field.setLength(0);
+                wasQuoted = false;
+            } else {
+                field.append(c);
+            }
+        }
+
+        fields.add(toField(field, wasQuoted));
+        return fields.toArray(new String[0]);
+    }
+
+    private static String toField(StringBuilder field, boolean wasQuoted) {
+        if (!wasQuoted && "\\N".contentEquals(field)) {
+            return null;
+        }
+
+        return field.toString();
+    }
+}
@@ -27,6 +27,9 @@ import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
 import org.voltdb.types.TimestampType;
 
+import java.util.Date;
+import java.util.Map;
+
 /**
  * Abstract procedure class that contains shared aggregation and cancelation functionality.
  */
@@ -35,9 +38,50 @@ public abstract class AbstractMediationProcedure extends VoltProcedure {
     public static final SQLStmt getParameter = new SQLStmt(
             "SELECT parameter_value FROM mediation_parameters WHERE parameter_name = ? ;");
 
+    public static final SQLStmt getAllParameters = new SQLStmt(
+            "SELECT parameter_name, parameter_value FROM mediation_parameters;");
+
+    // Adds to this partition's row for a metric, or changes nothing if it hasn't got one...
+    public static final SQLStmt countMetric = new SQLStmt(
+            "UPSERT INTO mediation_metrics (partition_key, metric, how_many, metric_usage, cdr_count, partition_id) "
+                    + "SELECT partition_key, metric, how_many + ?, metric_usage + ?, cdr_count + ?, partition_id "
+                    + "FROM mediation_metrics WHERE metric = ? ORDER BY partition_key LIMIT 1;");
+
+    public static final SQLStmt createMetric = new SQLStmt(
+            "INSERT INTO mediation_metrics (partition_key, metric, how_many, metric_usage, cdr_count) "
+                    + "VALUES (?, ?, ?, ?, ?);");
+
     public static final SQLStmt deleteSessionRunningTotals = new SQLStmt(
             "DELETE FROM unaggregated_cdrs_by_session WHERE sessionId = ? AND sessionStartUTC = ?;");
 
+    public static final SQLStmt setSessionCallingNumber = new SQLStmt(
+            "UPDATE cdr_dupcheck SET callingNumber = ? WHERE sessionId = ? AND sessionStartUTC = ?;");
+
+    public static final SQLStmt reportNewSession = new SQLStmt(
+            "INSERT INTO new_sessions (callingNumber, sessionId, sessionStartUTC) VALUES (?, ?, ?);");
+
+    public static final SQLStmt upsertSessionExpiry = new SQLStmt(
+            "UPSERT INTO session_expiry (sessionId, sessionStartUTC, expiry_bucket) VALUES (?, ?, ?);");
+
+    public static final SQLStmt deleteSessionExpiry = new SQLStmt(
+            "DELETE FROM session_expiry WHERE sessionId = ? AND sessionStartUTC = ?;");
+
+
+    public static final SQLStmt createSessionWithTotals = new SQLStmt(
+            "INSERT INTO cdr_dupcheck "
+                    + "(sessionId  , sessionStartUTC  , callingNumber , used_seqno_array "
+                    + ", unaggregated_usage, insert_date, destination, unagg_count"
+                    + ", unagg_min_seqno, unagg_max_seqno, unagg_min_recordStartUTC, unagg_max_recordStartUTC"
+                    + ", expiry_bucket)"
+                    + " VALUES "
+                    + "(?,?,?,?,?, NOW, ?,?,?,?,?,?,?)");
+
+    public static final SQLStmt updateSessionWithTotals = new SQLStmt(
+            "UPDATE cdr_dupcheck SET used_seqno_array = ?, unaggregated_usage = ?, destination = ?"
+                    + ", unagg_count = ?, unagg_min_seqno = ?, unagg_max_seqno = ?"
+                    + ", unagg_min_recordStartUTC = ?, unagg_max_recordStartUTC = ?, expiry_bucket = ? "
+                    + "WHERE sessionId = ? AND sessionStartUTC = ?;");
+
     public static final SQLStmt createAggregatedSession = new SQLStmt(
             "INSERT INTO aggregated_cdrs  " +
                     "( reason, sessionId, " +
@@ -66,19 +110,71 @@ public abstract class AbstractMediationProcedure extends VoltProcedure {
     public static final SQLStmt updateAggStatus = new SQLStmt(
             "UPDATE cdr_dupcheck SET last_agg_date = NOW, agg_state = ?"
                     + ", aggregated_usage = aggregated_usage + ?"
-                    + ", unaggregated_usage = 0 "
+                    + ", unaggregated_usage = 0, expiry_bucket = NULL "
+                    + "WHERE sessionId = ? AND sessionStartUTC = ?;");
+
+    // updateAggStatus for a session that keeps its running totals in cdr_dupcheck,
+    // which clears them too...
+    public static final SQLStmt updateAggStatusAndClearTotalsInRow = new SQLStmt(
+            "UPDATE cdr_dupcheck SET last_agg_date = NOW, agg_state = ?"
+                    + ", aggregated_usage = aggregated_usage + ?"
+                    + ", unaggregated_usage = 0, expiry_bucket = NULL"
+                    + ", unagg_count = 0, unagg_min_seqno = NULL, unagg_max_seqno = NULL"
+                    + ", unagg_min_recordStartUTC = NULL, unagg_max_recordStartUTC = NULL "
                     + "WHERE sessionId = ? AND sessionStartUTC = ?;");
 
     protected static final String AGG_USAGE = "AGG_USAGE";
     protected static final String AGG_SEQNOCOUNT = "AGG_SEQNOCOUNT";
     protected static final String STALENESS_THRESHOLD_MS = "STALENESS_THRESHOLD_MS";
     protected static final String AGG_WINDOW_SIZE_MS = "AGG_WINDOW_SIZE_MS";
-    protected static final Object STALENESS_ROWLIMIT = "STALENESS_ROWLIMIT";
+    protected static final String STALENESS_ROWLIMIT = "STALENESS_ROWLIMIT";
+    protected static final String AGG_WINDOW_MAX_MS = "AGG_WINDOW_MAX_MS";
+    protected static final String FLUSH_MAX_ROWLIMIT = "FLUSH_MAX_ROWLIMIT";
+    protected static final String FLUSH_TIME_BUDGET_MS = "FLUSH_TIME_BUDGET_MS";
+    protected static final String FLUSH_BULK_CLOSE = "FLUSH_BULK_CLOSE";
+    protected static final String SESSION_STATE_IN_ROW = "SESSION_STATE_IN_ROW";
+    protected static final String SESSION_EXPIRY_GAP_MULTIPLE = "SESSION_EXPIRY_GAP_MULTIPLE";
+    protected static final String SESSION_EXPIRY_MIN_MS = "SESSION_EXPIRY_MIN_MS";
+    protected static final String SESSION_EXPIRY_BUCKET_MS = "SESSION_EXPIRY_BUCKET_MS";
+
+    // VoltDB won't let us queue more than this many statements at once...
+    protected static final int MAX_QUEUED_STATEMENTS = 200;
+
+    // Most statements aggregateSession() or cancelLateSession() will queue...
+    protected static final int CLOSE_SESSION_STATEMENT_COUNT = 3;
+
+    // Most statements queueMetrics() or queueMissingMetrics() will queue...
+    protected static final int METRICS_STATEMENT_COUNT = MediationMetrics.METRIC_NAMES.length;
+
+    protected final MediationMetrics metrics = new MediationMetrics();
+
+    protected long aggSeqnoThreshold = 50;
+    protected long aggUsageThreshold = 1000000;
+
+    protected long stalenessThresholdMs = 300000;
+    protected long expiryGapMultiple = 10;
+    protected long expiryMinMs = 120000;
+    protected long expiryBucketMs = 60000;
+
+    /**
+     * Aggregate a session. We assume that totalRecordsTable is currently on the right row,
+     * and that its columns are laid out like unaggregated_cdrs_by_session's.
+     *
+     * @param totalsInRow - true if the session keeps its running totals in cdr_dupcheck
+     */
+    protected void aggregateSession(VoltTable totalRecordsTable, String aggReason, boolean totalsInRow) {
+        aggregateSession(totalRecordsTable, aggReason, totalsInRow, true);
+    }
 
     /**
-     * Aggregate a session. We assume that totalRecordsTable is currently on the right row.
+     * Aggregate a session, as above.
+     *
+     * @param deleteViewRow - false if the caller will delete the session's
+     *                      unaggregated_cdrs_by_session row itself
+     * @return How many statements we queued.
      */
-    protected void aggregateSession(VoltTable totalRecordsTable, String aggReason) {
+    protected int aggregateSession(VoltTable totalRecordsTable, String aggReason, boolean totalsInRow,
+                                   boolean deleteViewRow) {
         // Unload data from record
         long minSeqno = totalRecordsTable.getLong(4);
         long maxSeqno = totalRecordsTable.getLong(5);
@@ -89,22 +185,215 @@ public abstract class AbstractMediationProcedure extends VoltProcedure {
         String callingNumber = totalRecordsTable.getString(7);
         String destination = totalRecordsTable.getString(8);
         long unaggedRecordUsageToReport = totalRecordsTable.getLong(6);
+        long unaggedRecordCount = totalRecordsTable.getLong(9);
 
         //Create an aggregated session
         voltQueueSQL(createAggregatedSession, aggReason, sessionId, sessionStartUTC, minSeqno, maxSeqno, callingNumber,
                 destination, startDate, endDate, unaggedRecordUsageToReport);
+        metrics.count(aggReason, unaggedRecordUsageToReport, unaggedRecordCount);
 
-        // Report change in status
-        voltQueueSQL(updateAggStatus, aggReason, unaggedRecordUsageToReport, sessionId, sessionStartUTC);
+        // Report change in status, and delete unneeded records
+        return 1 + closeSession(aggReason, unaggedRecordUsageToReport, sessionId, sessionStartUTC, totalsInRow,
+                deleteViewRow);
+    }
+
+    /**
+     * Aggregate a session whose running totals we already have, and which keeps them in
+     * unaggregated_cdrs_by_session.
+     */
+    protected void aggregateSession(String aggReason, long sessionId, TimestampType sessionStartUTC, long minSeqno,
+                                    long maxSeqno, String callingNumber, String destination, TimestampType startDate,
+                                    TimestampType endDate, long unaggedRecordUsageToReport,
+                                    long unaggedRecordCount) {
+        reportAggregatedSession(aggReason, sessionId, sessionStartUTC, minSeqno, maxSeqno, callingNumber,
+                destination, startDate, endDate, unaggedRecordUsageToReport, unaggedRecordCount);
 
         // Delete unneeded records
         deleteSessionRunningTotals(sessionId, sessionStartUTC);
     }
 
     /**
-     * Cancel a late session. We assume that totalRecordsTable is currently on the right row.
+     * Create an aggregated session and note it in cdr_dupcheck, leaving the running
+     * totals alone.
      */
-    protected void cancelLateSession(VoltTable sessionToClose) {
+    protected void reportAggregatedSession(String aggReason, long sessionId, TimestampType sessionStartUTC,
+                                           long minSeqno, long maxSeqno, String callingNumber, String destination,
+                                           TimestampType startDate, TimestampType endDate,
+                                           long unaggedRecordUsageToReport, long unaggedRecordCount) {
+        //Create an aggregated session
+        voltQueueSQL(createAggregatedSession, aggReason, sessionId, sessionStartUTC, minSeqno, maxSeqno, callingNumber,
+                destination, startDate, endDate, unaggedRecordUsageToReport);
+        metrics.count(aggReason, unaggedRecordUsageToReport, unaggedRecordCount);
+
+        // Report change in status
+        closeSession(aggReason, unaggedRecordUsageToReport, sessionId, sessionStartUTC, false, false);
+    }
+
+    /**
+     * Decide whether a session needs aggregating now that seqno has arrived.
+     *
+     * @return END, QTY or USAGE, or null if the session should be left alone.
+     */
+    protected String getAggReason(MediationRecordSequence msr, String recordType, int seqno,
+                                  long unaggedRecordCount, long unaggedRecordUsage) {
+        // See if we have a complete set of records...
+        if (!msr.weHaveFromZeroTo(seqno)) {
+            return null;
+        }
+
+        // Decide whether to aggregate this session
+        if (recordType.equalsIgnoreCase("E")) {
+            return "END";
+        } else if (unaggedRecordCount > aggSeqnoThreshold) {
+            return "QTY";
+        } else if (unaggedRecordUsage > aggUsageThreshold) {
+            return "USAGE";
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the parameters getExpiryBucket() needs.
+     */
+    protected void loadExpiryParameters(MediationParameters parameters) {
+        stalenessThresholdMs = parameters.get(STALENESS_THRESHOLD_MS, stalenessThresholdMs);
+        expiryGapMultiple = parameters.get(SESSION_EXPIRY_GAP_MULTIPLE, expiryGapMultiple);
+        expiryMinMs = parameters.get(SESSION_EXPIRY_MIN_MS, expiryMinMs);
+        expiryBucketMs = Math.max(1, parameters.get(SESSION_EXPIRY_BUCKET_MS, expiryBucketMs));
+    }
+
+    /**
+     * Work out when FlushStaleSessions should give up waiting for a session,
+     * now that seqno has arrived.
+     * <p>
+     * We expect the rest of a session's CDRs to turn up about as far apart as
+     * the ones we've seen so far, so we wait SESSION_EXPIRY_GAP_MULTIPLE gaps,
+     * but never less than SESSION_EXPIRY_MIN_MS or more than
+     * STALENESS_THRESHOLD_MS. If this is the first seqno we have no idea, so we
+     * wait STALENESS_THRESHOLD_MS. Deadlines are rounded up to the end of a
+     * SESSION_EXPIRY_BUCKET_MS bucket, so a session's session_expiry entry
+     * only moves when its deadline moves into a new bucket, and never move
+     * backwards when CDRs arrive out of order.
+     *
+     * @param currentBucket - The session's bucket, or null if it doesn't have one
+     * @return The session's expiry_bucket.
+     */
+    protected TimestampType getExpiryBucket(TimestampType currentBucket, long sessionStartUTC, int seqno,
+                                            long recordStartUTC) {
+        long waitMs = stalenessThresholdMs;
+
+        if (seqno > 0 && expiryGapMultiple > 0) {
+            long gapMs = Math.max(0, recordStartUTC - sessionStartUTC) / seqno;
+            waitMs = Math.min(stalenessThresholdMs, Math.max(expiryMinMs, gapMs * expiryGapMultiple));
+        }
+
+        long bucket = roundUpToBucket(recordStartUTC + waitMs);
+
+        if (currentBucket != null && currentBucket.getTime() / 1000 >= bucket) {
+            return currentBucket;
+        }
+
+        return new TimestampType(bucket * 1000);
+    }
+
+    /**
+     * Sessions that keep their running totals in cdr_dupcheck are only found by
+     * their expiry_bucket, so make sure it comes round no later than
+     * STALENESS_THRESHOLD_MS after their oldest unaggregated CDR, which is when
+     * FlushStaleSessions would give up on one that keeps them in
+     * unaggregated_cdrs_by_session.
+     *
+     * @param expiryBucket      - As returned by getExpiryBucket()
+     * @param minRecordStartUTC - When the session's oldest unaggregated CDR started
+     * @return The session's expiry_bucket.
+     */
+    protected TimestampType getExpiryBucketInRow(TimestampType expiryBucket, TimestampType minRecordStartUTC) {
+        long latestBucket = roundUpToBucket(minRecordStartUTC.getTime() / 1000 + stalenessThresholdMs);
+
+        if (expiryBucket.getTime() / 1000 > latestBucket) {
+            return new TimestampType(latestBucket * 1000);
+        }
+
+        return expiryBucket;
+    }
+
+    /**
+     * @return The end of the SESSION_EXPIRY_BUCKET_MS bucket deadlineMs is in.
+     */
+    private long roundUpToBucket(long deadlineMs) {
+        return deadlineMs - Math.floorMod(deadlineMs, expiryBucketMs) + expiryBucketMs;
+    }
+
+    /**
+     * Tell sessions_by_calling_number about a session the first time we know
+     * its calling number, which is normally when we create it. If its first
+     * CDRs didn't have one we add it to cdr_dupcheck too. This way CDRs for
+     * sessions we already know don't write callingNumber at all.
+     *
+     * @param sessionExists       - Whether the session's cdr_dupcheck row already exists
+     * @param storedCallingNumber - What that row has for callingNumber
+     * @return How many statements we queued.
+     */
+    protected int queueCallingNumber(long sessionId, Date sessionStartUTC, boolean sessionExists,
+                                     String storedCallingNumber, String callingNumber) {
+        if (callingNumber == null || storedCallingNumber != null) {
+            return 0;
+        }
+
+        voltQueueSQL(reportNewSession, callingNumber, sessionId, sessionStartUTC.getTime());
+
+        if (sessionExists) {
+            voltQueueSQL(setSessionCallingNumber, callingNumber, sessionId, sessionStartUTC);
+            return 2;
+        }
+
+        return 1;
+    }
+
+    /**
+     * Keep a session's session_expiry entry in step with its expiry_bucket.
+     * FlushStaleSessions only closes a session if the two agree, so an entry
+     * we don't get round to deleting does no harm, and is removed once its
+     * bucket has passed.
+     *
+     * @param storedBucket - The bucket cdr_dupcheck had, or null
+     * @param newBucket    - The bucket we're giving it, or null if there's nothing left to flush
+     * @return How many statements we queued.
+     */
+    protected int queueExpiryChange(long sessionId, Date sessionStartUTC, TimestampType storedBucket,
+                                    TimestampType newBucket) {
+        if (newBucket == null) {
+            if (storedBucket != null) {
+                voltQueueSQL(deleteSessionExpiry, sessionId, sessionStartUTC);
+                return 1;
+            }
+        } else if (!newBucket.equals(storedBucket)) {
+            voltQueueSQL(upsertSessionExpiry, sessionId, sessionStartUTC, newBucket);
+            return 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Cancel a late session. We assume that totalRecordsTable is currently on the right row,
+     * and that its columns are laid out like unaggregated_cdrs_by_session's.
+     *
+     * @param totalsInRow - true if the session keeps its running totals in cdr_dupcheck
+     */
+    protected void cancelLateSession(VoltTable sessionToClose, boolean totalsInRow) {
+        cancelLateSession(sessionToClose, totalsInRow, true);
+    }
+
+    /**
+     * Cancel a late session, as above.
+     *
+     * @param deleteViewRow - false if the caller will delete the session's
+     *                      unaggregated_cdrs_by_session row itself
+     * @return How many statements we queued.
+     */
+    protected int cancelLateSession(VoltTable sessionToClose, boolean totalsInRow, boolean deleteViewRow) {
         // Unload data from record
         long sessionId = sessionToClose.getLong(0);
         TimestampType sessionStartUTC = sessionToClose.getTimestampAsTimestamp(1);
@@ -119,12 +408,35 @@ public abstract class AbstractMediationProcedure extends VoltProcedure {
         // Cancel session
         voltQueueSQL(reportBadRange, "LATE", sessionId, sessionStartUTC, minSeqno, maxSeqno, callingNumber, destination,
                 "RANGE", startDate, endDate, unaggedRecordUsageToReport);
+        metrics.count(MediationMetrics.LATE, unaggedRecordUsageToReport, sessionToClose.getLong(9));
 
-        // Report change in status
-        voltQueueSQL(updateAggStatus, "LATE", 0, sessionId, sessionStartUTC);
+        // Report change in status, and delete unneeded records
+        return 1 + closeSession("LATE", 0, sessionId, sessionStartUTC, totalsInRow, deleteViewRow);
+    }
 
-        // Delete unneeded records
-        deleteSessionRunningTotals(sessionId, sessionStartUTC);
+    /**
+     * Record in cdr_dupcheck that we've aggregated or cancelled a session, and
+     * forget its running totals.
+     *
+     * @param totalsInRow   - true if the session keeps its running totals in cdr_dupcheck
+     * @param deleteViewRow - whether to delete its unaggregated_cdrs_by_session row, if it has one
+     * @return How many statements we queued.
+     */
+    private int closeSession(String aggState, long aggregatedUsage, long sessionId, TimestampType sessionStartUTC,
+                             boolean totalsInRow, boolean deleteViewRow) {
+        if (totalsInRow) {
+            voltQueueSQL(updateAggStatusAndClearTotalsInRow, aggState, aggregatedUsage, sessionId, sessionStartUTC);
+            return 1;
+        }
+
+        voltQueueSQL(updateAggStatus, aggState, aggregatedUsage, sessionId, sessionStartUTC);
+
+        if (deleteViewRow) {
+            deleteSessionRunningTotals(sessionId, sessionStartUTC);
+            return 2;
+        }
+
+        return 1;
     }
 
     /**
@@ -135,6 +447,67 @@ public abstract class AbstractMediationProcedure extends VoltProcedure {
         voltQueueSQL(deleteSessionRunningTotals, sessionId, sessionStartUTC);
     }
 
+    /**
+     * Queue additions to mediation_metrics for everything we've counted. Run
+     * them last in their round, and pass that round's results to
+     * queueMissingMetrics().
+     *
+     * @return How many statements we queued.
+     */
+    protected int queueMetrics() {
+        Map<String, long[]> pending = metrics.getPending();
+
+        for (Map.Entry<String, long[]> metric : pending.entrySet()) {
+            long[] counts = metric.getValue();
+            voltQueueSQL(countMetric, counts[MediationMetrics.HOW_MANY], counts[MediationMetrics.USAGE],
+                    counts[MediationMetrics.CDR_COUNT], metric.getKey());
+        }
+
+        return pending.size();
+    }
+
+    /**
+     * Create this partition's row for any metric queueMetrics() found didn't
+     * have one, holding what we counted, and forget what we counted.
+     *
+     * @param results      - Results of the round queueMetrics() queued its statements at the end of
+     * @param partitionKey - A value that belongs to this partition
+     * @return How many statements we queued.
+     */
+    protected int queueMissingMetrics(VoltTable[] results, long partitionKey) {
+        Map<String, long[]> pending = metrics.getPending();
+        int resultIndex = results.length - pending.size();
+        int queued = 0;
+
+        for (Map.Entry<String, long[]> metric : pending.entrySet()) {
+            if (results[resultIndex++].asScalarLong() == 0) {
+                long[] counts = metric.getValue();
+                voltQueueSQL(createMetric, partitionKey, metric.getKey(), counts[MediationMetrics.HOW_MANY],
+                        counts[MediationMetrics.USAGE], counts[MediationMetrics.CDR_COUNT]);
+                queued++;
+            }
+        }
+
+        metrics.clear();
+        return queued;
+    }
+
+    /**
+     * Queue a read of mediation_parameters. Pass the result to getParameters().
+     */
+    protected void queueParameterRead() {
+        voltQueueSQL(getAllParameters);
+    }
+
+    /**
+     * Parse what queueParameterRead() read.
+     *
+     * @param allParameters - Result of the statement queued by queueParameterRead()
+     */
+    protected MediationParameters getParameters(VoltTable allParameters) {
+        return new MediationParameters(allParameters);
+    }
+
     /**
      * Get parameter at current row in voltTable, or return defaultValue
      * if not found.
@@ -0,0 +1,219 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+/**
+ * How many times each of HandleMediationCDR's outcomes happened on one site,
+ * and how long they took, for GetDecisionStats.
+ * <p>
+ * Like SweepStats we keep one of these per site thread, and it never affects
+ * what a procedure writes, so timing things doesn't make replicas disagree.
+ * Outcomes and paths are array indexes and times go into power of two
+ * microsecond buckets, so recording one is a couple of adds.
+ */
+public class DecisionStats {
+
+    // Outcomes, which index OUTCOME_NAMES...
+    static final int LATESESSION = 0;
+    static final int LATERECORD = 1;
+    static final int DUP = 2;
+    static final int NEW_SESSION = 3;
+    static final int CONTINUING_SESSION = 4;
+    static final int END = 5;
+    static final int QTY = 6;
+    static final int USAGE = 7;
+
+    private static final String[] OUTCOME_NAMES = {
+            "LATESESSION", "LATERECORD", "DUP", "NEW", "CONTINUING", "END", "QTY", "USAGE"};
+
+    // Where the session's running totals are, if we got that far, which index PATH_NAMES...
+    static final int PATH_NONE = 0;
+    static final int PATH_VIEW = 1;
+    static final int PATH_ROW = 2;
+
+    private static final String[] PATH_NAMES = {"NONE", "VIEW", "ROW"};
+
+    // Bucket 0 is under 1us, bucket n is under 2^n us, and the last one is everything else...
+    static final int BUCKET_COUNT = 24;
+
+    private static final ThreadLocal<DecisionStats> SITE_STATS = ThreadLocal.withInitial(DecisionStats::new);
+
+    private Decision[][] decisions = newDecisions();
+    private long sinceMillis = System.currentTimeMillis();
+
+    private DecisionStats() {
+    }
+
+    /**
+     * @return The stats for the site we're running on.
+     */
+    static DecisionStats forThisSite() {
+        return SITE_STATS.get();
+    }
+
+    /**
+     * @return The outcome for aggregating because of 'aggReason', as per getAggReason().
+     */
+    static int getAggOutcome(String aggReason) {
+        switch (aggReason) {
+            case "END":
+                return END;
+            case "QTY":
+                return QTY;
+            case "USAGE":
+                return USAGE;
+            default:
+                throw new IllegalArgumentException("Unknown aggregation reason " + aggReason);
+        }
+    }
+
+    /**
+     * Note that an outcome happened.
+     *
+     * @param outcome - One of our outcome constants
+     * @param path    - One of our PATH_ constants
+     * @param nanos   - How long it took
+     */
+    void record(int outcome, int path, long nanos) {
+        decisions[outcome][path].record(nanos / 1000);
+    }
+
+    /**
+     * @param reset - true to start counting again from zero afterwards
+     * @return A summary of each outcome, and its histogram.
+     */
+    VoltTable[] toVoltTables(boolean reset) {
+        final long nowMillis = System.currentTimeMillis();
+
+        VoltTable summary = new VoltTable(
+                new VoltTable.ColumnInfo("OUTCOME", VoltType.STRING),
+                new VoltTable.ColumnInfo("PATH", VoltType.STRING),
+                new VoltTable.ColumnInfo("INTERVAL_MS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("HOW_MANY", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("TOTAL_MICROS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("P50_MICROS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("P99_MICROS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("MAX_MICROS", VoltType.BIGINT));
+
+        VoltTable histograms = new VoltTable(
+                new VoltTable.ColumnInfo("OUTCOME", VoltType.STRING),
+                new VoltTable.ColumnInfo("PATH", VoltType.STRING),
+                new VoltTable.ColumnInfo("UNDER_MICROS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("HOW_MANY", VoltType.BIGINT));
+
+        for (int outcome = 0; outcome < OUTCOME_NAMES.length; outcome++) {
+            for (int path = 0; path < PATH_NAMES.length; path++) {
+                Decision decision = decisions[outcome][path];
+
+                if (decision.count == 0) {
+                    continue;
+                }
+
+                summary.addRow(OUTCOME_NAMES[outcome], PATH_NAMES[path], nowMillis - sinceMillis, decision.count,
+                        decision.totalMicros, decision.getPercentileMicros(0.5),
+                        decision.getPercentileMicros(0.99), decision.maxMicros);
+
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    if (decision.buckets[i] > 0) {
+                        histograms.addRow(OUTCOME_NAMES[outcome], PATH_NAMES[path], getBucketLimit(i),
+                                decision.buckets[i]);
+                    }
+                }
+            }
+        }
+
+        if (reset) {
+            decisions = newDecisions();
+            sinceMillis = nowMillis;
+        }
+
+        return new VoltTable[] { summary, histograms };
+    }
+
+    private static Decision[][] newDecisions() {
+        Decision[][] newDecisions = new Decision[OUTCOME_NAMES.length][PATH_NAMES.length];
+
+        for (Decision[] outcomeDecisions : newDecisions) {
+            for (int path = 0; path < outcomeDecisions.length; path++) {
+                outcomeDecisions[path] = new Decision();
+            }
+        }
+
+        return newDecisions;
+    }
+
+    /**
+     * @return What everything in bucket 'bucket' took less than, or Long.MAX_VALUE
+     * for the last one.
+     */
+    static long getBucketLimit(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * @return Which bucket 'micros' goes in.
+     */
+    static int getBucket(long micros) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Counts and times for one outcome and path.
+     */
+    private static class Decision {
+
+        final long[] buckets = new long[BUCKET_COUNT];
+        long count;
+        long totalMicros;
+        long maxMicros;
+
+        void record(long micros) {
+            buckets[getBucket(micros)]++;
+            count++;
+            totalMicros += micros;
+            maxMicros = Math.max(maxMicros, micros);
+        }
+
+        /**
+         * @return The limit of the bucket 'percentile' of our times fall into,
+         * or maxMicros if that's less.
+         */
+        long getPercentileMicros(double percentile) {
+            long wanted = (long) Math.ceil(count * percentile);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets[i];
+
+                if (seen >= wanted) {
+                    return Math.min(getBucketLimit(i), maxMicros);
+                }
+            }
+
+            return maxMicros;
+        }
+    }
+}
@@ -29,10 +29,35 @@ import org.voltdb.types.TimestampType;
 import java.util.Date;
 
 /**
- * This runs on each partition as a DIRECTED PROCEDURE and is kicked off by a
- * TASK.
+ * This runs on each partition as a DIRECTED PROCEDURE and is kicked off by
+ * FlushStaleSessionsScheduler.
  * It finds sessions that either didn't get closed or are very late and
  * terminates them.
+ * <p>
+ * First we close sessions whose expiry_bucket has come round, which
+ * HandleMediationCDR sets from how far apart their CDRs have been arriving.
+ * Open sessions have an entry in session_expiry, which is small and indexed
+ * by bucket, so we only look at buckets that are due, and cdr_dupcheck needs
+ * no index for it. Sessions that keep their running totals in cdr_dupcheck
+ * get a pass of their own, and are only found this way. Once both passes are
+ * done we delete the entries for buckets they got through. Then sessions that
+ * keep their running totals in unaggregated_cdrs_by_session, including ones
+ * started before expiry_bucket existed, are closed once they are
+ * STALENESS_THRESHOLD_MS old.
+ * <p>
+ * Closing a session takes an insert into aggregated_cdrs or bad_cdrs and an
+ * update of cdr_dupcheck, which also clears running totals kept there. When
+ * FLUSH_BULK_CLOSE is set, sessions found by our oldest-session pass have
+ * their unaggregated_cdrs_by_session rows removed by one DELETE, which uses
+ * the same range, order and limit as the query that found them, instead of
+ * one DELETE each. Statements are run MAX_QUEUED_STATEMENTS at a time.
+ * <p>
+ * How much we do in one go is up to the scheduler, which times each sweep and
+ * passes us the window and row limit to use, along with how long our last
+ * sweep took so we can report it. Deciding them here would mean using the
+ * time, and a replica doing it a few microseconds quicker would then flush
+ * different sessions. We return a row saying what we did, and how far behind
+ * we are, which the scheduler uses to decide what to do next.
  */
 public class FlushStaleSessions extends AbstractMediationProcedure {
 
@@ -44,39 +69,243 @@ public class FlushStaleSessions extends AbstractMediationProcedure {
                     + "from unaggregated_cdrs_by_session u WHERE min_recordStartUTC BETWEEN ? AND ? "
                     + "order by min_recordStartUTC,sessionId, sessionStartUTC LIMIT ?;");
 
-    long stalenessThresholdMs = 300000;
-    long aggWindowSizeMs = 2000;
-    int rowLimit = 1000;
+    public static final SQLStmt getOldestExpiryBucket = new SQLStmt(
+            "SELECT expiry_bucket FROM session_expiry ORDER BY expiry_bucket LIMIT 1;");
+
+    // Same columns as getSessionRunningTotals, then the session's expiry_bucket...
+    public static final SQLStmt getExpiredSessions = new SQLStmt(
+            "SELECT u.*, u.how_many - (u.max_seqno - u.min_seqno + 1) missingCdrCount, e.expiry_bucket "
+                    + "from session_expiry e, cdr_dupcheck d, unaggregated_cdrs_by_session u "
+                    + "WHERE e.expiry_bucket <= ? "
+                    + "AND d.sessionId = e.sessionId AND d.sessionStartUTC = e.sessionStartUTC "
+                    + "AND d.expiry_bucket = e.expiry_bucket AND d.unagg_count IS NULL "
+                    + "AND u.sessionId = e.sessionId AND u.sessionStartUTC = e.sessionStartUTC "
+                    + "order by e.expiry_bucket, e.sessionId, e.sessionStartUTC LIMIT ?;");
+
+    // Same columns as getSessionRunningTotals, then the session's expiry_bucket...
+    public static final SQLStmt getExpiredSessionsInRow = new SQLStmt(
+            "SELECT d.sessionId, d.sessionStartUTC, d.unagg_min_recordStartUTC, d.unagg_max_recordStartUTC"
+                    + ", d.unagg_min_seqno, d.unagg_max_seqno, d.unaggregated_usage, d.callingNumber, d.destination"
+                    + ", d.unagg_count, d.unagg_count - (d.unagg_max_seqno - d.unagg_min_seqno + 1) missingCdrCount"
+                    + ", e.expiry_bucket "
+                    + "from session_expiry e, cdr_dupcheck d "
+                    + "WHERE e.expiry_bucket <= ? "
+                    + "AND d.sessionId = e.sessionId AND d.sessionStartUTC = e.sessionStartUTC "
+                    + "AND d.expiry_bucket = e.expiry_bucket AND d.unagg_count > 0 "
+                    + "order by e.expiry_bucket, e.sessionId, e.sessionStartUTC LIMIT ?;");
+
+    // Removes entries for buckets our expired passes have finished with, along with
+    // any left behind by sessions that were closed some other way...
+    public static final SQLStmt deleteExpiredSessionExpiry = new SQLStmt(
+            "DELETE FROM session_expiry WHERE expiry_bucket < ? "
+                    + "order by expiry_bucket, sessionId, sessionStartUTC LIMIT ?;");
+
+    // Set by a generator running on a simulated clock. Every partition gets the same
+    // value, but ours might have more than one row if rows have moved partitions...
+    public static final SQLStmt getEventClockOffset = new SQLStmt(
+            "SELECT MAX(offset_ms) FROM event_clock;");
+
+    // Deletes exactly what getSessionRunningTotals found, as long as it's given the
+    // same parameters...
+    public static final SQLStmt deleteSessionRunningTotalsInRange = new SQLStmt(
+            "DELETE FROM unaggregated_cdrs_by_session WHERE min_recordStartUTC BETWEEN ? AND ? "
+                    + "order by min_recordStartUTC,sessionId, sessionStartUTC LIMIT ?;");
+
+    // How many sessions our passes have closed, and whether any of them had more to do...
+    private long sessionsAggregated;
+    private long sessionsCancelled;
+    private boolean rowLimitReached;
+
+    private boolean bulkClose;
+    private int queuedStatementCount;
+    private long statementCount;
+
+    public static final SQLStmt setMetricsPartitionId = new SQLStmt(
+            "UPDATE mediation_metrics SET partition_id = ? "
+                    + "WHERE partition_id IS NULL OR partition_id <> ?;");
+
+    // Any session we closed, which we need if this partition has no mediation_metrics yet...
+    private long closedSessionId;
+
+    /**
+     * @param aggWindowSizeMs     - How much of the backlog to look at, or 0 to use AGG_WINDOW_SIZE_MS
+     * @param rowLimit            - How many sessions each pass can close, or 0 to use STALENESS_ROWLIMIT
+     * @param previousSweepMicros - How long our last sweep took, for our stats
+     * @param partitionId         - Which partition we're on, for mediation_metrics, or -1 if unknown
+     */
+    public VoltTable[] run(long aggWindowSizeMs, long rowLimit, long previousSweepMicros, int partitionId)
+            throws VoltAbortException {
+        // Only used for SweepStats, never for anything we write or return...
+        final long startNanos = System.nanoTime();
 
-    public VoltTable[] run() throws VoltAbortException {
         // find oldest unaggregated session
         voltQueueSQL(getOldestUnfinishedSession);
+        voltQueueSQL(getOldestExpiryBucket);
+        voltQueueSQL(getEventClockOffset);
 
         // Find parameters...
-        voltQueueSQL(getParameter, STALENESS_THRESHOLD_MS);
-        voltQueueSQL(getParameter, AGG_WINDOW_SIZE_MS);
-        voltQueueSQL(getParameter, STALENESS_ROWLIMIT);
+        queueParameterRead();
+        metrics.clear();
 
         VoltTable[] queryResults = voltExecuteSQL();
         VoltTable oldestSessionDateTable = queryResults[0];
-        VoltTable stalenessThresholdMsTable = queryResults[1];
-        VoltTable aggWindowSizeMsTable = queryResults[2];
-        VoltTable rowLimitTable = queryResults[3];
+        VoltTable oldestExpiryBucketTable = queryResults[1];
+        VoltTable eventClockOffsetTable = queryResults[2];
+        MediationParameters parameters = getParameters(queryResults[3]);
 
         // Sessions have to be at LEAST stalenessThresholdMs stale before we cancel
-        // them.
-        stalenessThresholdMs = getParameterIfSet(stalenessThresholdMsTable, stalenessThresholdMs);
+        // them, unless their expiry_bucket says otherwise.
+        loadExpiryParameters(parameters);
 
-        // When we cancel records we use a window aggWindowSizeMs in size...
-        aggWindowSizeMs = getParameterIfSet(aggWindowSizeMsTable, aggWindowSizeMs);
+        // When we cancel records we use a window aggWindowSizeMs in size, unless
+        // we've been asked to use something else...
+        final long baseWindowMs = parameters.get(AGG_WINDOW_SIZE_MS, 2000);
+        final long maxWindowMs = Math.max(baseWindowMs, parameters.get(AGG_WINDOW_MAX_MS, 600000));
 
         // See how many rows we do in one pass. More isn't always better...
-        rowLimit = (int) getParameterIfSet(rowLimitTable, rowLimit);
+        final long baseRowLimit = parameters.get(STALENESS_ROWLIMIT, 1000);
+        final long maxRowLimit = Math.max(baseRowLimit, parameters.get(FLUSH_MAX_ROWLIMIT, 10000));
+
+        // A generator running on a simulated clock tells us how far ahead of (or
+        // behind) real time its records are, so staleness follows its clock...
+        eventClockOffsetTable.advanceRow();
+        long eventClockOffsetMs = eventClockOffsetTable.getLong(0);
+
+        if (eventClockOffsetTable.wasNull()) {
+            eventClockOffsetMs = 0;
+        }
+
+        final long windowMs = aggWindowSizeMs > 0 ? Math.min(aggWindowSizeMs, maxWindowMs) : baseWindowMs;
+        final int passRowLimit = (int) (rowLimit > 0 ? Math.min(rowLimit, maxRowLimit) : baseRowLimit);
 
         // Do not mess with records that were changed less than stalenessThresholdMs
         // ago...
-        final Date cutoffDate = new Date(this.getTransactionTime().getTime() - stalenessThresholdMs);
+        final long eventNowMs = this.getTransactionTime().getTime() + eventClockOffsetMs;
+        final Date cutoffDate = new Date(eventNowMs - stalenessThresholdMs);
+
+        // How far behind we are is how old our oldest session in
+        // unaggregated_cdrs_by_session is...
+        long lagMs = getAgeMs(oldestSessionDateTable, eventNowMs);
+
+        // ...and we're behind if that's more than stalenessThresholdMs, or if a
+        // bucket should have been emptied already, which is the only way we can
+        // tell for sessions that keep their totals in cdr_dupcheck...
+        long backlogMs = Math.max(0, lagMs - stalenessThresholdMs);
+        boolean expiryBucketIsDue = false;
+
+        if (oldestExpiryBucketTable.advanceRow()) {
+            long oldestExpiryBucketMs = oldestExpiryBucketTable.getTimestampAsLong(0) / 1000;
+            expiryBucketIsDue = oldestExpiryBucketMs <= eventNowMs;
+            backlogMs = Math.max(backlogMs, eventNowMs - oldestExpiryBucketMs);
+        }
+
+        sessionsAggregated = 0;
+        sessionsCancelled = 0;
+        rowLimitReached = false;
+        bulkClose = parameters.get(FLUSH_BULK_CLOSE, 1) != 0;
+        queuedStatementCount = 0;
+        statementCount = 0;
+
+        if (expiryBucketIsDue) {
+            // Everything up to and including now, unless a pass runs out of rows...
+            TimestampType eventNow = new TimestampType(eventNowMs * 1000);
+            TimestampType finishedBefore = new TimestampType(eventNowMs * 1000 + 1);
+
+            finishedBefore = flushExpiredSessions(getExpiredSessions, eventNow, passRowLimit, false,
+                    finishedBefore);
+            finishedBefore = flushExpiredSessions(getExpiredSessionsInRow, eventNow, passRowLimit, true,
+                    finishedBefore);
+
+            queueSQL(deleteExpiredSessionExpiry, finishedBefore, passRowLimit);
+        }
+
+        flushStaleSessions(oldestSessionDateTable, cutoffDate, windowMs, passRowLimit, getSessionRunningTotals,
+                bulkClose ? deleteSessionRunningTotalsInRange : null);
+
+        makeRoomFor(METRICS_STATEMENT_COUNT);
+        int metricsStatementCount = queueMetrics();
+        statementCount += metricsStatementCount;
+
+        if (metricsStatementCount > 0) {
+            queuedStatementCount = queueMissingMetrics(voltExecuteSQL(), closedSessionId);
+            statementCount += queuedStatementCount;
+        }
+
+        if (partitionId >= 0) {
+            queueSQL(setMetricsPartitionId, partitionId, partitionId);
+        }
+
+        voltExecuteSQL(true);
+
+        VoltTable sweep = SweepStats.newSweepTable();
+        sweep.addRow(new TimestampType(this.getTransactionTime()), lagMs, backlogMs, windowMs,
+                passRowLimit, (byte) (rowLimitReached ? 1 : 0), sessionsAggregated, sessionsCancelled,
+                statementCount, previousSweepMicros, baseWindowMs, maxWindowMs, baseRowLimit, maxRowLimit,
+                parameters.get(FLUSH_TIME_BUDGET_MS, 20));
+
+        SweepStats.forThisSite().record(sweep, System.nanoTime() - startNanos);
+
+        return new VoltTable[] { sweep };
+    }
+
+    /**
+     * @return How long ago, by our clock, the oldest session in oldestSessionDateTable
+     * started, or 0 if there isn't one.
+     */
+    private long getAgeMs(VoltTable oldestSessionDateTable, long eventNowMs) {
+        long ageMs = 0;
 
+        if (oldestSessionDateTable.advanceRow()) {
+            TimestampType oldestSessionDate = oldestSessionDateTable.getTimestampAsTimestamp("min_recordStartUTC");
+
+            if (oldestSessionDate != null) {
+                ageMs = Math.max(0, eventNowMs - oldestSessionDate.asExactJavaDate().getTime());
+            }
+        }
+
+        oldestSessionDateTable.resetRowPosition();
+        return ageMs;
+    }
+
+    /**
+     * Aggregate or cancel sessions whose expiry_bucket is due.
+     *
+     * @param getSessionsToClose - Finds them
+     * @param totalsInRow        - Whether they keep their totals in cdr_dupcheck
+     * @param finishedBefore     - Buckets before this have been emptied by the passes so far
+     * @return Buckets before this have been emptied by this pass and the ones before it.
+     */
+    private TimestampType flushExpiredSessions(SQLStmt getSessionsToClose, TimestampType eventNow, int rowLimit,
+                                               boolean totalsInRow, TimestampType finishedBefore) {
+        VoltTable sessionsToClose = findSessionsToClose(getSessionsToClose, eventNow, rowLimit);
+        TimestampType lastBucket = null;
+
+        if (sessionsToClose.getRowCount() >= rowLimit && sessionsToClose.advanceToRow(rowLimit - 1)) {
+            // Sessions in the last bucket we got to may not all have been returned...
+            lastBucket = sessionsToClose.getTimestampAsTimestamp("expiry_bucket");
+            sessionsToClose.resetRowPosition();
+        }
+
+        closeSessions(sessionsToClose, rowLimit, totalsInRow, true);
+
+        if (lastBucket != null && lastBucket.compareTo(finishedBefore) < 0) {
+            return lastBucket;
+        }
+
+        return finishedBefore;
+    }
+
+    /**
+     * Aggregate or cancel sessions in unaggregated_cdrs_by_session that have gone stale.
+     *
+     * @param oldestSessionDateTable - When the oldest session we're looking at started
+     * @param windowMs               - How far past that to look
+     * @param rowLimit               - How many sessions to close at most
+     * @param getSessionsToClose     - Finds them
+     * @param deleteSessionsToClose  - Deletes their running totals in one go, or null to do it one by one
+     */
+    private void flushStaleSessions(VoltTable oldestSessionDateTable, Date cutoffDate, long windowMs, int rowLimit,
+                                    SQLStmt getSessionsToClose, SQLStmt deleteSessionsToClose) {
         if (oldestSessionDateTable.advanceRow()) {
             final TimestampType oldestSessionDate = oldestSessionDateTable
                     .getTimestampAsTimestamp("min_recordStartUTC");
@@ -86,7 +315,7 @@ public class FlushStaleSessions extends AbstractMediationProcedure {
 
                 // figure out time period we'll check this pass, and make sure it isn't too
                 // big...
-                Date aggWindowCloseDate = new Date(oldestSessionDate.asExactJavaDate().getTime() + aggWindowSizeMs);
+                Date aggWindowCloseDate = new Date(oldestSessionDate.asExactJavaDate().getTime() + windowMs);
 
                 if (aggWindowCloseDate.after(cutoffDate)) {
                     aggWindowCloseDate = cutoffDate;
@@ -94,29 +323,83 @@ public class FlushStaleSessions extends AbstractMediationProcedure {
 
                 // Find our sessions to cancel...
 
-                voltQueueSQL(getSessionRunningTotals, oldestSessionDate, aggWindowCloseDate, rowLimit);
-                VoltTable sessionsToClose = voltExecuteSQL()[0];
-                System.out.println(oldestSessionDate.toString() + " " + aggWindowCloseDate.toGMTString() + " "
-                        + sessionsToClose.getRowCount());
-                // For each session...
-                while (sessionsToClose.advanceRow()) {
-
-                    // See how many CDRS are missing.
-                    long missingCdrCount = sessionsToClose.getLong("missingCdrCount");
-
-                    // If none are missing it means an intermediate turned up and
-                    // completed the set *after* the end record. Declare victory and
-                    // aggregate. If not, cancel the session.
-                    if (missingCdrCount == 0) {
-                        aggregateSession(sessionsToClose, "AGE");
-                    } else {
-                        cancelLateSession(sessionsToClose);
-                    }
-                }
+                VoltTable sessionsToClose = findSessionsToClose(getSessionsToClose, oldestSessionDate,
+                        aggWindowCloseDate, rowLimit);
 
+                closeSessions(sessionsToClose, rowLimit, false, deleteSessionsToClose == null);
+
+                if (deleteSessionsToClose != null && sessionsToClose.getRowCount() > 0) {
+                    queueSQL(deleteSessionsToClose, oldestSessionDate, aggWindowCloseDate, rowLimit);
+                }
             }
         }
+    }
+
+    /**
+     * Run a query that finds sessions to close, after anything the previous pass
+     * queued.
+     */
+    private VoltTable findSessionsToClose(SQLStmt getSessionsToClose, Object... args) {
+        queueSQL(getSessionsToClose, args);
+
+        VoltTable[] results = voltExecuteSQL();
+        queuedStatementCount = 0;
+
+        return results[results.length - 1];
+    }
+
+    private void queueSQL(SQLStmt stmt, Object... args) {
+        makeRoomFor(1);
+        voltQueueSQL(stmt, args);
+        queuedStatementCount++;
+        statementCount++;
+    }
+
+    /**
+     * Run what we've queued so far if another 'count' statements won't fit.
+     */
+    private void makeRoomFor(int count) {
+        if (queuedStatementCount + count > MAX_QUEUED_STATEMENTS) {
+            voltExecuteSQL();
+            queuedStatementCount = 0;
+        }
+    }
+
+    /**
+     * Aggregate or cancel each session in sessionsToClose, which is laid out like
+     * getSessionRunningTotals.
+     *
+     * @param deleteViewRows - false if the caller will delete their unaggregated_cdrs_by_session rows itself
+     */
+    private void closeSessions(VoltTable sessionsToClose, int rowLimit, boolean totalsInRow,
+                               boolean deleteViewRows) {
+        if (sessionsToClose.getRowCount() >= rowLimit) {
+            rowLimitReached = true;
+        }
+
+        // For each session...
+        while (sessionsToClose.advanceRow()) {
+
+            // See how many CDRS are missing.
+            long missingCdrCount = sessionsToClose.getLong("missingCdrCount");
+            int queued;
 
-        return voltExecuteSQL(true);
+            makeRoomFor(CLOSE_SESSION_STATEMENT_COUNT);
+
+            // If none are missing it means an intermediate turned up and
+            // completed the set *after* the end record. Declare victory and
+            // aggregate. If not, cancel the session.
+            if (missingCdrCount == 0) {
+                queued = aggregateSession(sessionsToClose, "AGE", totalsInRow, deleteViewRows);
+                sessionsAggregated++;
+            } else {
+                queued = cancelLateSession(sessionsToClose, totalsInRow, deleteViewRows);
+                sessionsCancelled++;
+            }
+
+            queuedStatementCount += queued;
+            statementCount += queued;
+            closedSessionId = sessionsToClose.getLong(0);
+        }
     }
 }
@@ -0,0 +1,127 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.task.ActionResult;
+import org.voltdb.task.ActionScheduler;
+import org.voltdb.task.ScheduledAction;
+import org.voltdb.task.TaskHelper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs FlushStaleSessions on one partition, deciding how much each sweep
+ * should do.
+ * <p>
+ * When we're keeping up we sweep once a second using AGG_WINDOW_SIZE_MS and
+ * STALENESS_ROWLIMIT, just as a plain TASK would. When FlushStaleSessions tells
+ * us it's behind we time each sweep. If it finished inside
+ * FLUSH_TIME_BUDGET_MS we grow whichever of the window and row limit stopped
+ * it, up to AGG_WINDOW_MAX_MS and FLUSH_MAX_ROWLIMIT, by up to twice as much
+ * as the time we had left over. If it didn't we halve both. We also
+ * sweep again after no longer than the last sweep took, rather than waiting
+ * a second, so a backlog drains faster the further behind we are, but a sweep
+ * never takes more than about half of the partition's time.
+ * <p>
+ * Sweep times include any time spent waiting in the partition's queue, which
+ * is what we want, as a busy partition is a reason to back off.
+ */
+public class FlushStaleSessionsScheduler implements ActionScheduler {
+
+    private static final String PROCEDURE = "FlushStaleSessions";
+
+    private static final long INTERVAL_MS = 1000;
+    private static final long MIN_DELAY_MS = 10;
+    private static final long MIN_WINDOW_MS = 100;
+    private static final long MIN_ROW_LIMIT = 10;
+
+    private TaskHelper helper;
+
+    // Zero means let FlushStaleSessions use mediation_parameters...
+    private long windowMs = 0;
+    private long rowLimit = 0;
+
+    private long lastSweepMicros = 0;
+    private long sweepDueNanos;
+
+    public void initialize(TaskHelper helper) {
+        this.helper = helper;
+    }
+
+    @Override
+    public ScheduledAction getFirstScheduledAction() {
+        return nextSweep(INTERVAL_MS);
+    }
+
+    private ScheduledAction nextSweep(long delayMs) {
+        sweepDueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+
+        return ScheduledAction.procedureCall(delayMs, TimeUnit.MILLISECONDS, this::sweepFinished, PROCEDURE,
+                windowMs, rowLimit, lastSweepMicros, helper.getPartitionId());
+    }
+
+    private ScheduledAction sweepFinished(ActionResult result) {
+        lastSweepMicros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sweepDueNanos));
+
+        if (result.getStatus() != ClientResponse.SUCCESS) {
+            helper.logWarning(PROCEDURE + " failed: " + result.getStatusString());
+
+            // Start again from mediation_parameters...
+            windowMs = 0;
+            rowLimit = 0;
+            return nextSweep(INTERVAL_MS);
+        }
+
+        VoltTable sweep = result.getResults()[0];
+        sweep.advanceRow();
+
+        if (sweep.getLong("BACKLOG_MS") == 0) {
+            // We're keeping up...
+            windowMs = 0;
+            rowLimit = 0;
+            return nextSweep(INTERVAL_MS);
+        }
+
+        windowMs = sweep.getLong("WINDOW_MS");
+        rowLimit = sweep.getLong("ROW_LIMIT");
+
+        long budgetMicros = TimeUnit.MILLISECONDS.toMicros(sweep.getLong("TIME_BUDGET_MS"));
+
+        if (lastSweepMicros > budgetMicros) {
+            windowMs = Math.max(MIN_WINDOW_MS, windowMs / 2);
+            rowLimit = Math.max(MIN_ROW_LIMIT, rowLimit / 2);
+        } else {
+            double growth = Math.min(2.0, (double) budgetMicros / Math.max(1, lastSweepMicros));
+
+            if (sweep.getLong("ROW_LIMIT_REACHED") == 1) {
+                rowLimit = Math.min(sweep.getLong("MAX_ROW_LIMIT"), (long) Math.ceil(rowLimit * growth));
+            } else {
+                windowMs = Math.min(sweep.getLong("MAX_WINDOW_MS"), (long) Math.ceil(windowMs * growth));
+            }
+        }
+
+        return nextSweep(Math.max(MIN_DELAY_MS, TimeUnit.MICROSECONDS.toMillis(lastSweepMicros)));
+    }
+}
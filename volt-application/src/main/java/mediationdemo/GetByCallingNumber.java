@@ -0,0 +1,51 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Return the keys of every session we have for a calling number.
+ * <p>
+ * sessions_by_calling_number is partitioned on callingNumber, so this is a
+ * single partition transaction on one partition, however many sessions the
+ * number has. Sessions are added to it from the new_sessions stream by way of
+ * Kafka, so one that has only just started may not be there yet. Pass the
+ * keys you get back to GetBySessionIds to see the sessions themselves.
+ */
+public class GetByCallingNumber extends VoltProcedure {
+
+    public static final SQLStmt getSessionKeys = new SQLStmt(
+            "SELECT sessionId, sessionStartUTC, insert_date "
+                    + "FROM sessions_by_calling_number "
+                    + "WHERE callingNumber = ? "
+                    + "ORDER BY sessionStartUTC, sessionId;");
+
+    public VoltTable[] run(String callingNumber) throws VoltAbortException {
+        voltQueueSQL(getSessionKeys, callingNumber);
+
+        return voltExecuteSQL(true);
+    }
+}
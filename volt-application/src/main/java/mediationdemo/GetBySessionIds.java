@@ -0,0 +1,119 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.TheHashinator;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import java.util.Date;
+
+/**
+ * Return information about several sessions that all belong to the same
+ * partition, as per GetBySessionId, in one transaction. The first table has a
+ * cdr_dupcheck row for each session we found, and the second has running
+ * totals for those that keep them in unaggregated_cdrs_by_session.
+ * <p>
+ * As with HandleMediationCDRBatch, the first parameter is used to route the
+ * call to the right partition. Callers should group their keys using
+ * Client.getPartitionForParameter() and pass one of the group's sessionIds,
+ * which SessionLookup in the load generator does for them. If any sessionId
+ * belongs to another partition we abort, rather than say we didn't find it.
+ * Both tables are always returned, even if they're empty.
+ */
+public class GetBySessionIds extends AbstractMediationProcedure {
+
+    public static final SQLStmt getSession = new SQLStmt(
+            "SELECT d.*, sequenceToString(used_seqno_array) seqnos_used "
+                    + ", getHighestValidSequence(used_seqno_array) highest_valid_seqno "
+                    + "FROM cdr_dupcheck d "
+                    + "WHERE sessionId = ? AND sessionStartUTC = ?;");
+
+    public static final SQLStmt getSessionRunningTotals = new SQLStmt(
+            "SELECT * FROM unaggregated_cdrs_by_session WHERE sessionId = ? AND sessionStartUTC = ?;");
+
+    // Statements queued for each session
+    private static final int LOOKUP_STATEMENT_COUNT = 2;
+
+    public VoltTable[] run(long partitionKey, long[] sessionIds, long[] sessionStartUTCs)
+            throws VoltAbortException {
+        if (sessionStartUTCs.length != sessionIds.length) {
+            throw new VoltAbortException("sessionIds and sessionStartUTCs must be the same length");
+        }
+
+        final int partition = TheHashinator.getPartitionForParameter(VoltType.BIGINT, partitionKey);
+
+        for (long sessionId : sessionIds) {
+            if (TheHashinator.getPartitionForParameter(VoltType.BIGINT, sessionId) != partition) {
+                throw new VoltAbortException("sessionId " + sessionId + " doesn't belong to the same partition as "
+                        + partitionKey);
+            }
+        }
+
+        if (sessionIds.length == 0) {
+            // Nothing matches a null sessionStartUTC, but we still get both tables...
+            voltQueueSQL(getSession, partitionKey, null);
+            voltQueueSQL(getSessionRunningTotals, partitionKey, null);
+
+            return voltExecuteSQL(true);
+        }
+
+        VoltTable sessions = null;
+        VoltTable runningTotals = null;
+        int queuedStatementCount = 0;
+
+        for (int i = 0; i < sessionIds.length; i++) {
+            final Date sessionStartUTCAsDate = new Date(sessionStartUTCs[i]);
+
+            voltQueueSQL(getSession, sessionIds[i], sessionStartUTCAsDate);
+            voltQueueSQL(getSessionRunningTotals, sessionIds[i], sessionStartUTCAsDate);
+            queuedStatementCount += LOOKUP_STATEMENT_COUNT;
+
+            final boolean isFinal = i == sessionIds.length - 1;
+
+            if (isFinal || queuedStatementCount + LOOKUP_STATEMENT_COUNT > MAX_QUEUED_STATEMENTS) {
+                VoltTable[] results = voltExecuteSQL(isFinal);
+                queuedStatementCount = 0;
+
+                if (sessions == null) {
+                    sessions = results[0].clone(0);
+                    runningTotals = results[1].clone(0);
+                }
+
+                for (int j = 0; j < results.length; j += LOOKUP_STATEMENT_COUNT) {
+                    addRows(sessions, results[j]);
+                    addRows(runningTotals, results[j + 1]);
+                }
+            }
+        }
+
+        return new VoltTable[] { sessions, runningTotals };
+    }
+
+    private static void addRows(VoltTable to, VoltTable from) {
+        while (from.advanceRow()) {
+            to.add(from);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Return how many times each of HandleMediationCDR's outcomes happened on this
+ * partition, and how long they took. Like @Statistics, pass 1 to see what's
+ * happened since the last time you passed 1, or 0 to see everything since the
+ * partition's site started or was last reset.
+ * <p>
+ * This is a DIRECTED PROCEDURE, so call it with callAllPartitionProcedure()
+ * to see every partition. Only the partition's leader runs it, so what you see
+ * is how long things took there.
+ */
+public class GetDecisionStats extends VoltProcedure {
+
+    public VoltTable[] run(int interval) throws VoltAbortException {
+        return DecisionStats.forThisSite().toVoltTables(interval != 0);
+    }
+}
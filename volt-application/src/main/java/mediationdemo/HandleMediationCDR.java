@@ -31,6 +31,13 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Take an incoming Kafka message and aggregate it.
+ * <p>
+ * A session's running totals normally live in unaggregated_cdrs_by_session,
+ * which we have to read back after every CDR before we can decide whether to
+ * aggregate. Sessions started while SESSION_STATE_IN_ROW is set keep them in
+ * their cdr_dupcheck row instead, which we've already read, so the whole CDR
+ * is written in one round of SQL. Their CDRs aren't exported to
+ * unaggregated_cdrs.
  */
 public class HandleMediationCDR extends AbstractMediationProcedure {
 
@@ -42,14 +49,15 @@ public class HandleMediationCDR extends AbstractMediationProcedure {
 
     public static final SQLStmt updateSessionSeqnosAndUsage = new SQLStmt(
             "UPDATE cdr_dupcheck SET used_seqno_array = ?, "
-                    + "unaggregated_usage = unaggregated_usage + ? WHERE sessionId = ? AND sessionStartUTC = ?;");
+                    + "unaggregated_usage = unaggregated_usage + ?, expiry_bucket = ? "
+                    + "WHERE sessionId = ? AND sessionStartUTC = ?;");
 
     public static final SQLStmt createSession = new SQLStmt(
             "INSERT INTO cdr_dupcheck "
                     + "(sessionId  , sessionStartUTC  , callingNumber , used_seqno_array "
-                    + ", unaggregated_usage, insert_date)"
+                    + ", unaggregated_usage, insert_date, expiry_bucket)"
                     + " VALUES "
-                    + "(?,?,?,?,?, NOW)");
+                    + "(?,?,?,?,?, NOW, ?)");
 
     public static final SQLStmt createUnaggedRecordSession = new SQLStmt(
             "INSERT INTO unaggregated_cdrs  " +
@@ -79,11 +87,11 @@ public class HandleMediationCDR extends AbstractMediationProcedure {
 
     protected static final long ONE_WEEK_IN_MILLIS = TimeUnit.DAYS.toMillis(7);
 
-    protected long aggSeqnoThreshold = 50;
-    protected long aggUsageThreshold = 1000000;
-
     public VoltTable[] run(long sessionId, long sessionStartUTC, int seqno, String callingNumber, String destination,
                            String recordType, long recordStartUTC, long recordUsage) throws VoltAbortException {
+        // Only used for DecisionStats, never for anything we write...
+        final long startNanos = System.nanoTime();
+
         // We refuse to process anything that shows up more than 1 week late...
         final Date cutoffDate = new Date(this.getTransactionTime().getTime() - ONE_WEEK_IN_MILLIS);
         final Date sessionStartUTCAsDate = new Date(sessionStartUTC);
@@ -93,34 +101,41 @@ public class HandleMediationCDR extends AbstractMediationProcedure {
             // This is dated more than 1 week ago - reject...
             voltQueueSQL(reportBadRecord, "LATESESSION", sessionId, sessionStartUTC, seqno, callingNumber, destination,
                     recordType, recordStartUTCAsDate, recordUsage);
-            return getEmptyVoltTables();
+            return getEmptyVoltTables(DecisionStats.LATESESSION, DecisionStats.PATH_NONE, startNanos);
         }
 
         if (recordStartUTCAsDate.before(cutoffDate)) {
             // This is dated more than 1 week ago - reject...
             voltQueueSQL(reportBadRecord, "LATERECORD", sessionId, sessionStartUTC, seqno, callingNumber, destination,
                     recordType, recordStartUTCAsDate, recordUsage);
-            return getEmptyVoltTables();
+            return getEmptyVoltTables(DecisionStats.LATERECORD, DecisionStats.PATH_NONE, startNanos);
         }
 
         // See if we know about this session, and find out what our
         // parameters are...
         voltQueueSQL(getSession, sessionId, sessionStartUTCAsDate);
-        voltQueueSQL(getParameter, AGG_USAGE);
-        voltQueueSQL(getParameter, AGG_SEQNOCOUNT);
+        queueParameterRead();
+        metrics.clear();
 
         VoltTable[] sessionRecords = voltExecuteSQL();
 
         VoltTable sessionDupCheck = sessionRecords[0];
-        aggUsageThreshold = getParameterIfSet(sessionRecords[1], aggUsageThreshold);
-        aggSeqnoThreshold = getParameterIfSet(sessionRecords[2], aggSeqnoThreshold);
+        MediationParameters parameters = getParameters(sessionRecords[1]);
+        aggUsageThreshold = parameters.get(AGG_USAGE, aggUsageThreshold);
+        aggSeqnoThreshold = parameters.get(AGG_SEQNOCOUNT, aggSeqnoThreshold);
+        loadExpiryParameters(parameters);
 
         // We use this to store all the sequence numbers we've seen for this session
         // instead of storing one row per sequence nuumber....
         MediationRecordSequence msr = new MediationRecordSequence(null);
 
         // Do duplicate checking...
-        if (sessionDupCheck.advanceRow()) {
+        final boolean sessionExists = sessionDupCheck.advanceRow();
+        final boolean totalsInRow;
+        TimestampType currentExpiryBucket = null;
+        String storedCallingNumber = null;
+
+        if (sessionExists) {
 
             // We've seen at least one row for this session...
 
@@ -132,21 +147,45 @@ public class HandleMediationCDR extends AbstractMediationProcedure {
                 // This is a dup - reject...
                 voltQueueSQL(reportBadRecord, "DUP", sessionId, sessionStartUTC, seqno, callingNumber, destination,
                         recordType, recordStartUTCAsDate, recordUsage);
-                return getEmptyVoltTables();
+                return getEmptyVoltTables(DecisionStats.DUP, DecisionStats.PATH_NONE, startNanos);
             }
 
-            // Note we've see this seqno
-            msr.setSeqno(seqno);
-            voltQueueSQL(updateSessionSeqnosAndUsage, msr.getSequence(), recordUsage, sessionId, sessionStartUTCAsDate);
-
+            // Sessions stay wherever they started, even if SESSION_STATE_IN_ROW changes...
+            totalsInRow = SessionRunningTotals.areInSessionRow(sessionDupCheck);
+            currentExpiryBucket = sessionDupCheck.getTimestampAsTimestamp("expiry_bucket");
+            storedCallingNumber = sessionDupCheck.getString("callingNumber");
         } else {
+            totalsInRow = parameters.get(SESSION_STATE_IN_ROW, 0) != 0;
+        }
 
-            // New session we've never heard of..
-            msr.setSeqno(seqno);
-            voltQueueSQL(createSession, sessionId, sessionStartUTCAsDate, callingNumber, msr.getSequence(), recordUsage);
+        // Note we've see this seqno
+        msr.setSeqno(seqno);
+        queueCallingNumber(sessionId, sessionStartUTCAsDate, sessionExists, storedCallingNumber, callingNumber);
+
+        // If we don't aggregate, this is when FlushStaleSessions gives up on us...
+        TimestampType expiryBucket = getExpiryBucket(currentExpiryBucket, sessionStartUTC, seqno, recordStartUTC);
+
+        final int notAggregated = sessionExists ? DecisionStats.CONTINUING_SESSION : DecisionStats.NEW_SESSION;
 
+        if (totalsInRow) {
+            String aggReason = handleWithTotalsInRow(sessionExists ? sessionDupCheck : null, msr, sessionId,
+                    sessionStartUTCAsDate, seqno, callingNumber, destination, recordType, recordStartUTCAsDate,
+                    recordUsage, currentExpiryBucket, expiryBucket);
+            return getEmptyVoltTables(aggReason != null ? DecisionStats.getAggOutcome(aggReason) : notAggregated,
+                    DecisionStats.PATH_ROW, startNanos);
         }
 
+        if (sessionExists) {
+            voltQueueSQL(updateSessionSeqnosAndUsage, msr.getSequence(), recordUsage, expiryBucket, sessionId,
+                    sessionStartUTCAsDate);
+        } else {
+            // New session we've never heard of..
+            voltQueueSQL(createSession, sessionId, sessionStartUTCAsDate, callingNumber, msr.getSequence(), recordUsage,
+                    expiryBucket);
+        }
+
+        queueExpiryChange(sessionId, sessionStartUTCAsDate, currentExpiryBucket, expiryBucket);
+
         // Add message contents to running totals, and then see whether we can
         // aggregate...
         voltQueueSQL(createUnaggedRecordSession, sessionId, sessionStartUTCAsDate, seqno, callingNumber, destination,
@@ -156,12 +195,17 @@ public class HandleMediationCDR extends AbstractMediationProcedure {
         VoltTable[] totalRecords = voltExecuteSQL();
         VoltTable totalRecordsTable = totalRecords[totalRecords.length - 1];
 
-        aggregateSessionIfNeeded(totalRecordsTable, msr, recordType, seqno);
-        return getEmptyVoltTables();
+        String aggReason = aggregateSessionIfNeeded(totalRecordsTable, msr, recordType, seqno, expiryBucket);
+        return getEmptyVoltTables(aggReason != null ? DecisionStats.getAggOutcome(aggReason) : notAggregated,
+                DecisionStats.PATH_VIEW, startNanos);
     }
 
-    protected void aggregateSessionIfNeeded(VoltTable totalRecordsTable, MediationRecordSequence msr, String recordType,
-                                            int seqno) {
+    /**
+     * @param expiryBucket - The session's expiry_bucket, which aggregating it clears
+     * @return Why we aggregated the session, or null if we didn't
+     */
+    protected String aggregateSessionIfNeeded(VoltTable totalRecordsTable, MediationRecordSequence msr,
+                                              String recordType, int seqno, TimestampType expiryBucket) {
         totalRecordsTable.advanceRow();
 
         long unaggedRecordCount = totalRecordsTable.getLong(9);
@@ -169,34 +213,95 @@ public class HandleMediationCDR extends AbstractMediationProcedure {
         long sessionId = totalRecordsTable.getLong(0);
         TimestampType sessionStartUTC = totalRecordsTable.getTimestampAsTimestamp(1);
 
-        // See if we have a complete set of records...
-        if (msr.weHaveFromZeroTo(seqno)) {
+        String aggReason = getAggReason(msr, recordType, seqno, unaggedRecordCount, unaggedRecordUsage);
 
-            String aggReason = null;
+        if (aggReason != null) {
 
-            // Decide whether to aggregate this session
-            if (recordType.equalsIgnoreCase("E")) {
-                aggReason = "END";
-            } else if (unaggedRecordCount > aggSeqnoThreshold) {
-                aggReason = "QTY";
-            } else if (unaggedRecordUsage > aggUsageThreshold) {
-                aggReason = "USAGE";
-            }
+            // This also deletes the session's running totals...
+            aggregateSession(totalRecordsTable, aggReason, false);
+            queueExpiryChange(sessionId, sessionStartUTC.asExactJavaDate(), expiryBucket, null);
+            queueMetrics();
 
-            if (aggReason != null) {
+            queueMissingMetrics(voltExecuteSQL(), sessionId);
+        }
 
-                aggregateSession(totalRecordsTable, aggReason);
+        return aggReason;
+    }
+
+    /**
+     * Add a CDR to running totals we keep in cdr_dupcheck and aggregate if we need
+     * to, all in one round of SQL. The caller runs it, unless we aggregated, in
+     * which case we run it to see whether mediation_metrics needs a new row.
+     *
+     * @param sessionDupCheck     - The session's cdr_dupcheck row, or null if it's new
+     * @param currentExpiryBucket - The expiry_bucket it has now, or null
+     * @param expiryBucket        - When to flush the session if it isn't aggregated
+     * @return Why we aggregated the session, or null if we didn't
+     */
+    protected String handleWithTotalsInRow(VoltTable sessionDupCheck, MediationRecordSequence msr, long sessionId,
+                                         Date sessionStartUTCAsDate, int seqno, String callingNumber,
+                                         String destination, String recordType, Date recordStartUTCAsDate,
+                                         long recordUsage, TimestampType currentExpiryBucket,
+                                         TimestampType expiryBucket) {
+        TimestampType sessionStartUTC = new TimestampType(sessionStartUTCAsDate);
+        SessionRunningTotals totals = new SessionRunningTotals(sessionId, sessionStartUTC);
+
+        if (sessionDupCheck != null) {
+            totals.loadFromSession(sessionDupCheck);
+        }
 
-                deleteSessionRunningTotals(sessionId, sessionStartUTC);
+        totals.add(seqno, callingNumber, destination, recordStartUTCAsDate.getTime() * 1000, recordUsage);
+        expiryBucket = getExpiryBucketInRow(expiryBucket, totals.getMinRecordStartUTC());
 
-                voltExecuteSQL();
-            }
+        String aggReason = getAggReason(msr, recordType, seqno, totals.getHowMany(), totals.getRecordUsage());
+        long aggregatedUsage = totals.getRecordUsage();
+
+        if (aggReason != null) {
+            voltQueueSQL(createAggregatedSession, aggReason, sessionId, sessionStartUTC, totals.minSeqno,
+                    totals.maxSeqno, totals.callingNumber, totals.destination, totals.getMinRecordStartUTC(),
+                    totals.getMaxRecordStartUTC(), aggregatedUsage);
+            metrics.count(aggReason, aggregatedUsage, totals.getHowMany());
+
+            totals.clear();
+        }
 
+        if (sessionDupCheck == null) {
+            voltQueueSQL(createSessionWithTotals, sessionId, sessionStartUTC, callingNumber, msr.getSequence(),
+                    totals.getRecordUsage(), totals.destination, totals.getHowMany(), totals.getNullableMinSeqno(),
+                    totals.getNullableMaxSeqno(), totals.getNullableMinRecordStartUTC(),
+                    totals.getNullableMaxRecordStartUTC(), expiryBucket);
+        } else {
+            voltQueueSQL(updateSessionWithTotals, msr.getSequence(), totals.getRecordUsage(), totals.destination,
+                    totals.getHowMany(), totals.getNullableMinSeqno(), totals.getNullableMaxSeqno(),
+                    totals.getNullableMinRecordStartUTC(), totals.getNullableMaxRecordStartUTC(), expiryBucket,
+                    sessionId, sessionStartUTC);
+        }
+
+        if (aggReason != null) {
+            // Report change in status, which has to come after the session exists...
+            voltQueueSQL(updateAggStatusAndClearTotalsInRow, aggReason, aggregatedUsage, sessionId, sessionStartUTC);
         }
+
+        queueExpiryChange(sessionId, sessionStartUTCAsDate, currentExpiryBucket,
+                aggReason == null ? expiryBucket : null);
+
+        if (queueMetrics() > 0) {
+            queueMissingMetrics(voltExecuteSQL(), sessionId);
+        }
+
+        return aggReason;
     }
 
-    private VoltTable[] getEmptyVoltTables() {
+    /**
+     * Run whatever SQL is left and note what we decided in DecisionStats.
+     *
+     * @param outcome    - What happened to the CDR
+     * @param path       - Where the session's running totals are kept
+     * @param startNanos - System.nanoTime() when we started
+     */
+    private VoltTable[] getEmptyVoltTables(int outcome, int path, long startNanos) {
         voltExecuteSQL();
+        DecisionStats.forThisSite().record(outcome, path, System.nanoTime() - startNanos);
         return new VoltTable[0];
     }
 }
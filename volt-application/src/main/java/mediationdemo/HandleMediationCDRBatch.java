@@ -0,0 +1,390 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Handle a batch of CDRs that all belong to the same partition. Each CDR gets
+ * exactly the same treatment it would get from HandleMediationCDR, but the whole
+ * batch is done in one transaction with two rounds of SQL: one to read the
+ * state of every session in the batch, and one to write the results. Running
+ * totals are tracked in memory between the two, so CDRs for the same session
+ * in the same batch see each other. Sessions that keep their running totals in
+ * cdr_dupcheck are handled as per HandleMediationCDR.handleWithTotalsInRow().
+ * <p>
+ * The first parameter is only used to route the call to the right partition.
+ * Callers should pass one of the sessionIds in the batch. We can't check the
+ * others belong here, but if one doesn't its insert fails and the whole batch
+ * rolls back, so callers should resend a failed batch's CDRs on their own.
+ */
+public class HandleMediationCDRBatch extends AbstractMediationProcedure {
+
+    public static final SQLStmt getSession = new SQLStmt(
+            "SELECT * FROM cdr_dupcheck WHERE sessionId = ? AND sessionStartUTC = ?;");
+
+    public static final SQLStmt getSessionRunningTotals = new SQLStmt(
+            "SELECT * FROM unaggregated_cdrs_by_session WHERE sessionId = ? AND sessionStartUTC = ?;");
+
+    public static final SQLStmt updateSessionSeqnosAndUsage = new SQLStmt(
+            "UPDATE cdr_dupcheck SET used_seqno_array = ?, "
+                    + "unaggregated_usage = unaggregated_usage + ?, expiry_bucket = ? "
+                    + "WHERE sessionId = ? AND sessionStartUTC = ?;");
+
+    public static final SQLStmt createSession = new SQLStmt(
+            "INSERT INTO cdr_dupcheck "
+                    + "(sessionId  , sessionStartUTC  , callingNumber , used_seqno_array "
+                    + ", unaggregated_usage, insert_date, expiry_bucket)"
+                    + " VALUES "
+                    + "(?,?,?,?,?, NOW, ?)");
+
+    public static final SQLStmt createUnaggedRecordSession = new SQLStmt(
+            "INSERT INTO unaggregated_cdrs  " +
+                    "( sessionId, " +
+                    " sessionStartUTC, " +
+                    " seqno, " +
+                    " callingNumber, " +
+                    " destination, " +
+                    " recordType, " +
+                    " recordStartUTC, " +
+                    " recordUsage)  " +
+                    "VALUES " +
+                    "(?,?,?,?,?,?,?,?); ");
+
+    public static final SQLStmt reportBadRecord = new SQLStmt(
+            "INSERT INTO bad_cdrs  " +
+                    "( reason, sessionId, " +
+                    " sessionStartUTC, " +
+                    " seqno, " +
+                    " callingNumber, " +
+                    " destination, " +
+                    " recordType, " +
+                    " recordStartUTC, " +
+                    " recordUsage)  " +
+                    "VALUES " +
+                    "(?,?,?,?,?,?,?,?,?); ");
+
+    // Statements queued for an aggregation, as per aggregateSession()
+    private static final int AGGREGATION_STATEMENT_COUNT = 3;
+
+    private int queuedStatementCount;
+    private final List<VoltTable> executedResults = new ArrayList<>();
+
+    public VoltTable[] run(long partitionKey, long[] sessionIds, long[] sessionStartUTCs, int[] seqnos,
+                           String[] callingNumbers, String[] destinations, String[] recordTypes,
+                           long[] recordStartUTCs, long[] recordUsages) throws VoltAbortException {
+        final int cdrCount = sessionIds.length;
+
+        if (sessionStartUTCs.length != cdrCount || seqnos.length != cdrCount || callingNumbers.length != cdrCount
+                || destinations.length != cdrCount || recordTypes.length != cdrCount
+                || recordStartUTCs.length != cdrCount || recordUsages.length != cdrCount) {
+            throw new VoltAbortException("All CDR arrays must be the same length");
+        }
+
+        // We refuse to process anything that shows up more than 1 week late...
+        final Date cutoffDate = new Date(this.getTransactionTime().getTime() - HandleMediationCDR.ONE_WEEK_IN_MILLIS);
+        final long cutoffMillis = cutoffDate.getTime();
+
+        queuedStatementCount = 0;
+        executedResults.clear();
+
+        // First round - find our parameters and every session we're going to touch...
+        queueSQL(getAllParameters);
+        metrics.clear();
+
+        Map<String, BatchSession> sessions = new LinkedHashMap<>();
+        for (int i = 0; i < cdrCount; i++) {
+            if (sessionStartUTCs[i] < cutoffMillis || recordStartUTCs[i] < cutoffMillis) {
+                continue;
+            }
+
+            String sessionKey = sessionIds[i] + ":" + sessionStartUTCs[i];
+            if (!sessions.containsKey(sessionKey)) {
+                BatchSession session = new BatchSession(sessionIds[i], new Date(sessionStartUTCs[i]));
+                sessions.put(sessionKey, session);
+
+                queueSQL(getSession, session.sessionId, session.sessionStartUTCAsDate);
+                queueSQL(getSessionRunningTotals, session.sessionId, session.sessionStartUTCAsDate);
+            }
+        }
+
+        List<VoltTable> sessionRecords = executeQueuedSQL(false);
+        MediationParameters parameters = getParameters(sessionRecords.get(0));
+        aggUsageThreshold = parameters.get(AGG_USAGE, aggUsageThreshold);
+        aggSeqnoThreshold = parameters.get(AGG_SEQNOCOUNT, aggSeqnoThreshold);
+        loadExpiryParameters(parameters);
+
+        boolean newSessionTotalsInRow = parameters.get(SESSION_STATE_IN_ROW, 0) != 0;
+
+        int resultIndex = 1;
+        for (BatchSession session : sessions.values()) {
+            session.load(sessionRecords.get(resultIndex++), sessionRecords.get(resultIndex++), newSessionTotalsInRow);
+        }
+
+        // Second round - handle each CDR in the order it arrived...
+        for (int i = 0; i < cdrCount; i++) {
+            final long sessionId = sessionIds[i];
+            final long sessionStartUTC = sessionStartUTCs[i];
+            final int seqno = seqnos[i];
+            final String callingNumber = callingNumbers[i];
+            final String destination = destinations[i];
+            final String recordType = recordTypes[i];
+            final long recordUsage = recordUsages[i];
+            final Date recordStartUTCAsDate = new Date(recordStartUTCs[i]);
+
+            if (sessionStartUTC < cutoffMillis) {
+                // This is dated more than 1 week ago - reject...
+                queueSQL(reportBadRecord, "LATESESSION", sessionId, sessionStartUTC, seqno, callingNumber,
+                        destination, recordType, recordStartUTCAsDate, recordUsage);
+                continue;
+            }
+
+            if (recordStartUTCs[i] < cutoffMillis) {
+                // This is dated more than 1 week ago - reject...
+                queueSQL(reportBadRecord, "LATERECORD", sessionId, sessionStartUTC, seqno, callingNumber,
+                        destination, recordType, recordStartUTCAsDate, recordUsage);
+                continue;
+            }
+
+            BatchSession session = sessions.get(sessionId + ":" + sessionStartUTC);
+            MediationRecordSequence msr = session.msr;
+
+            if (msr.getSeqno(seqno)) {
+                // This is a dup - reject...
+                queueSQL(reportBadRecord, "DUP", sessionId, sessionStartUTC, seqno, callingNumber, destination,
+                        recordType, recordStartUTCAsDate, recordUsage);
+                continue;
+            }
+
+            // Note we've see this seqno
+            msr.setSeqno(seqno);
+
+            makeRoomFor(2);
+            queuedStatementCount += queueCallingNumber(sessionId, session.sessionStartUTCAsDate, session.exists,
+                    session.callingNumber, callingNumber);
+
+            if (callingNumber != null) {
+                session.callingNumber = callingNumber;
+            }
+
+            // If we don't aggregate, this is when FlushStaleSessions gives up on us...
+            session.expiryBucket = getExpiryBucket(session.expiryBucket, sessionStartUTC, seqno, recordStartUTCs[i]);
+
+            if (session.totalsInRow) {
+                handleWithTotalsInRow(session, seqno, callingNumber, destination, recordType, recordStartUTCs[i],
+                        recordUsage);
+                continue;
+            }
+
+            if (session.exists) {
+                queueSQL(updateSessionSeqnosAndUsage, msr.getSequence(), recordUsage, session.expiryBucket,
+                        sessionId, session.sessionStartUTCAsDate);
+            } else {
+                // New session we've never heard of..
+                queueSQL(createSession, sessionId, session.sessionStartUTCAsDate, callingNumber, msr.getSequence(),
+                        recordUsage, session.expiryBucket);
+                session.exists = true;
+            }
+
+            // Add message contents to running totals, and then see whether we can
+            // aggregate...
+            queueSQL(createUnaggedRecordSession, sessionId, session.sessionStartUTCAsDate, seqno, callingNumber,
+                    destination, recordType, recordStartUTCAsDate, recordUsage);
+
+            SessionRunningTotals totals = session.totals;
+            totals.add(seqno, callingNumber, destination, recordStartUTCs[i] * 1000, recordUsage);
+
+            String aggReason = getAggReason(msr, recordType, seqno, totals.getHowMany(), totals.getRecordUsage());
+
+            if (aggReason != null) {
+                makeRoomFor(AGGREGATION_STATEMENT_COUNT);
+                aggregateSession(aggReason, sessionId, totals.sessionStartUTC, totals.minSeqno, totals.maxSeqno,
+                        totals.callingNumber, totals.destination, totals.getMinRecordStartUTC(),
+                        totals.getMaxRecordStartUTC(), totals.getRecordUsage(), totals.getHowMany());
+                queuedStatementCount += AGGREGATION_STATEMENT_COUNT;
+
+                totals.clear();
+                session.expiryBucket = null;
+            }
+        }
+
+        // Each session's session_expiry entry only needs to follow where it ended up...
+        for (BatchSession session : sessions.values()) {
+            makeRoomFor(1);
+            queuedStatementCount += queueExpiryChange(session.sessionId, session.sessionStartUTCAsDate,
+                    session.storedExpiryBucket, session.expiryBucket);
+        }
+
+        // Everything we've counted goes into mediation_metrics at once...
+        makeRoomFor(METRICS_STATEMENT_COUNT);
+        int metricsStatementCount = queueMetrics();
+        queuedStatementCount += metricsStatementCount;
+
+        if (metricsStatementCount > 0) {
+            queuedStatementCount = queueMissingMetrics(voltExecuteSQL(), partitionKey);
+        }
+
+        executeQueuedSQL(true);
+        return new VoltTable[0];
+    }
+
+    /**
+     * Add a CDR to running totals we keep in cdr_dupcheck and aggregate if we need
+     * to. msr has already been updated.
+     */
+    private void handleWithTotalsInRow(BatchSession session, int seqno, String callingNumber, String destination,
+                                       String recordType, long recordStartUTC, long recordUsage) {
+        SessionRunningTotals totals = session.totals;
+        MediationRecordSequence msr = session.msr;
+        totals.add(seqno, callingNumber, destination, recordStartUTC * 1000, recordUsage);
+        session.expiryBucket = getExpiryBucketInRow(session.expiryBucket, totals.getMinRecordStartUTC());
+
+        String aggReason = getAggReason(msr, recordType, seqno, totals.getHowMany(), totals.getRecordUsage());
+        long aggregatedUsage = totals.getRecordUsage();
+
+        if (aggReason != null) {
+            queueSQL(createAggregatedSession, aggReason, session.sessionId, totals.sessionStartUTC, totals.minSeqno,
+                    totals.maxSeqno, totals.callingNumber, totals.destination, totals.getMinRecordStartUTC(),
+                    totals.getMaxRecordStartUTC(), aggregatedUsage);
+            metrics.count(aggReason, aggregatedUsage, totals.getHowMany());
+
+            totals.clear();
+        }
+
+        if (session.exists) {
+            queueSQL(updateSessionWithTotals, msr.getSequence(), totals.getRecordUsage(), totals.destination,
+                    totals.getHowMany(), totals.getNullableMinSeqno(), totals.getNullableMaxSeqno(),
+                    totals.getNullableMinRecordStartUTC(), totals.getNullableMaxRecordStartUTC(),
+                    session.expiryBucket, session.sessionId, session.sessionStartUTCAsDate);
+        } else {
+            queueSQL(createSessionWithTotals, session.sessionId, session.sessionStartUTCAsDate, callingNumber,
+                    msr.getSequence(), totals.getRecordUsage(), totals.destination, totals.getHowMany(),
+                    totals.getNullableMinSeqno(), totals.getNullableMaxSeqno(),
+                    totals.getNullableMinRecordStartUTC(), totals.getNullableMaxRecordStartUTC(),
+                    session.expiryBucket);
+            session.exists = true;
+        }
+
+        if (aggReason != null) {
+            // Report change in status, which has to come after the session exists...
+            queueSQL(updateAggStatusAndClearTotalsInRow, aggReason, aggregatedUsage, session.sessionId,
+                    session.sessionStartUTCAsDate);
+            session.expiryBucket = null;
+        }
+    }
+
+    private void queueSQL(SQLStmt stmt, Object... args) {
+        makeRoomFor(1);
+        voltQueueSQL(stmt, args);
+        queuedStatementCount++;
+    }
+
+    /**
+     * Run what we've queued so far if another 'statementCount' statements won't fit.
+     */
+    private void makeRoomFor(int statementCount) {
+        if (queuedStatementCount + statementCount > MAX_QUEUED_STATEMENTS) {
+            Collections.addAll(executedResults, voltExecuteSQL());
+            queuedStatementCount = 0;
+        }
+    }
+
+    /**
+     * Run anything still queued.
+     *
+     * @return Results for everything run since the last call, in the order it was queued.
+     */
+    private List<VoltTable> executeQueuedSQL(boolean isFinal) {
+        if (queuedStatementCount > 0 || isFinal) {
+            Collections.addAll(executedResults, voltExecuteSQL(isFinal));
+        }
+
+        List<VoltTable> results = new ArrayList<>(executedResults);
+        executedResults.clear();
+        queuedStatementCount = 0;
+
+        return results;
+    }
+
+    /**
+     * What we know about one session in our batch.
+     */
+    private static class BatchSession {
+
+        final long sessionId;
+        final Date sessionStartUTCAsDate;
+        final SessionRunningTotals totals;
+        MediationRecordSequence msr;
+        boolean exists;
+        boolean totalsInRow;
+
+        // Null while there's nothing waiting to be aggregated...
+        TimestampType expiryBucket;
+
+        // What cdr_dupcheck and session_expiry had before this batch...
+        TimestampType storedExpiryBucket;
+
+        // What cdr_dupcheck has, or will have once we've run our SQL...
+        String callingNumber;
+
+        BatchSession(long sessionId, Date sessionStartUTCAsDate) {
+            this.sessionId = sessionId;
+            this.sessionStartUTCAsDate = sessionStartUTCAsDate;
+            this.totals = new SessionRunningTotals(sessionId, new TimestampType(sessionStartUTCAsDate));
+        }
+
+        /**
+         * @param newSessionTotalsInRow - Where to keep totals if this session is new
+         */
+        void load(VoltTable sessionDupCheck, VoltTable totalRecordsTable, boolean newSessionTotalsInRow) {
+            if (sessionDupCheck.advanceRow()) {
+                msr = new MediationRecordSequence(sessionDupCheck.getVarbinary(3));
+                exists = true;
+                totalsInRow = SessionRunningTotals.areInSessionRow(sessionDupCheck);
+                expiryBucket = sessionDupCheck.getTimestampAsTimestamp("expiry_bucket");
+                storedExpiryBucket = expiryBucket;
+                callingNumber = sessionDupCheck.getString("callingNumber");
+            } else {
+                msr = new MediationRecordSequence(null);
+                totalsInRow = newSessionTotalsInRow;
+            }
+
+            if (totalsInRow) {
+                if (exists) {
+                    totals.loadFromSession(sessionDupCheck);
+                }
+            } else {
+                totals.load(totalRecordsTable);
+            }
+        }
+    }
+}
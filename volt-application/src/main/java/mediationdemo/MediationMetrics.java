@@ -0,0 +1,110 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts a transaction's aggregation decisions, so they can be added to
+ * mediation_metrics with one statement per metric. Transactions that don't
+ * decide anything don't touch mediation_metrics at all.
+ * <p>
+ * mediation_metrics is partitioned, but a procedure has no way of knowing a
+ * partition_key that belongs to its partition without reading the table, and
+ * it can't remember one between transactions: a replica that has just
+ * rejoined wouldn't know it, and would run different SQL from its peers. So
+ * we add to the row for our metric with the lowest partition_key, which only
+ * sees our own partition, and still gives one answer if rows ever move
+ * partitions. If there isn't one, which UPSERT ... SELECT tells us by
+ * changing no rows, we create it with a value that was passed to the
+ * procedure as its partitioning parameter.
+ * <p>
+ * partition_key changes whenever the table is emptied, so FlushStaleSessions
+ * also stamps the rows with the partition's id, which its scheduler gets from
+ * VoltDB and passes in, for ShowAggStatus__promBL to report them by.
+ * <p>
+ * We don't count CDRs as they arrive. Each decision records how many CDRs it
+ * covered, so ShowAggStatus__promBL works out how many we've received from
+ * these and the running totals of sessions that are still open.
+ */
+public class MediationMetrics {
+
+    // Aggregation decisions are counted by reason. These three close a session...
+    static final String END = "END";
+    static final String AGE = "AGE";
+    static final String LATE = "LATE";
+
+    // Every metric, and what ShowAggStatus__promBL calls it...
+    static final String[][] METRIC_NAMES = {
+            {END, "agg_state_end"},
+            {"QTY", "agg_state_qty"},
+            {"USAGE", "agg_state_usage"},
+            {AGE, "agg_state_age"},
+            {LATE, "agg_state_late"}};
+
+    // What we keep for each metric...
+    static final int HOW_MANY = 0;
+    static final int USAGE = 1;
+    static final int CDR_COUNT = 2;
+
+    private final Map<String, long[]> pending = new LinkedHashMap<>();
+
+    /**
+     * Forget everything, ready for a new transaction.
+     */
+    void clear() {
+        pending.clear();
+    }
+
+    /**
+     * Note that a decision covering cdrCount CDRs and their usage was made once.
+     */
+    void count(String metric, long usage, long cdrCount) {
+        long[] counts = pending.computeIfAbsent(metric, k -> new long[3]);
+        counts[HOW_MANY]++;
+        counts[USAGE] += usage;
+        counts[CDR_COUNT] += cdrCount;
+    }
+
+    /**
+     * @return What we've counted since we were last cleared, by metric. The map is
+     * ours, and is emptied by the next call to clear().
+     */
+    Map<String, long[]> getPending() {
+        return pending;
+    }
+
+    /**
+     * @return What ShowAggStatus__promBL calls 'metric'.
+     */
+    static String getDisplayName(String metric) {
+        for (String[] names : METRIC_NAMES) {
+            if (names[0].equals(metric)) {
+                return names[1];
+            }
+        }
+
+        return metric.toLowerCase();
+    }
+}
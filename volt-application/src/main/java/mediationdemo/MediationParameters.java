@@ -0,0 +1,61 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+
+import org.voltdb.VoltTable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The contents of mediation_parameters, as read by one transaction.
+ * <p>
+ * Procedures read the whole table in the same round as their other SQL, so
+ * they look at it once no matter how many parameters they need. We don't keep
+ * it between transactions: VoltDB hashes every statement a read-write
+ * procedure runs, and a replica that has just rejoined would start with
+ * nothing cached, so skipping the read when a copy is current would make
+ * replicas disagree about what SQL ran.
+ */
+public class MediationParameters {
+
+    private final Map<String, Long> values = new HashMap<>();
+
+    /**
+     * @param parameters - parameter_name, parameter_value
+     */
+    MediationParameters(VoltTable parameters) {
+        while (parameters.advanceRow()) {
+            values.put(parameters.getString(0), parameters.getLong(1));
+        }
+    }
+
+    /**
+     * @return The parameter called 'name', or defaultValue if it isn't set.
+     */
+    public long get(String name, long defaultValue) {
+        Long value = values.get(name);
+        return value == null ? defaultValue : value;
+    }
+}
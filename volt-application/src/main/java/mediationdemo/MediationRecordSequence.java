@@ -22,29 +22,36 @@
  */
 package mediationdemo;
 
-import java.util.BitSet;
-
 /**
- * This is a BitSet where each Bit in each byte represents a possible sequence number
- * for a Mediation Session.
- * If you haven't worked with BitSet before https://www.baeldung.com/java-bitset
- * is a useful reference.
+ * A 256 bit bitmap where each bit represents a possible sequence number for a
+ * Mediation Session.
+ * <p>
+ * The bits live in four longs, so setting, testing and checking for a complete
+ * run of seqnos are a handful of word operations. We read and write the same
+ * little-endian layout java.util.BitSet's valueOf() and toByteArray() use, with
+ * trailing zero bytes left off, so existing values of
+ * cdr_dupcheck.used_seqno_array can still be read and what we write is byte
+ * for byte what we wrote before.
  */
 public class MediationRecordSequence {
 
     public static final int MAX_POSSIBLE_SEQNO = 255;
 
-    BitSet theBitSet;
+    private static final int WORD_COUNT = (MAX_POSSIBLE_SEQNO + 1) / Long.SIZE;
+
+    private static final byte[] EMPTY_SEQUENCE = new byte[0];
+
+    private final long[] words = new long[WORD_COUNT];
 
     /**
-     * Create a Bitset from an existing byte array. If it's null create
-     * one with MediationSession.MAX_POSSIBLE_SEQNO entries.
+     * Create a bitmap from an existing byte array, which may be shorter than 32 bytes.
+     * If it's null create an empty one.
      */
     public MediationRecordSequence(byte[] rawData) {
-        if (rawData == null) {
-            theBitSet = new BitSet(MAX_POSSIBLE_SEQNO);
-        } else {
-            theBitSet = BitSet.valueOf(rawData);
+        if (rawData != null) {
+            for (int i = 0; i < rawData.length; i++) {
+                words[i >>> 3] |= (rawData[i] & 0xFFL) << ((i & 7) << 3);
+            }
         }
     }
 
@@ -52,47 +59,104 @@ public class MediationRecordSequence {
      * Mark seqno as having been seen.
      */
     public void setSeqno(int seqno) {
-        theBitSet.set(seqno);
+        words[seqno >>> 6] |= 1L << seqno;
     }
 
     /**
      * See if a seqno has been seen.
      *
-     * @return true if 'seqno' has been seen, otherwise false.
+     * @return true if 'seqno' has been seen, otherwise false, which is always the
+     * case for seqnos outside 0 to MAX_POSSIBLE_SEQNO.
      */
     public boolean getSeqno(int seqno) {
-        return theBitSet.get(seqno);
+        if (seqno < 0 || seqno > MAX_POSSIBLE_SEQNO) {
+            return false;
+        }
+
+        return (words[seqno >>> 6] & (1L << seqno)) != 0;
     }
 
     /**
      * See if we have a full range from zero to seqno. Useful
      * for checking for missing records prior to aggregation.
+     *
+     * @return true if every seqno below 'seqno' has been seen
      */
     public boolean weHaveFromZeroTo(int seqno) {
-        //theBitSet.nextClearBit(0) >= seqno;
-        for (int i = 0; i < seqno; i++) {
-            if (!theBitSet.get(i)) {
-                return false;
+        return getContiguousCount() >= seqno;
+    }
+
+    /**
+     * @return How many seqnos, starting at zero, we've seen without a gap.
+     */
+    public int getContiguousCount() {
+        int count = 0;
+
+        for (long word : words) {
+            if (word != -1L) {
+                return count + Long.numberOfTrailingZeros(~word);
+            }
+
+            count += Long.SIZE;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return How many seqnos we've seen.
+     */
+    public int cardinality() {
+        int count = 0;
+
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+
+        return count;
+    }
+
+    /**
+     * @return One more than the highest seqno we've seen, or 0 if we haven't seen any.
+     */
+    public int length() {
+        for (int i = WORD_COUNT - 1; i >= 0; i--) {
+            if (words[i] != 0) {
+                return (i * Long.SIZE) + Long.SIZE - Long.numberOfLeadingZeros(words[i]);
             }
         }
 
-        return true;
+        return 0;
     }
 
     /**
      * Convert back to byte[] for storage.
      *
-     * @return BitSet as byte[]
+     * @return As per BitSet.toByteArray()
      */
     public byte[] getSequence() {
-        return theBitSet.toByteArray();
+        int byteCount = (length() + 7) >>> 3;
+
+        if (byteCount == 0) {
+            return EMPTY_SEQUENCE;
+        }
+
+        byte[] sequence = new byte[byteCount];
+
+        for (int i = 0; i < byteCount; i++) {
+            sequence[i] = (byte) (words[i >>> 3] >>> ((i & 7) << 3));
+        }
+
+        return sequence;
     }
 
     @Override
     public String toString() {
         StringBuilder allString = new StringBuilder(MAX_POSSIBLE_SEQNO + 1);
 
-        for (int i = 0; i < theBitSet.length(); i++) {
+        final int length = length();
+
+        for (int i = 0; i < length; i++) {
             if (getSeqno(i)) {
                 allString.append('X');
             } else {
@@ -27,7 +27,7 @@ public class MediationRecordSequenceObserver {
     public int getHighestValidSequence(byte[] varbinaryArray) {
         MediationRecordSequence msr = new MediationRecordSequence(varbinaryArray);
 
-        int seqnoCount = msr.theBitSet.cardinality();
+        int seqnoCount = msr.cardinality();
         if (seqnoCount == 0) {
             return -1;
         }
@@ -0,0 +1,182 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * In memory copy of one session's row in unaggregated_cdrs_by_session. Used
+ * when a procedure handles several CDRs for the same session and needs to know
+ * what the view will say after each one, without reading it back.
+ * <p>
+ * Sessions started with SESSION_STATE_IN_ROW set keep the same totals in their
+ * cdr_dupcheck row instead, and use this to update them.
+ */
+public class SessionRunningTotals {
+
+    final long sessionId;
+    final TimestampType sessionStartUTC;
+
+    long minRecordStartUTC;
+    long maxRecordStartUTC;
+    long minSeqno;
+    long maxSeqno;
+    long recordUsage;
+    String callingNumber;
+    String destination;
+    long howMany;
+
+    public SessionRunningTotals(long sessionId, TimestampType sessionStartUTC) {
+        this.sessionId = sessionId;
+        this.sessionStartUTC = sessionStartUTC;
+    }
+
+    /**
+     * Load totals from a row of unaggregated_cdrs_by_session, if there is one.
+     */
+    public void load(VoltTable totalRecordsTable) {
+        if (totalRecordsTable.advanceRow()) {
+            minRecordStartUTC = totalRecordsTable.getTimestampAsLong(2);
+            maxRecordStartUTC = totalRecordsTable.getTimestampAsLong(3);
+            minSeqno = totalRecordsTable.getLong(4);
+            maxSeqno = totalRecordsTable.getLong(5);
+            recordUsage = totalRecordsTable.getLong(6);
+            callingNumber = totalRecordsTable.getString(7);
+            destination = totalRecordsTable.getString(8);
+            howMany = totalRecordsTable.getLong(9);
+        }
+    }
+
+    /**
+     * Load totals from a session's row in cdr_dupcheck. We assume sessionDupCheck is
+     * currently on the right row, and that the session keeps its totals there.
+     */
+    public void loadFromSession(VoltTable sessionDupCheck) {
+        howMany = sessionDupCheck.getLong("unagg_count");
+        recordUsage = sessionDupCheck.getLong("unaggregated_usage");
+        callingNumber = sessionDupCheck.getString("callingNumber");
+        destination = sessionDupCheck.getString("destination");
+
+        if (howMany > 0) {
+            minRecordStartUTC = sessionDupCheck.getTimestampAsLong("unagg_min_recordStartUTC");
+            maxRecordStartUTC = sessionDupCheck.getTimestampAsLong("unagg_max_recordStartUTC");
+            minSeqno = sessionDupCheck.getLong("unagg_min_seqno");
+            maxSeqno = sessionDupCheck.getLong("unagg_max_seqno");
+        }
+    }
+
+    /**
+     * @return true if sessionDupCheck's current row keeps its totals in cdr_dupcheck.
+     */
+    public static boolean areInSessionRow(VoltTable sessionDupCheck) {
+        sessionDupCheck.getLong("unagg_count");
+        return !sessionDupCheck.wasNull();
+    }
+
+    /**
+     * Do what the view does when a CDR is inserted into unaggregated_cdrs.
+     *
+     * @param recordStartUTCMicros - as per TimestampType.getTime()
+     */
+    public void add(long seqno, String cdrCallingNumber, String cdrDestination, long recordStartUTCMicros,
+                    long cdrRecordUsage) {
+        if (howMany == 0) {
+            minRecordStartUTC = recordStartUTCMicros;
+            maxRecordStartUTC = recordStartUTCMicros;
+            minSeqno = seqno;
+            maxSeqno = seqno;
+        } else {
+            minRecordStartUTC = Math.min(minRecordStartUTC, recordStartUTCMicros);
+            maxRecordStartUTC = Math.max(maxRecordStartUTC, recordStartUTCMicros);
+            minSeqno = Math.min(minSeqno, seqno);
+            maxSeqno = Math.max(maxSeqno, seqno);
+        }
+
+        recordUsage += cdrRecordUsage;
+        callingNumber = max(callingNumber, cdrCallingNumber);
+        destination = max(destination, cdrDestination);
+        howMany++;
+    }
+
+    /**
+     * Do what happens to the view when deleteSessionRunningTotals runs.
+     */
+    public void clear() {
+        howMany = 0;
+        recordUsage = 0;
+        callingNumber = null;
+        destination = null;
+    }
+
+    public long getHowMany() {
+        return howMany;
+    }
+
+    public long getRecordUsage() {
+        return recordUsage;
+    }
+
+    public TimestampType getMinRecordStartUTC() {
+        return new TimestampType(minRecordStartUTC);
+    }
+
+    public TimestampType getMaxRecordStartUTC() {
+        return new TimestampType(maxRecordStartUTC);
+    }
+
+    /*
+     * When there's nothing unaggregated the cdr_dupcheck columns are null...
+     */
+
+    public Long getNullableMinSeqno() {
+        return howMany == 0 ? null : minSeqno;
+    }
+
+    public Long getNullableMaxSeqno() {
+        return howMany == 0 ? null : maxSeqno;
+    }
+
+    public TimestampType getNullableMinRecordStartUTC() {
+        return howMany == 0 ? null : getMinRecordStartUTC();
+    }
+
+    public TimestampType getNullableMaxRecordStartUTC() {
+        return howMany == 0 ? null : getMaxRecordStartUTC();
+    }
+
+    /**
+     * SQL MAX() ignores nulls.
+     */
+    private static String max(String current, String candidate) {
+        if (current == null) {
+            return candidate;
+        }
+
+        if (candidate == null || current.compareTo(candidate) >= 0) {
+            return current;
+        }
+
+        return candidate;
+    }
+}
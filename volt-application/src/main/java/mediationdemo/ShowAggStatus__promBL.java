@@ -0,0 +1,202 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Our Prometheus scrape. Everything comes from one round of SQL: one read of
+ * mediation_metrics, which has a handful of rows per partition, our
+ * parameters, and the running totals of the sessions that are still open on
+ * each of the two paths. Those are summed where they're kept, in
+ * unaggregated_cdrs_by_session, or in cdr_dupcheck for the sessions in
+ * session_expiry, so what it costs depends on how many sessions are open, not
+ * on how many sessions cdr_dupcheck remembers.
+ * <p>
+ * Decisions are reported as counters, both in total and for each partition,
+ * with the partition's id on the end of the name. A partition's rows don't
+ * have an id until FlushStaleSessions has run there, so until then they're
+ * only in the totals. Every CDR we accept is either waiting in an open
+ * session or was covered by exactly one decision, so how many we've received
+ * is the sum of the two.
+ */
+public class ShowAggStatus__promBL extends VoltProcedure {
+
+    public static final SQLStmt getMetrics = new SQLStmt(
+            "SELECT partition_id, metric, how_many, metric_usage, cdr_count FROM mediation_metrics "
+                    + "ORDER BY partition_id, metric;");
+
+    public static final SQLStmt getParameters = new SQLStmt(
+            "SELECT parameter_name, parameter_value FROM mediation_parameters ORDER BY parameter_name;");
+
+    public static final SQLStmt getEventClockOffset = new SQLStmt(
+            "SELECT MAX(offset_ms) FROM event_clock;");
+
+    // Open sessions, the CDRs and usage waiting in them, and when the oldest started...
+    public static final SQLStmt getOpenSessions = new SQLStmt(
+            "SELECT COUNT(*), SUM(how_many), SUM(recordUsage), MIN(min_recordStartUTC) "
+                    + "FROM unaggregated_cdrs_by_session;");
+
+    // Same columns as getOpenSessions. Sessions that keep their running totals in
+    // cdr_dupcheck are open if they have a session_expiry entry...
+    public static final SQLStmt getOpenSessionsInRow = new SQLStmt(
+            "SELECT COUNT(*), SUM(d.unagg_count), SUM(d.unaggregated_usage), MIN(d.unagg_min_recordStartUTC) "
+                    + "FROM session_expiry e, cdr_dupcheck d "
+                    + "WHERE d.sessionId = e.sessionId AND d.sessionStartUTC = e.sessionStartUTC "
+                    + "AND d.unagg_count > 0;");
+
+    public VoltTable[] run() throws VoltAbortException {
+        voltQueueSQL(getMetrics);
+        voltQueueSQL(getParameters);
+        voltQueueSQL(getOpenSessions);
+        voltQueueSQL(getOpenSessionsInRow);
+        voltQueueSQL(getEventClockOffset);
+
+        VoltTable[] results = voltExecuteSQL(true);
+
+        VoltTable stats = new VoltTable(
+                new VoltTable.ColumnInfo("statname", VoltType.STRING),
+                new VoltTable.ColumnInfo("stathelp", VoltType.STRING),
+                new VoltTable.ColumnInfo("statvalue", VoltType.BIGINT));
+
+        // Totals for each metric, and what each partition has. A partition can
+        // have more than one set of rows if rows have moved between partitions...
+        Map<String, long[]> totals = new LinkedHashMap<>();
+        for (String[] names : MediationMetrics.METRIC_NAMES) {
+            totals.put(names[0], new long[3]);
+        }
+
+        Map<Integer, Map<String, long[]>> partitions = new TreeMap<>();
+
+        VoltTable metricsTable = results[0];
+        while (metricsTable.advanceRow()) {
+            long partitionId = metricsTable.getLong("partition_id");
+            boolean hasPartitionId = !metricsTable.wasNull();
+            String metric = metricsTable.getString("metric");
+            long howMany = metricsTable.getLong("how_many");
+            long usage = metricsTable.getLong("metric_usage");
+            long cdrCount = metricsTable.getLong("cdr_count");
+
+            addTo(totals, metric, howMany, usage, cdrCount);
+
+            if (hasPartitionId) {
+                addTo(partitions.computeIfAbsent((int) partitionId, k -> new LinkedHashMap<>()), metric, howMany,
+                        usage, cdrCount);
+            }
+        }
+
+        for (Map.Entry<Integer, Map<String, long[]>> partition : partitions.entrySet()) {
+            for (Map.Entry<String, long[]> metric : partition.getValue().entrySet()) {
+                addMetric(stats, metric.getKey(), "_partition_" + partition.getKey(), metric.getValue());
+            }
+        }
+
+        // Sessions, CDRs and usage still open, on either path, and when the oldest started...
+        long[] open = new long[3];
+        long oldestMicros = Long.MAX_VALUE;
+
+        for (int i = 2; i <= 3; i++) {
+            VoltTable openSessions = results[i];
+            openSessions.advanceRow();
+
+            for (int column = 0; column < open.length; column++) {
+                long value = openSessions.getLong(column);
+
+                // SUM() of nothing is null...
+                if (!openSessions.wasNull()) {
+                    open[column] += value;
+                }
+            }
+
+            TimestampType oldest = openSessions.getTimestampAsTimestamp(3);
+
+            if (oldest != null) {
+                oldestMicros = Math.min(oldestMicros, oldest.getTime());
+            }
+        }
+
+        long receivedCount = open[1];
+        long receivedUsage = open[2];
+
+        for (Map.Entry<String, long[]> total : totals.entrySet()) {
+            addMetric(stats, total.getKey(), "", total.getValue());
+            receivedCount += total.getValue()[MediationMetrics.CDR_COUNT];
+            receivedUsage += total.getValue()[MediationMetrics.USAGE];
+        }
+
+        stats.addRow("mediation_cdrs_received_total", "CDRs accepted", receivedCount);
+        stats.addRow("mediation_cdrs_received_usage_total", "Usage in CDRs accepted", receivedUsage);
+        stats.addRow("mediation_agg_state_unaggregated_sessions",
+                "Sessions with CDRs we haven't aggregated or cancelled", open[0]);
+        stats.addRow("mediation_agg_state_unaggregated_usage",
+                "Usage we've accepted but not yet aggregated or cancelled", open[2]);
+
+        VoltTable parameters = results[1];
+        while (parameters.advanceRow()) {
+            String name = parameters.getString(0);
+            long value = parameters.getLong(1);
+
+            stats.addRow("mediation_parameter_" + name, "mediation_parameter_" + name, value);
+        }
+
+        // How far behind aggregation is, on either path, by the generator's clock if it has told us about one...
+        VoltTable eventClockOffset = results[4];
+        eventClockOffset.advanceRow();
+        long eventClockOffsetMs = eventClockOffset.getLong(0);
+
+        if (eventClockOffset.wasNull()) {
+            eventClockOffsetMs = 0;
+        }
+
+        long eventNowMicros = (getTransactionTime().getTime() + eventClockOffsetMs) * 1000;
+
+        stats.addRow("current_agg_lag_ms", "current_agg_lag_ms",
+                (eventNowMicros - Math.min(oldestMicros, eventNowMicros)) / 1000);
+
+        return new VoltTable[] { stats };
+    }
+
+    private static void addTo(Map<String, long[]> counts, String metric, long howMany, long usage, long cdrCount) {
+        long[] count = counts.computeIfAbsent(metric, k -> new long[3]);
+        count[MediationMetrics.HOW_MANY] += howMany;
+        count[MediationMetrics.USAGE] += usage;
+        count[MediationMetrics.CDR_COUNT] += cdrCount;
+    }
+
+    private static void addMetric(VoltTable stats, String metric, String suffix, long[] counts) {
+        String name = "mediation_" + MediationMetrics.getDisplayName(metric);
+
+        stats.addRow(name + "_total" + suffix, metric + " decisions", counts[MediationMetrics.HOW_MANY]);
+        stats.addRow(name + "_usage_total" + suffix, "Usage in " + metric + " decisions",
+                counts[MediationMetrics.USAGE]);
+    }
+}
@@ -0,0 +1,124 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What FlushStaleSessions did on one site, for GetSweepStats.
+ * <p>
+ * We keep one of these per site thread. It only ever changes what
+ * GetSweepStats returns, so it doesn't matter that a replica which has just
+ * rejoined starts counting again from zero.
+ */
+public class SweepStats {
+
+    private static final ThreadLocal<SweepStats> SITE_STATS = ThreadLocal.withInitial(SweepStats::new);
+
+    private VoltTable lastSweep = newSweepTable();
+
+    private long sweepCount;
+    private long totalSessionsAggregated;
+    private long totalSessionsCancelled;
+    private long totalStatements;
+    private long totalSweepMicros;
+
+    private SweepStats() {
+    }
+
+    /**
+     * @return The stats for the site we're running on.
+     */
+    static SweepStats forThisSite() {
+        return SITE_STATS.get();
+    }
+
+    /**
+     * @return An empty table laid out the way FlushStaleSessions reports a sweep.
+     */
+    static VoltTable newSweepTable() {
+        return new VoltTable(
+                new VoltTable.ColumnInfo("SWEEP_TIME", VoltType.TIMESTAMP),
+                new VoltTable.ColumnInfo("LAG_MS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("BACKLOG_MS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("WINDOW_MS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("ROW_LIMIT", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("ROW_LIMIT_REACHED", VoltType.TINYINT),
+                new VoltTable.ColumnInfo("SESSIONS_AGGREGATED", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("SESSIONS_CANCELLED", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("STATEMENTS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("PREVIOUS_SWEEP_MICROS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("BASE_WINDOW_MS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("MAX_WINDOW_MS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("BASE_ROW_LIMIT", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("MAX_ROW_LIMIT", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("TIME_BUDGET_MS", VoltType.BIGINT));
+    }
+
+    /**
+     * Remember a sweep.
+     * <p>
+     * The sweep's PREVIOUS_SWEEP_MICROS is the scheduler's timing of the sweep
+     * before it, queueing included, so we total what the sweep timed itself
+     * instead, which covers every sweep up to and including this one.
+     *
+     * @param sweep      - One row from newSweepTable(), which we keep
+     * @param sweepNanos - How long FlushStaleSessions spent on it
+     */
+    void record(VoltTable sweep, long sweepNanos) {
+        lastSweep = sweep;
+
+        sweep.resetRowPosition();
+        sweep.advanceRow();
+
+        sweepCount++;
+        totalSessionsAggregated += sweep.getLong("SESSIONS_AGGREGATED");
+        totalSessionsCancelled += sweep.getLong("SESSIONS_CANCELLED");
+        totalStatements += sweep.getLong("STATEMENTS");
+        totalSweepMicros += TimeUnit.NANOSECONDS.toMicros(sweepNanos);
+
+        sweep.resetRowPosition();
+    }
+
+    /**
+     * @return Our last sweep, as FlushStaleSessions reported it, followed by
+     * totals since this site started.
+     */
+    VoltTable[] toVoltTables() {
+        VoltTable totals = new VoltTable(
+                new VoltTable.ColumnInfo("SWEEPS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("SESSIONS_AGGREGATED", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("SESSIONS_CANCELLED", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("STATEMENTS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("SWEEP_MICROS", VoltType.BIGINT));
+
+        totals.addRow(sweepCount, totalSessionsAggregated, totalSessionsCancelled, totalStatements,
+                totalSweepMicros);
+
+        return new VoltTable[] { lastSweep, totals };
+    }
+}
@@ -1,3 +1,11 @@
 DELETE FROM cdr_dupcheck;
 
+DELETE FROM session_expiry;
+
+DELETE FROM sessions_by_calling_number;
+
 DELETE FROM UNAGGREGATED_CDRS_BY_SESSION;
+
+DELETE FROM mediation_metrics;
+
+DELETE FROM event_clock;
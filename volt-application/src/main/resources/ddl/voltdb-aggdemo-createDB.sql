@@ -20,6 +20,18 @@ CREATE TABLE cdr_dupcheck
 	 last_agg_date timestamp ,
 	 aggregated_usage bigint default 0,
 	 unaggregated_usage bigint default 0,
+	 destination varchar(512),
+	 -- Running totals for sessions started with SESSION_STATE_IN_ROW set.
+	 -- A null unagg_count means they're in unaggregated_cdrs_by_session instead.
+	 unagg_count bigint,
+	 unagg_min_seqno bigint,
+	 unagg_max_seqno bigint,
+	 unagg_min_recordStartUTC timestamp,
+	 unagg_max_recordStartUTC timestamp,
+	 -- When FlushStaleSessions should give up waiting for this session's
+	 -- unaggregated CDRs, rounded up to SESSION_EXPIRY_BUCKET_MS. Not
+	 -- indexed; session_expiry has an entry for it while it's set.
+	 expiry_bucket timestamp,
 	 primary key (sessionId,sessionStartUTC)
 )
 USING TTL 25 HOURS ON COLUMN insert_date BATCH_SIZE 50000;
@@ -28,24 +40,64 @@ PARTITION TABLE cdr_dupcheck ON COLUMN sessionId;
 
 CREATE INDEX cdd_ix1 ON cdr_dupcheck (insert_date);
 
-CREATE VIEW cdr_dupcheck_agg_summary_minute AS
-SELECT truncate(MINUTE, last_agg_date) last_agg_date, agg_state, count(*) how_many, sum(aggregated_usage) aggregated_usage
-FROM cdr_dupcheck
-GROUP BY  truncate(MINUTE, last_agg_date) , agg_state;
-
-CREATE INDEX cdasm_ix1 ON cdr_dupcheck_agg_summary_minute (last_agg_date);
-
-CREATE VIEW cdr_dupcheck_session_summary_minute AS
-SELECT truncate(MINUTE, sessionStartUTC) sessionStartUTC, agg_state, count(*) how_many, sum(aggregated_usage) aggregated_usage
-FROM cdr_dupcheck
-GROUP BY  truncate(MINUTE, sessionStartUTC) , agg_state;
-
-CREATE INDEX cdssm_ix1 ON cdr_dupcheck_session_summary_minute (sessionStartUTC);
-
-CREATE VIEW total_unaggregated_usage AS 
-SELECT sum(unaggregated_usage) unaggregated_usage
-FROM cdr_dupcheck;
+-- Every session we know a calling number for, partitioned by calling
+-- number, so GetByCallingNumber only has to ask one partition. Sessions
+-- are added from the new_sessions stream, by way of Kafka, as soon as
+-- we know their calling number, and expire along with cdr_dupcheck...
+CREATE TABLE sessions_by_calling_number
+(callingNumber varchar(20) not null,
+ sessionId bigint not null,
+ sessionStartUTC timestamp not null,
+ insert_date timestamp not null,
+ primary key (callingNumber, sessionId, sessionStartUTC))
+USING TTL 25 HOURS ON COLUMN insert_date BATCH_SIZE 50000;
 
+PARTITION TABLE sessions_by_calling_number ON COLUMN callingNumber;
+
+CREATE INDEX sbcn_ix1 ON sessions_by_calling_number (insert_date);
+
+-- One row for each session with an expiry_bucket, so FlushStaleSessions can
+-- find the ones that are due without an index on cdr_dupcheck, which has a
+-- row for every session we've seen in the last 25 hours. Procedures change it
+-- when a session's bucket changes, which is at most once a bucket. A row
+-- that doesn't match cdr_dupcheck is ignored, and deleted once it's due...
+CREATE TABLE session_expiry
+(sessionId bigint not null,
+ sessionStartUTC timestamp not null,
+ expiry_bucket timestamp not null,
+ primary key (sessionId, sessionStartUTC));
+
+PARTITION TABLE session_expiry ON COLUMN sessionId;
+
+CREATE INDEX se_ix1 ON session_expiry (expiry_bucket);
+
+-- How far a load generator's simulated clock is ahead of (or behind) real
+-- time, so FlushStaleSessions ages sessions by it. The generator writes the
+-- same value to one row on each partition with single partition calls, and
+-- deletes them when it finishes. No rows means real time...
+CREATE TABLE event_clock
+(partition_key bigint not null,
+ offset_ms bigint not null,
+ primary key (partition_key));
+
+PARTITION TABLE event_clock ON COLUMN partition_key;
+
+-- Counts of what we've decided, kept up to date by the procedures that
+-- decide them, along with how many CDRs each decision covered. Each
+-- partition has a row per metric, whose partition_key is the value the
+-- first procedure to decide it was called with. FlushStaleSessions fills
+-- in partition_id, which unlike partition_key doesn't change when the
+-- table is emptied...
+CREATE TABLE mediation_metrics
+(partition_key bigint not null,
+ metric varchar(10) not null,
+ how_many bigint not null,
+ metric_usage bigint not null,
+ cdr_count bigint default 0 not null,
+ partition_id integer,
+ primary key (partition_key, metric));
+
+PARTITION TABLE mediation_metrics ON COLUMN partition_key;
 
 CREATE STREAM bad_cdrs  
 EXPORT TO TARGET bad_cdrs 
@@ -94,6 +146,17 @@ GROUP BY sessionId, sessionStartUTC;
 CREATE INDEX ucbs_ix1 ON unaggregated_cdrs_by_session
 (min_recordStartUTC, sessionId, sessionStartUTC);
 
+-- A session and its calling number, for sessions_by_calling_number. It's
+-- written on the session's partition and read back by
+-- AddSessionByCallingNumber on the calling number's...
+CREATE STREAM new_sessions
+EXPORT TO TARGET new_sessions
+PARTITION ON COLUMN sessionId
+(	 callingNumber varchar(20) not null,
+	 sessionId bigint not null,
+	 sessionStartUTC bigint not null
+);
+
 CREATE STREAM aggregated_cdrs 
 EXPORT TO TARGET aggregated_cdrs 
 PARTITION ON COLUMN sessionId
@@ -115,131 +178,65 @@ CREATE PROCEDURE
    PARTITION ON TABLE cdr_dupcheck COLUMN sessionid
    FROM CLASS mediationdemo.GetBySessionId;  
    
+DROP PROCEDURE GetBySessionIds IF EXISTS;
+
+CREATE PROCEDURE  
+   PARTITION ON TABLE cdr_dupcheck COLUMN sessionid PARAMETER 0
+   FROM CLASS mediationdemo.GetBySessionIds;  
+   
+DROP PROCEDURE GetByCallingNumber IF EXISTS;
+
+CREATE PROCEDURE  
+   PARTITION ON TABLE sessions_by_calling_number COLUMN callingNumber PARAMETER 0
+   FROM CLASS mediationdemo.GetByCallingNumber;  
+   
+DROP PROCEDURE AddSessionByCallingNumber IF EXISTS;
+
+-- Called by our Kafka importer with what HandleMediationCDR put in new_sessions...
+CREATE PROCEDURE AddSessionByCallingNumber
+   PARTITION ON TABLE sessions_by_calling_number COLUMN callingNumber PARAMETER 0
+   AS UPSERT INTO sessions_by_calling_number (callingNumber, sessionId, sessionStartUTC, insert_date)
+   VALUES (?, ?, TO_TIMESTAMP(MILLISECOND, ?), NOW);
+   
 DROP PROCEDURE HandleMediationCDR IF EXISTS;
 
 CREATE PROCEDURE  
    PARTITION ON TABLE cdr_dupcheck COLUMN sessionid
    FROM CLASS mediationdemo.HandleMediationCDR;  
    
+DROP PROCEDURE HandleMediationCDRBatch IF EXISTS;
+
+CREATE PROCEDURE  
+   PARTITION ON TABLE cdr_dupcheck COLUMN sessionid PARAMETER 0
+   FROM CLASS mediationdemo.HandleMediationCDRBatch;  
+   
 DROP PROCEDURE FlushStaleSessions IF EXISTS;
 
 CREATE PROCEDURE DIRECTED
    FROM CLASS mediationdemo.FlushStaleSessions;  
    
+-- Runs FlushStaleSessions once a second, or more often with a bigger
+-- window and row limit when a partition falls behind...
 CREATE TASK FlushStaleSessionsTask
-ON SCHEDULE  EVERY 1 SECONDS
-PROCEDURE FlushStaleSessions
+FROM CLASS mediationdemo.FlushStaleSessionsScheduler
 ON ERROR LOG 
 RUN ON PARTITIONS;
+
+DROP PROCEDURE GetSweepStats IF EXISTS;
+
+CREATE PROCEDURE DIRECTED
+   FROM CLASS mediationdemo.GetSweepStats;  
    
 
-CREATE PROCEDURE ShowAggStatus__promBL AS
-BEGIN
-select 'mediation_agg_state_unaggregated_sessions' statname
-     ,  'mediation_agg_state_unaggregated_sessions' stathelp  
-     , how_many statvalue 
-from cdr_dupcheck_agg_summary_minute where last_agg_date IS null;
-
-select 'mediation_agg_state_unaggregated_usage' statname
-     ,  'mediation_agg_state_unaggregated_usage' stathelp  
-     , nvl(UNAGGREGATED_USAGE,0)  statvalue 
-from total_unaggregated_usage;
-
-select 'mediation_agg_state_end_qty_1min' statname
-     ,  'mediation_agg_state_end_qty_1min' stathelp  
-     , decode(sum(how_many),null,0,sum(how_many))  statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'END';
-
-select 'mediation_agg_state_end_usage_1min' statname
-     ,  'mediation_agg_state_end_usage_1min' stathelp  
-     , nvl(sum(aggregated_usage),0)  statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'END';
-
-select 'mediation_agg_state_usage_qty_1min' statname
-     ,  'mediation_agg_state_usage_qty_1min' stathelp  
-     , decode(sum(how_many),null,0,sum(how_many))  statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'USAGE';
-
-select 'mediation_agg_state_usage_usage_1min' statname
-     ,  'mediation_agg_state_usage_usage_1min' stathelp  
-     , nvl(sum(aggregated_usage),0) statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'USAGE';
-
-select 'mediation_agg_state_late_qty_1min' statname
-     ,  'mediation_agg_state_late_qty_1min' stathelp  
-     , decode(sum(how_many),null,0,sum(how_many))  statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'LATE';
-
-select 'mediation_agg_state_late_usage_1min' statname
-     ,  'mediation_agg_state_late_usage_1min' stathelp  
-     , nvl(sum(aggregated_usage),0)  statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'LATE';
-
-select 'mediation_agg_state_age_qty_1min' statname
-     ,  'mediation_agg_state_age_qty_1min' stathelp  
-     , decode(sum(how_many),null,0,sum(how_many))  statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'AGE';
-
-select 'mediation_agg_state_age_usage_1min' statname
-     ,  'mediation_agg_state_age_usage_1min' stathelp  
-     , nvl(sum(aggregated_usage),0)  statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'AGE';
-
-select 'mediation_agg_state_qty_qty_1min' statname
-     ,  'mediation_agg_state_qty_qty_1min' stathelp  
-     , decode(sum(how_many),null,0,sum(how_many))  statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'QTY';
-
-select 'mediation_agg_state_qty_usage_1min' statname
-     ,  'mediation_agg_state_qty_usage_1min' stathelp  
-     , nvl(sum(aggregated_usage),0)  statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'QTY';
-
-
-select 'mediation_agg_state_end_qty_1min' statname
-     ,  'mediation_agg_state_end_qty_1min' stathelp  
-     , decode(sum(how_many),null,0,sum(how_many))  statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'END';
-
-select 'mediation_agg_state_end_usage_1min' statname
-     ,  'mediation_agg_state_end_usage_1min' stathelp  
-     , nvl(sum(aggregated_usage),0)  statvalue 
-from cdr_dupcheck_agg_summary_minute 
-where last_agg_date = truncate(minute, DATEADD(MINUTE, -1, NOW))
-and agg_state  = 'END';
-
-select 'mediation_parameter_'||parameter_name statname
-     ,  'mediation_parameter_'||parameter_name stathelp  
-     , parameter_value statvalue 
-from mediation_parameters order by parameter_name;
-
-SELECT 'current_agg_lag_ms' statname, 'current_agg_lag_ms' stathelp,
-since_epoch(Millisecond, now) - since_epoch(Millisecond,min_recordStartUTC) statvalue
-FROM unaggregated_cdrs_by_session ORDER BY min_recordStartUTC LIMIT 1;
-
-END;
+DROP PROCEDURE GetDecisionStats IF EXISTS;
+
+CREATE PROCEDURE DIRECTED
+   FROM CLASS mediationdemo.GetDecisionStats;
+   
+
+DROP PROCEDURE ShowAggStatus__promBL IF EXISTS;
+
+CREATE PROCEDURE FROM CLASS mediationdemo.ShowAggStatus__promBL;
 
 END_OF_BATCH
 
@@ -274,3 +271,43 @@ upsert into mediation_parameters
 (parameter_name ,parameter_value)
 VALUES
 ('STALENESS_ROWLIMIT',1000);
+
+upsert into mediation_parameters
+(parameter_name ,parameter_value)
+VALUES
+('AGG_WINDOW_MAX_MS',600000);
+
+upsert into mediation_parameters
+(parameter_name ,parameter_value)
+VALUES
+('FLUSH_MAX_ROWLIMIT',10000);
+
+upsert into mediation_parameters
+(parameter_name ,parameter_value)
+VALUES
+('FLUSH_TIME_BUDGET_MS',20);
+
+upsert into mediation_parameters
+(parameter_name ,parameter_value)
+VALUES
+('FLUSH_BULK_CLOSE',1);
+
+upsert into mediation_parameters
+(parameter_name ,parameter_value)
+VALUES
+('SESSION_STATE_IN_ROW',0);
+
+upsert into mediation_parameters
+(parameter_name ,parameter_value)
+VALUES
+('SESSION_EXPIRY_GAP_MULTIPLE',10);
+
+upsert into mediation_parameters
+(parameter_name ,parameter_value)
+VALUES
+('SESSION_EXPIRY_MIN_MS',120000);
+
+upsert into mediation_parameters
+(parameter_name ,parameter_value)
+VALUES
+('SESSION_EXPIRY_BUCKET_MS',60000);
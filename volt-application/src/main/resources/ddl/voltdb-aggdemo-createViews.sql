@@ -0,0 +1,22 @@
+-- Per minute summaries of cdr_dupcheck, for looking at by hand. Nothing
+-- needs them, and VoltDB has to keep them up to date every time a
+-- cdr_dupcheck row changes, so they aren't created by
+-- voltdb-aggdemo-createDB.sql. Run this after it if you want them.
+
+CREATE VIEW cdr_dupcheck_agg_summary_minute AS
+SELECT truncate(MINUTE, last_agg_date) last_agg_date, agg_state, count(*) how_many, sum(aggregated_usage) aggregated_usage
+FROM cdr_dupcheck
+GROUP BY  truncate(MINUTE, last_agg_date) , agg_state;
+
+CREATE INDEX cdasm_ix1 ON cdr_dupcheck_agg_summary_minute (last_agg_date);
+
+CREATE VIEW cdr_dupcheck_session_summary_minute AS
+SELECT truncate(MINUTE, sessionStartUTC) sessionStartUTC, agg_state, count(*) how_many, sum(aggregated_usage) aggregated_usage
+FROM cdr_dupcheck
+GROUP BY  truncate(MINUTE, sessionStartUTC) , agg_state;
+
+CREATE INDEX cdssm_ix1 ON cdr_dupcheck_session_summary_minute (sessionStartUTC);
+
+CREATE VIEW total_unaggregated_usage AS 
+SELECT sum(unaggregated_usage) unaggregated_usage
+FROM cdr_dupcheck;
@@ -2,12 +2,25 @@ DROP TASK FlushStaleSessionsTask IF EXISTS;
 
 DROP PROCEDURE GetBySessionId IF EXISTS; 
 
+DROP PROCEDURE GetBySessionIds IF EXISTS; 
+
+DROP PROCEDURE GetByCallingNumber IF EXISTS; 
+
+DROP PROCEDURE AddSessionByCallingNumber IF EXISTS;
+
 DROP PROCEDURE HandleMediationCDR IF EXISTS; 
+
+DROP PROCEDURE HandleMediationCDRBatch IF EXISTS; 
    
 DROP PROCEDURE FlushStaleSessions IF EXISTS;
 
+DROP PROCEDURE GetSweepStats IF EXISTS;
+
+DROP PROCEDURE GetDecisionStats IF EXISTS;
+
 DROP PROCEDURE ShowAggStatus__promBL IF EXISTS;
 
+
 DROP VIEW total_unaggregated_usage IF EXISTS;
 
 DROP VIEW cdr_dupcheck_agg_summary_minute IF EXISTS;
@@ -18,12 +31,22 @@ DROP VIEW unaggregated_cdrs_by_session IF EXISTS;
 
 DROP TABLE mediation_parameters IF EXISTS;
 
+DROP TABLE mediation_metrics IF EXISTS;
+
+DROP TABLE event_clock IF EXISTS;
+
 DROP TABLE cdr_dupcheck IF EXISTS;
 
+DROP TABLE session_expiry IF EXISTS;
+
+DROP TABLE sessions_by_calling_number IF EXISTS;
+
 DROP STREAM bad_cdrs IF EXISTS;
 
 DROP STREAM aggregated_cdrs IF EXISTS;
 
+DROP STREAM new_sessions IF EXISTS;
+
 DROP STREAM unaggregated_cdrs IF EXISTS;
 
 DROP FUNCTION getHighestValidSequence IF EXISTS
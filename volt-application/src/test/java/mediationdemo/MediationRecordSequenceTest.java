@@ -0,0 +1,142 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2021 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mediationdemo;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Check MediationRecordSequence against the java.util.BitSet it replaced,
+ * whose byte layout cdr_dupcheck.used_seqno_array is stored in, using random
+ * sets of seqnos.
+ */
+public class MediationRecordSequenceTest {
+
+    private static final int SEQNO_COUNT = MediationRecordSequence.MAX_POSSIBLE_SEQNO + 1;
+
+    private static final int TRIES = 10000;
+
+    // Fixed, so a failure can be reproduced...
+    private final Random random = new Random(42);
+
+    @Test
+    public void emptySequenceMatchesBitSet() {
+        assertMatches(new BitSet(), new MediationRecordSequence(null));
+        assertMatches(new BitSet(), new MediationRecordSequence(new byte[0]));
+    }
+
+    @Test
+    public void randomSequencesMatchBitSet() {
+        for (int i = 0; i < TRIES; i++) {
+            BitSet expected = randomSeqnos();
+            MediationRecordSequence actual = new MediationRecordSequence(null);
+
+            for (int seqno = expected.nextSetBit(0); seqno >= 0; seqno = expected.nextSetBit(seqno + 1)) {
+                actual.setSeqno(seqno);
+            }
+
+            assertMatches(expected, actual);
+        }
+    }
+
+    @Test
+    public void randomStoredSequencesMatchBitSet() {
+        for (int i = 0; i < TRIES; i++) {
+            BitSet expected = randomSeqnos();
+            MediationRecordSequence actual = new MediationRecordSequence(expected.toByteArray());
+
+            assertMatches(expected, actual);
+
+            // ...and the same again after another seqno arrives.
+            int seqno = random.nextInt(SEQNO_COUNT);
+            expected.set(seqno);
+            actual.setSeqno(seqno);
+
+            assertMatches(expected, actual);
+        }
+    }
+
+    @Test
+    public void seqnosOutOfRangeAreNeverSeen() {
+        BitSet all = new BitSet();
+        all.set(0, SEQNO_COUNT);
+        MediationRecordSequence msr = new MediationRecordSequence(all.toByteArray());
+
+        assertFalse(msr.getSeqno(-1));
+        assertFalse(msr.getSeqno(Integer.MIN_VALUE));
+        assertFalse(msr.getSeqno(SEQNO_COUNT));
+        assertFalse(msr.getSeqno(SEQNO_COUNT + Long.SIZE));
+        assertFalse(msr.getSeqno(Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return Some seqnos. Sessions usually arrive mostly in order, so most sets
+     * start with a run from zero, which is where weHaveFromZeroTo() does its work.
+     */
+    private BitSet randomSeqnos() {
+        BitSet seqnos = new BitSet();
+
+        if (random.nextBoolean()) {
+            seqnos.set(0, random.nextInt(SEQNO_COUNT + 1));
+        }
+
+        double density = random.nextDouble();
+
+        for (int seqno = 0; seqno < SEQNO_COUNT; seqno++) {
+            if (random.nextDouble() < density * density) {
+                seqnos.set(seqno);
+            }
+        }
+
+        // ...and make a gap somewhere, sometimes.
+        if (random.nextBoolean()) {
+            seqnos.clear(random.nextInt(SEQNO_COUNT));
+        }
+
+        return seqnos;
+    }
+
+    private static void assertMatches(BitSet expected, MediationRecordSequence actual) {
+        String description = expected.toString();
+
+        assertArrayEquals(description, expected.toByteArray(), actual.getSequence());
+        assertEquals(description, expected.cardinality(), actual.cardinality());
+        assertEquals(description, expected.length(), actual.length());
+        assertEquals(description, expected.nextClearBit(0), actual.getContiguousCount());
+
+        for (int seqno = 0; seqno < SEQNO_COUNT; seqno++) {
+            assertEquals(description + " seqno " + seqno, expected.get(seqno), actual.getSeqno(seqno));
+        }
+
+        for (int seqno = 0; seqno <= SEQNO_COUNT + 1; seqno++) {
+            assertEquals(description + " from zero to " + seqno, expected.nextClearBit(0) >= seqno,
+                    actual.weHaveFromZeroTo(seqno));
+        }
+    }
+}